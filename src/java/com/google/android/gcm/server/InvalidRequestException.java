@@ -26,15 +26,22 @@ public final class InvalidRequestException extends IOException {
 
   private final int status;
   private final String description;
+  private final long retryAfter;
 
   public InvalidRequestException(int status) {
     this(status, null);
   }
 
   public InvalidRequestException(int status, String description) {
+    this(status, description, -1);
+  }
+
+  public InvalidRequestException(int status, String description,
+      long retryAfter) {
     super(getMessage(status, description));
     this.status = status;
     this.description = description;
+    this.retryAfter = retryAfter;
   }
 
   private static String getMessage(int status, String description) {
@@ -59,4 +66,11 @@ public final class InvalidRequestException extends IOException {
     return description;
   }
 
+  /**
+   * Gets the Retry-After response header in milliseconds, -1 if not present.
+   */
+  public long getRetryAfter() {
+    return retryAfter;
+  }
+
 }
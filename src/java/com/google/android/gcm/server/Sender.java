@@ -92,6 +92,7 @@ public class Sender {
       Logger.getLogger(Sender.class.getName());
 
   private final String key;
+  private final String endpoint;
 
   /**
    * Default constructor.
@@ -99,7 +100,18 @@ public class Sender {
    * @param key API key obtained through the Google API Console.
    */
   public Sender(String key) {
+    this(key, GCM_SEND_ENDPOINT);
+  }
+
+  /**
+   * Constructor with custom send endpoint, e.g., local GCM stub.
+   *
+   * @param key API key obtained through the Google API Console.
+   * @param endpoint URL of the GCM send endpoint.
+   */
+  public Sender(String key, String endpoint) {
     this.key = nonNull(key);
+    this.endpoint = nonNull(endpoint);
   }
 
   /**
@@ -417,7 +429,7 @@ public class Sender {
     HttpURLConnection conn;
     int status;
     try {
-      conn = post(GCM_SEND_ENDPOINT, "application/json", requestBody);
+      conn = post(endpoint, "application/json", requestBody);
       status = conn.getResponseCode();
     } catch (IOException e) {
       logger.log(Level.FINE, "IOException posting to GCM", e);
@@ -434,7 +446,8 @@ public class Sender {
         responseBody = "N/A";
         logger.log(Level.FINE, "Exception reading response: ", e);
       }
-      throw new InvalidRequestException(status, responseBody);
+      throw new InvalidRequestException(status, responseBody,
+          getRetryAfter(conn));
     }
     try {
       responseBody = getAndClose(conn.getInputStream());
@@ -446,6 +459,23 @@ public class Sender {
     return responseBody;
   }
 
+  /**
+   * Returns value of the Retry-After header in milliseconds, -1 if not present
+   * or not given in seconds.
+   */
+  private static long getRetryAfter(HttpURLConnection conn) {
+    String retryAfter = conn.getHeaderField("Retry-After");
+    if (retryAfter == null) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(retryAfter.trim()) * 1000L;
+    } catch (NumberFormatException e) {
+      logger.log(Level.FINE, "Unsupported Retry-After: " + retryAfter);
+      return -1;
+    }
+  }
+
   /**
    * Populate Map with message.
    *
@@ -34,7 +34,9 @@ import org.jivesoftware.openfire.group.GroupAlreadyExistsException;
 import org.jivesoftware.openfire.group.GroupManager;
 import org.jivesoftware.openfire.group.GroupNotFoundException;
 import org.jivesoftware.openfire.lockout.LockOutManager;
+import org.jivesoftware.openfire.plugin.userService.CoalescingJobRunnable;
 import org.jivesoftware.openfire.plugin.userService.Job;
+import org.jivesoftware.openfire.plugin.userService.JobLane;
 import org.jivesoftware.openfire.plugin.userService.JobRunnable;
 import org.jivesoftware.openfire.plugin.userService.TaskExecutor;
 import org.jivesoftware.openfire.plugin.userService.amqp.AMQPListener;
@@ -47,6 +49,7 @@ import org.jivesoftware.openfire.plugin.userService.push.PushService;
 import org.jivesoftware.openfire.plugin.userService.roster.TransferRosterItem;
 import org.jivesoftware.openfire.plugin.userService.strings.StringsManager;
 import org.jivesoftware.openfire.plugin.userService.utils.JobLogger;
+import org.jivesoftware.openfire.plugin.userService.utils.UserTracer;
 import org.jivesoftware.openfire.privacy.PrivacyList;
 import org.jivesoftware.openfire.privacy.PrivacyListManager;
 import org.jivesoftware.openfire.roster.Roster;
@@ -98,6 +101,7 @@ public class UserServicePlugin implements Plugin, PropertyEventListener, AMQPMsg
     private PlatformPushHandler pPushSvc;
     private StringsManager strings;
     private TaskExecutor executor;
+    private final UserTracer tracer = new UserTracer();
 
     private String secret;
     private boolean enabled;
@@ -155,6 +159,9 @@ public class UserServicePlugin implements Plugin, PropertyEventListener, AMQPMsg
         // Get the list of IP addresses that can use this service. An empty list means that this filter is disabled.
         allowedIPs = StringUtils.stringToCollection(JiveGlobals.getProperty("plugin.userservice.allowedIPs", ""));
 
+        // Per-user tracing watch list.
+        tracer.init();
+
         // Listen to system property events
         PropertyEventDispatcher.addListener(this);
 
@@ -316,7 +323,7 @@ public class UserServicePlugin implements Plugin, PropertyEventListener, AMQPMsg
      * @param rosterList
      */
     public void syncRosterInExecutor(final String username, final List<TransferRosterItem> rosterList){
-        submit("rosterSync_" + username, new JobRunnable() {
+        submit("rosterSync_" + username, TaskExecutor.KEY_ROSTER, new JobRunnable() {
             @Override
             public void run(UserServicePlugin plugin, Job job) {
                 try {
@@ -534,7 +541,7 @@ public class UserServicePlugin implements Plugin, PropertyEventListener, AMQPMsg
      * @param jsonReq
      */
     public void bulkSyncRosterInExecutor(final String jsonReq) {
-        submit("bulkRosterSync", new JobRunnable() {
+        submit("bulkRosterSync", TaskExecutor.KEY_ROSTER, new JobRunnable() {
             @Override
             public void run(UserServicePlugin plugin, Job job) {
                 try {
@@ -1051,6 +1058,8 @@ public class UserServicePlugin implements Plugin, PropertyEventListener, AMQPMsg
             this.enabled = Boolean.parseBoolean((String) params.get("value"));
         } else if (property.equals("plugin.userservice.allowedIPs")) {
             this.allowedIPs = StringUtils.stringToCollection((String) params.get("value"));
+        } else if (property.equals(UserTracer.PROP_USERS)) {
+            tracer.setWatchList((String) params.get("value"));
         }
     }
 
@@ -1061,6 +1070,8 @@ public class UserServicePlugin implements Plugin, PropertyEventListener, AMQPMsg
             this.enabled = false;
         } else if (property.equals("plugin.userservice.allowedIPs")) {
             this.allowedIPs = Collections.emptyList();
+        } else if (property.equals(UserTracer.PROP_USERS)) {
+            tracer.setWatchList(Collections.<String>emptyList());
         }
     }
 
@@ -1206,16 +1217,16 @@ public class UserServicePlugin implements Plugin, PropertyEventListener, AMQPMsg
      */
     @Override
     public void acceptMessage(String queue, QueueingConsumer.Delivery delivery) {
+        final long recvTstamp = System.currentTimeMillis();
         try {
             final String message = new String(delivery.getBody());
-            log.info("Message received: " + message);
-
             final JSONObject obj = new JSONObject(message);
             final String action = obj.getString("action");
+            tracer.trace(log, amqpTraceEvent(action), obj.optString("user", null), "Message received: %s", message);
 
             // Handle push notification for XMPP destination.
             if ("push".equalsIgnoreCase(action)) {
-                pushSvc.handlePushRequestFromQueue(obj);
+                pushSvc.handlePushRequestFromQueue(obj, recvTstamp);
 
             } else if ("pushReq".equalsIgnoreCase(action)){
                 pPushSvc.handlePushRequestFromQueue(obj);
@@ -1235,6 +1246,37 @@ public class UserServicePlugin implements Plugin, PropertyEventListener, AMQPMsg
         }
     }
 
+    /**
+     * Returns tracer event for the AMQP action. Only known actions have own counter, so the counters
+     * cannot grow with arbitrary actions from the queue.
+     * @param action
+     * @return
+     */
+    private static String amqpTraceEvent(String action){
+        if ("push".equalsIgnoreCase(action)) {
+            return "amqp.push";
+        } else if ("pushReq".equalsIgnoreCase(action)){
+            return "amqp.pushReq";
+        } else if ("pushRaw".equalsIgnoreCase(action)){
+            return "amqp.pushRaw";
+        } else if ("pushTrigger".equalsIgnoreCase(action)){
+            return "amqp.pushTrigger";
+        }
+
+        return "amqp.unknown";
+    }
+
+    /**
+     * Returns true if push queues or the task executor are too full to take new AMQP messages.
+     * @return
+     */
+    @Override
+    public boolean isOverloaded() {
+        return (pushSvc != null && pushSvc.isOverloaded())
+                || (pPushSvc != null && pPushSvc.isOverloaded())
+                || (executor != null && executor.isOverloaded());
+    }
+
     /**
      * Sends email notification to administrator.
      *
@@ -1362,8 +1404,64 @@ public class UserServicePlugin implements Plugin, PropertyEventListener, AMQPMsg
         return executor;
     }
 
-    public void submit(String name, JobRunnable job) {
-        executor.submit(name, job);
+    /**
+     * Submits job to the executor with the default key.
+     * @param name
+     * @param job
+     * @return false if job was rejected.
+     */
+    public boolean submit(String name, JobRunnable job) {
+        return onSubmitted(name, executor.submit(name, job));
+    }
+
+    /**
+     * Submits job to the executor. Jobs with the same key are executed serially, usually key is bare JID of the user.
+     * @param name
+     * @param key
+     * @param job
+     * @return false if job was rejected.
+     */
+    public boolean submit(String name, String key, JobRunnable job) {
+        return onSubmitted(name, executor.submit(name, key, job));
+    }
+
+    /**
+     * Submits job to the executor, merging it to the waiting job with the same coalescing key if there is one.
+     * Coalescing jobs are rejected if the executor queue is full.
+     * @param name
+     * @param key
+     * @param coalesceKey
+     * @param job
+     * @return false if job was rejected.
+     */
+    public boolean submitCoalescing(String name, String key, String coalesceKey, CoalescingJobRunnable job) {
+        return onSubmitted(name, executor.submitCoalescing(name, key, coalesceKey, job));
+    }
+
+    /**
+     * Submits job to the executor to the given priority lane.
+     * @param name
+     * @param key
+     * @param lane
+     * @param job
+     * @return false if job was rejected.
+     */
+    public boolean submit(String name, String key, JobLane lane, JobRunnable job) {
+        return onSubmitted(name, executor.submit(name, key, lane, job));
+    }
+
+    /**
+     * Logs rejected job, executor counts rejections.
+     * @param name
+     * @param accepted
+     * @return accepted
+     */
+    private boolean onSubmitted(String name, boolean accepted) {
+        if (!accepted){
+            log.warn(String.format("Job %s rejected by the executor, rejected so far: %d", name, executor.getRejectedJobs()));
+        }
+
+        return accepted;
     }
 
     public ClientStateService getCstateSvc() {
@@ -1374,6 +1472,18 @@ public class UserServicePlugin implements Plugin, PropertyEventListener, AMQPMsg
         return sessionManager;
     }
 
+    public UserTracer getTracer() {
+        return tracer;
+    }
+
+    /**
+     * Sets users to trace, stored to the property.
+     * @param users
+     */
+    public void setTraceUsers(Collection<String> users) {
+        JiveGlobals.setProperty(UserTracer.PROP_USERS, StringUtils.collectionToString(users));
+    }
+
     public PushService getPushSvc() {
         return pushSvc;
     }
@@ -0,0 +1,15 @@
+package org.jivesoftware.openfire.plugin.userService;
+
+/**
+ * Job which can absorb another job of the same type submitted while this one is still waiting in the queue.
+ *
+ * Created by dusanklinec on 18.10.16.
+ */
+public interface CoalescingJobRunnable extends JobRunnable {
+    /**
+     * Merges given job to this one. Called with executor lock held, before this job was started.
+     * @param job newly submitted job
+     * @return true if merged, false if given job has to be executed separately.
+     */
+    boolean mergeWith(JobRunnable job);
+}
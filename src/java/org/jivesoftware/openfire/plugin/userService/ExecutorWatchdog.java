@@ -0,0 +1,306 @@
+package org.jivesoftware.openfire.plugin.userService;
+
+import org.jivesoftware.openfire.plugin.UserServicePlugin;
+import org.jivesoftware.util.JiveGlobals;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Watchdog of the task executor, detects jobs running for too long (deadlocks).
+ * Runs in its own low frequency thread so detection never blocks job submitters.
+ *
+ * Only the stack of the stuck worker is sampled. Samples taken during one stuck episode are aggregated
+ * by the top stack frames, so the mail shows where the job spends its time. Mail notifications are rate limited.
+ *
+ * Created by dusanklinec on 18.10.16.
+ */
+public class ExecutorWatchdog extends Thread implements ExecutorWatchdogMBean {
+    private static final Logger log = LoggerFactory.getLogger(ExecutorWatchdog.class);
+    public static final String OBJECT_NAME = "org.jivesoftware.openfire.plugin.userService:type=ExecutorWatchdog";
+
+    /**
+     * Sampling interval of the worker threads.
+     */
+    public static final String PROP_INTERVAL = "phonex.executor.watchdog.interval";
+    public static final long DEFAULT_INTERVAL = 5000;
+
+    /**
+     * Job running longer than this is considered stuck.
+     */
+    public static final String PROP_THRESHOLD = "phonex.executor.watchdog.threshold";
+    public static final long DEFAULT_THRESHOLD = 10000;
+
+    /**
+     * Minimal time between two mail notifications.
+     */
+    public static final String PROP_MAIL_INTERVAL = "phonex.executor.watchdog.mailInterval";
+    public static final long DEFAULT_MAIL_INTERVAL = 1000L * 60L * 60L;
+
+    /**
+     * Number of samples confirming the job is stuck before sending a notification.
+     */
+    private static final int SAMPLES_TO_NOTIFY = 2;
+
+    /**
+     * Number of top frames identifying the stack sample.
+     */
+    private static final int SAMPLE_FRAMES = 12;
+
+    /**
+     * Maximal number of distinct stack samples kept for one episode.
+     */
+    private static final int MAX_DISTINCT_SAMPLES = 32;
+
+    private final TaskExecutor executor;
+    private volatile boolean watchdogWorking = true;
+    private final long interval;
+    private final long threshold;
+    private final long mailInterval;
+
+    // Current stuck episode, guarded by this.
+    private TaskExecutor.RunningJob stuckJob;
+    private final Map<String, Integer> samples = new HashMap<String, Integer>();
+    private int stuckSamples = 0;
+    private boolean episodeNotified = false;
+
+    // Statistics.
+    private final AtomicLong stuckDetections = new AtomicLong(0);
+    private final AtomicLong notificationsSent = new AtomicLong(0);
+    private final AtomicLong notificationsSuppressed = new AtomicLong(0);
+    private volatile long lastNotificationTime = 0;
+
+    public ExecutorWatchdog(TaskExecutor executor) {
+        this.executor = executor;
+        this.interval = Math.max(100, JiveGlobals.getLongProperty(PROP_INTERVAL, DEFAULT_INTERVAL));
+        this.threshold = Math.max(1000, JiveGlobals.getLongProperty(PROP_THRESHOLD, DEFAULT_THRESHOLD));
+        this.mailInterval = Math.max(0, JiveGlobals.getLongProperty(PROP_MAIL_INTERVAL, DEFAULT_MAIL_INTERVAL));
+        this.setName("ExecutorWatchdog");
+        this.setDaemon(true);
+    }
+
+    public void deinit(){
+        log.info("Deinitializing executor watchdog");
+        watchdogWorking = false;
+        this.interrupt();
+    }
+
+    public void run(){
+        log.info("Executor watchdog thread started.");
+
+        while(watchdogWorking){
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            try {
+                check();
+            } catch(Exception ex){
+                log.error("Exception in executor watchdog", ex);
+            }
+        }
+
+        log.info("Executor watchdog thread finishing.");
+    }
+
+    /**
+     * Takes one sample of the longest running job.
+     */
+    protected void check(){
+        final TaskExecutor.RunningJob running = executor.getLongestRunningJob();
+        final long now = System.currentTimeMillis();
+        if (running == null || now - running.getTimeStart() < threshold){
+            endEpisode(now);
+            return;
+        }
+
+        // Sample only the stuck worker, not the whole JVM.
+        final StackTraceElement[] stack = running.getThread().getStackTrace();
+        final Thread.State state = running.getThread().getState();
+
+        String notification = null;
+        synchronized (this){
+            if (stuckJob == null || stuckJob.getJob() != running.getJob()){
+                endEpisode(now);
+                stuckJob = running;
+                stuckDetections.incrementAndGet();
+                log.warn(String.format("TaskExecutor: Long running task detected, name=%s, thread: %s, runTime: %s, timeStart: %s",
+                        running.getJob().getTaskName(), running.getThread().getName(), now - running.getTimeStart(), running.getTimeStart()));
+            }
+
+            addSample(state + "\n" + formatStack(stack, SAMPLE_FRAMES));
+            stuckSamples += 1;
+
+            if (!episodeNotified && stuckSamples >= SAMPLES_TO_NOTIFY){
+                episodeNotified = true;
+                if (lastNotificationTime == 0 || now - lastNotificationTime >= mailInterval){
+                    lastNotificationTime = now;
+                    notificationsSent.incrementAndGet();
+                    notification = buildNotification(now);
+                } else {
+                    notificationsSuppressed.incrementAndGet();
+                    log.warn(String.format("TaskExecutor stuck, name=%s, mail notification suppressed, last sent: %s",
+                            running.getJob().getTaskName(), new Date(lastNotificationTime)));
+                }
+            }
+        }
+
+        // Mail is sent out of the lock, may take a while.
+        if (notification != null){
+            log.warn(notification);
+
+            final UserServicePlugin plugin = executor.getPlugin();
+            if (plugin != null) {
+                plugin.notifyAdminByMail("OpenFire: System deadlock",
+                        "TaskExecutor is experiencing an unpleasant situation - a deadlock." +
+                                "Some task started and refuses to finish.\n\n " +
+                                notification);
+            }
+        }
+    }
+
+    /**
+     * Finishes the current stuck episode, if any.
+     * @param now
+     */
+    private synchronized void endEpisode(long now){
+        if (stuckJob == null){
+            return;
+        }
+
+        log.info(String.format("TaskExecutor: task %s is not stuck anymore, samples: %d, stuck for: %d ms",
+                stuckJob.getJob().getTaskName(), stuckSamples, now - stuckJob.getTimeStart()));
+
+        stuckJob = null;
+        samples.clear();
+        stuckSamples = 0;
+        episodeNotified = false;
+    }
+
+    private void addSample(String sample){
+        final Integer cnt = samples.get(sample);
+        if (cnt != null){
+            samples.put(sample, cnt + 1);
+        } else if (samples.size() < MAX_DISTINCT_SAMPLES){
+            samples.put(sample, 1);
+        }
+    }
+
+    /**
+     * Returns aggregated samples, the most frequent first.
+     * @return
+     */
+    private List<Map.Entry<String, Integer>> sortedSamples(){
+        final List<Map.Entry<String, Integer>> sorted = new ArrayList<Map.Entry<String, Integer>>(samples.entrySet());
+        Collections.sort(sorted, new Comparator<Map.Entry<String, Integer>>() {
+            @Override
+            public int compare(Map.Entry<String, Integer> o1, Map.Entry<String, Integer> o2) {
+                return o2.getValue().compareTo(o1.getValue());
+            }
+        });
+
+        return sorted;
+    }
+
+    /**
+     * Builds mail notification body for the current episode.
+     * @param now
+     * @return
+     */
+    private String buildNotification(long now){
+        final StringBuilder sb = new StringBuilder();
+        final Job job = stuckJob.getJob();
+        final Thread thread = stuckJob.getThread();
+        sb.append(String.format("TaskExecutor: Long running task detected, name=%s, runTime: %s, timeStart: %s, now: %s, %s, detections: %s",
+                job.getTaskName(), now - stuckJob.getTimeStart(), stuckJob.getTimeStart(), now, new Date(now), stuckDetections.get()));
+
+        // Job last logs to detect where it got was stuck.
+        sb.append("\n\n");
+        sb.append(String.format("Job: %s, #%ss log: {{%s}}", job.getTaskName(), thread.getId(), job.getLogger().dumpMessages()));
+
+        // Aggregated stack samples of the worker.
+        sb.append(String.format("\n\nWorker %s stack samples (%d):\n", thread.getName(), stuckSamples));
+        for (Map.Entry<String, Integer> e : sortedSamples()) {
+            sb.append("Samples: ").append(e.getValue()).append(", state: ").append(e.getKey()).append("\n");
+        }
+
+        // Advise user to do inspection on deadlocked system, if possible.
+        sb.append("If possible, try to obtain thread dump directly from the JVM, by calling\n");
+        sb.append("kill -QUIT <pid>\n");
+        sb.append("Or use jstack.");
+        return sb.toString();
+    }
+
+    private static String formatStack(StackTraceElement[] stack, int frames){
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0, cnt = Math.min(frames, stack.length); i < cnt; i++) {
+            sb.append("--> ").append(stack[i]).append("\n");
+        }
+
+        return sb.toString();
+    }
+
+    @Override
+    public synchronized boolean isStuck() {
+        return stuckJob != null;
+    }
+
+    @Override
+    public synchronized String getStuckJobName() {
+        return stuckJob == null ? null : stuckJob.getJob().getTaskName();
+    }
+
+    @Override
+    public synchronized String getStuckThreadName() {
+        return stuckJob == null ? null : stuckJob.getThread().getName();
+    }
+
+    @Override
+    public synchronized long getStuckRunTime() {
+        return stuckJob == null ? 0 : System.currentTimeMillis() - stuckJob.getTimeStart();
+    }
+
+    @Override
+    public synchronized int getStuckSamples() {
+        return stuckSamples;
+    }
+
+    @Override
+    public synchronized String getHottestStack() {
+        if (samples.isEmpty()){
+            return null;
+        }
+
+        return sortedSamples().get(0).getKey();
+    }
+
+    @Override
+    public long getStuckDetections() {
+        return stuckDetections.get();
+    }
+
+    @Override
+    public long getNotificationsSent() {
+        return notificationsSent.get();
+    }
+
+    @Override
+    public long getNotificationsSuppressed() {
+        return notificationsSuppressed.get();
+    }
+
+    @Override
+    public long getLastNotificationTime() {
+        return lastNotificationTime;
+    }
+}
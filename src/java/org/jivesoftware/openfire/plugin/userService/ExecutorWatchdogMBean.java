@@ -0,0 +1,21 @@
+package org.jivesoftware.openfire.plugin.userService;
+
+/**
+ * JMX view of the task executor watchdog.
+ * All times are in milliseconds.
+ *
+ * Created by dusanklinec on 18.10.16.
+ */
+public interface ExecutorWatchdogMBean {
+    boolean isStuck();
+    String getStuckJobName();
+    String getStuckThreadName();
+    long getStuckRunTime();
+    int getStuckSamples();
+    String getHottestStack();
+
+    long getStuckDetections();
+    long getNotificationsSent();
+    long getNotificationsSuppressed();
+    long getLastNotificationTime();
+}
@@ -18,6 +18,10 @@ public class Job implements Runnable {
 
     private final JobRunnable job;
     private String name;
+    private String key;
+    private JobLane lane;
+    private long enqueueTstamp;
+    private String coalesceKey;
     private WeakReference<UserServicePlugin> svc;
     private final String id;
     private JobLogger logger = NullJobLogger.INSTANCE;
@@ -58,6 +62,46 @@ public class Job implements Runnable {
         this.name = name;
     }
 
+    /**
+     * Partition key, jobs with the same key are executed serially.
+     * @return
+     */
+    public String getKey() {
+        return key;
+    }
+
+    public void setKey(String key) {
+        this.key = key;
+    }
+
+    public JobLane getLane() {
+        return lane;
+    }
+
+    public void setLane(JobLane lane) {
+        this.lane = lane;
+    }
+
+    public long getEnqueueTstamp() {
+        return enqueueTstamp;
+    }
+
+    public void setEnqueueTstamp(long enqueueTstamp) {
+        this.enqueueTstamp = enqueueTstamp;
+    }
+
+    /**
+     * Key of the waiting job new jobs can be merged to, null if job is not coalescing.
+     * @return
+     */
+    public String getCoalesceKey() {
+        return coalesceKey;
+    }
+
+    public void setCoalesceKey(String coalesceKey) {
+        this.coalesceKey = coalesceKey;
+    }
+
     public String getId() {
         return id;
     }
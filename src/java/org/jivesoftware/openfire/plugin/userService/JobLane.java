@@ -0,0 +1,61 @@
+package org.jivesoftware.openfire.plugin.userService;
+
+/**
+ * Priority lanes of the task executor, ordered from the highest priority.
+ * Jobs from a higher lane are always taken first. Background lanes cannot occupy all worker threads,
+ * so at least one worker is left for the interactive lanes.
+ *
+ * Created by dusanklinec on 18.10.16.
+ */
+public enum JobLane {
+    /**
+     * Platform push requests and rechecks, e.g., incoming call notifications.
+     */
+    REALTIME(false),
+
+    /**
+     * Push bookkeeping - ACKs, tokens, XMPP push and presence jobs. Default lane.
+     */
+    PUSH(false),
+
+    /**
+     * Database housekeeping - activity records, cleaning.
+     */
+    HOUSEKEEPING(true),
+
+    /**
+     * Bulk administrative work - roster synchronization.
+     */
+    BULK(true);
+
+    private final boolean background;
+
+    JobLane(boolean background) {
+        this.background = background;
+    }
+
+    public boolean isBackground() {
+        return background;
+    }
+
+    /**
+     * Returns lane for the job by its name.
+     * @param name
+     * @return
+     */
+    public static JobLane forJobName(String name){
+        if (name == null){
+            return PUSH;
+        }
+
+        if ("pushReqStore".equals(name) || "reqRecheck".equals(name)){
+            return REALTIME;
+        } else if ("lastActivityStore".equals(name) || "evictClean".equals(name)){
+            return HOUSEKEEPING;
+        } else if ("bulkRosterSync".equals(name) || name.startsWith("rosterSync")){
+            return BULK;
+        }
+
+        return PUSH;
+    }
+}
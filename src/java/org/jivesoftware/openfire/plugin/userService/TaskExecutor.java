@@ -2,38 +2,103 @@ package org.jivesoftware.openfire.plugin.userService;
 
 import org.jivesoftware.openfire.plugin.UserServicePlugin;
 import org.jivesoftware.openfire.plugin.userService.utils.JobLoggerImpl;
+import org.jivesoftware.openfire.plugin.userService.utils.LatencyHistogram;
+import org.jivesoftware.util.JiveGlobals;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
 import java.lang.ref.WeakReference;
-import java.util.Date;
+import java.util.ArrayDeque;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Executor engine.
+ * Jobs are partitioned by a key (usually bare JID of the user the job works for). Jobs with the same key
+ * are executed serially in the submission order, jobs with different keys run in parallel on a bounded pool of workers.
+ *
+ * Each job belongs to a priority lane (by job name or explicitly). Workers take jobs from the highest priority lane
+ * first, background lanes never occupy all workers. Lane of the key is given by the job at the head of the key queue,
+ * so a job waits for previously submitted jobs with the same key even if they are in a lower lane.
+ *
  * Created by dusanklinec on 13.03.15.
  */
-public class TaskExecutor implements Runnable{
+public class TaskExecutor {
     private static final Logger log = LoggerFactory.getLogger(TaskExecutor.class);
 
+    /**
+     * Maximum number of jobs waiting in the queue. When the queue is full, only coalescing jobs (rechecks, cleaning)
+     * are rejected as they can be re-created later. Jobs carrying persistent state (stores, ACKs) are always accepted.
+     */
+    public static final String PROP_CAPACITY = "phonex.executor.capacity";
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    /**
+     * Number of worker threads.
+     */
+    public static final String PROP_THREADS = "phonex.executor.threads";
+    public static final int DEFAULT_THREADS = 4;
+
+    /**
+     * Key for jobs submitted without a key, these are executed serially as with a single thread executor.
+     */
+    public static final String KEY_DEFAULT = "default";
+
+    /**
+     * Key for jobs modifying rosters. Roster jobs may touch rosters of many users and have to be serialized
+     * to avoid lock-order deadlocks in roster / privacy list managers.
+     */
+    public static final String KEY_ROSTER = "roster";
+
     private final WeakReference<UserServicePlugin> plugRef;
     private volatile boolean isWorking = true;
-    private final ConcurrentLinkedQueue<Job> jobs = new ConcurrentLinkedQueue<Job>();
 
-    // Tracking last running job - deadlock detection.
-    private String lastJobName;
-    private String lastJobID;
-    private final AtomicLong lastJobTimeStart = new AtomicLong(0);
-    private final AtomicLong lastJobTimeFinish = new AtomicLong(0);
-    private volatile Job lastJob;
+    /**
+     * Key -> serial queue of jobs with this key. Queue is removed when it gets empty.
+     * Guards also all scheduling state below, workers wait on it.
+     */
+    private final Map<String, KeyQueue> keyQueues = new HashMap<String, KeyQueue>();
+
+    /**
+     * Per lane: key queues having a job to execute and not being executed by any worker.
+     * Each key queue is in at most one ready queue, so jobs with the same key never run in parallel.
+     */
+    private final ArrayDeque<KeyQueue>[] readyQueues;
 
-    // Worker thread
-    private Thread wThread;
-    private final AtomicInteger threadCnt = new AtomicInteger(0);
-    private final AtomicInteger numDeadlockDetections = new AtomicInteger(0);
+    /**
+     * Per lane: number of workers executing a job from the lane, maximal allowed number.
+     */
+    private final int[] laneRunning;
+    private final int[] laneMaxRunning;
+
+    /**
+     * Coalescing key -> waiting job which can absorb new jobs with the same coalescing key.
+     */
+    private final Map<String, Job> coalescing = new HashMap<String, Job>();
+    private final AtomicLong coalescedJobs = new AtomicLong(0);
+    private final ConcurrentHashMap<String, AtomicLong> coalescedByName = new ConcurrentHashMap<String, AtomicLong>();
+
+    // Per lane statistics.
+    private final AtomicInteger[] laneQueued;
+    private final AtomicLong[] laneExecuted;
+    private final LatencyHistogram[] laneWaitTime;
+
+    // Queue occupancy.
+    private final int capacity;
+    private final AtomicInteger queueSize = new AtomicInteger(0);
+    private final AtomicLong rejectedJobs = new AtomicLong(0);
+    private final AtomicLong overCapacityJobs = new AtomicLong(0);
+
+    // Worker threads
+    private final int threads;
+    private Worker[] workers;
+    private ExecutorWatchdog watchdog;
 
     /**
      * Default constructor.
@@ -41,29 +106,113 @@ public class TaskExecutor implements Runnable{
      */
     public TaskExecutor(UserServicePlugin svc) {
         this.plugRef = new WeakReference<UserServicePlugin>(svc);
+        this.capacity = Math.max(16, JiveGlobals.getIntProperty(PROP_CAPACITY, DEFAULT_CAPACITY));
+        this.threads = Math.max(1, JiveGlobals.getIntProperty(PROP_THREADS, DEFAULT_THREADS));
+
+        final JobLane[] lanes = JobLane.values();
+        this.readyQueues = newReadyQueues(lanes.length);
+        this.laneRunning = new int[lanes.length];
+        this.laneMaxRunning = new int[lanes.length];
+        this.laneQueued = new AtomicInteger[lanes.length];
+        this.laneExecuted = new AtomicLong[lanes.length];
+        this.laneWaitTime = new LatencyHistogram[lanes.length];
+        for (JobLane lane : lanes) {
+            final int idx = lane.ordinal();
+            readyQueues[idx] = new ArrayDeque<KeyQueue>();
+            laneMaxRunning[idx] = lane.isBackground() ? Math.max(1, threads - 1) : threads;
+            laneQueued[idx] = new AtomicInteger(0);
+            laneExecuted[idx] = new AtomicLong(0);
+            laneWaitTime[idx] = new LatencyHistogram(lane.name());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ArrayDeque<KeyQueue>[] newReadyQueues(int size){
+        return (ArrayDeque<KeyQueue>[]) new ArrayDeque[size];
     }
 
     /**
      * Starting an executor.
      */
-    public void start(){
-        startWorkerThread();
+    public synchronized void start(){
+        workers = new Worker[threads];
+        for(int i = 0; i < threads; i++){
+            workers[i] = new Worker();
+            final String threadName = "TaskExecutor." + i;
+            final Thread wThread = new Thread(workers[i], threadName);
+            workers[i].thread = wThread;
+            wThread.start();
+
+            log.info(String.format("Executor thread started: %s, tid: %s", threadName, wThread.getId()));
+        }
+
+        watchdog = new ExecutorWatchdog(this);
+        watchdog.start();
+        try {
+            final MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(ExecutorWatchdog.OBJECT_NAME);
+            if (!mbs.isRegistered(name)){
+                mbs.registerMBean(watchdog, name);
+            }
+        } catch(Exception ex){
+            log.error("Could not register executor watchdog MBean", ex);
+        }
     }
 
     /**
      * Shutting down procedure.
      */
     public void deinit(){
-        log.info("Deinitializing job executor thread");
+        log.info("Deinitializing job executor threads");
         isWorking = false;
+
+        final ExecutorWatchdog curWatchdog = watchdog;
+        if (curWatchdog != null){
+            curWatchdog.deinit();
+            try {
+                final MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+                final ObjectName name = new ObjectName(ExecutorWatchdog.OBJECT_NAME);
+                if (mbs.isRegistered(name)){
+                    mbs.unregisterMBean(name);
+                }
+            } catch(Exception ex){
+                log.error("Could not unregister executor watchdog MBean", ex);
+            }
+        }
+    }
+
+    /**
+     * Submit a job to the executor, with the default key.
+     * @param job
+     * @return true, non-coalescing jobs are never rejected.
+     */
+    public boolean submit(String name, JobRunnable job){
+        return submit(name, KEY_DEFAULT, job);
+    }
+
+    /**
+     * Submit a job to the executor.
+     * @param name job name
+     * @param key partition key, jobs with the same key are executed serially. If null, default key is used.
+     * @param job
+     * @return true, non-coalescing jobs are never rejected.
+     */
+    public boolean submit(String name, String key, JobRunnable job){
+        return submit(name, key, null, job);
     }
 
     /**
      * Submit a job to the executor.
+     * @param name job name
+     * @param key partition key, jobs with the same key are executed serially. If null, default key is used.
+     * @param lane priority lane, if null, lane is determined by the job name.
      * @param job
+     * @return true, non-coalescing jobs are never rejected.
      */
-    public void submit(String name, JobRunnable job){
+    public boolean submit(String name, String key, JobLane lane, JobRunnable job){
         final Job qJob = new Job(name, job);
+        qJob.setKey(key == null ? KEY_DEFAULT : key);
+        qJob.setLane(lane == null ? JobLane.forJobName(name) : lane);
 
         // For bulk roster sync, apply special logging to detect deadlocks.
         if (name != null && name.contains("bulkRosterSync")){
@@ -73,185 +222,407 @@ public class TaskExecutor implements Runnable{
         }
 
         // Check queue size.
-        final int jobSize = jobs.size();
-        log.info(String.format("Adding task to executor [%s], jobQueueSize: %d, curTimestamp: %d",
-                qJob.getTaskName(), jobSize, System.currentTimeMillis()));
+        final int jobSize = queueSize.get();
+        log.info(String.format("Adding task to executor [%s], key: %s, lane: %s, jobQueueSize: %d, curTimestamp: %d",
+                qJob.getTaskName(), qJob.getKey(), qJob.getLane(), jobSize, System.currentTimeMillis()));
+
+        // Add the job to the queue. Long running jobs are detected by the watchdog thread.
+        return enqueue(qJob);
+    }
+
+    /**
+     * Submit a job which is merged to the waiting job with the same coalescing key, if there is one.
+     * Job is not merged once it started, then the new job is enqueued.
+     *
+     * @param name job name
+     * @param key partition key, jobs with the same key are executed serially. If null, default key is used.
+     * @param coalesceKey identifies jobs which can be merged, usually job type and user.
+     * @param job
+     * @return false if job was rejected as the queue is full and there is no waiting job to merge with.
+     */
+    public boolean submitCoalescing(String name, String key, String coalesceKey, CoalescingJobRunnable job){
+        final Job qJob = new Job(name, job);
+        qJob.setKey(key == null ? KEY_DEFAULT : key);
+        qJob.setLane(JobLane.forJobName(name));
+        qJob.setCoalesceKey(coalesceKey);
+        return enqueue(qJob);
+    }
 
-        // Add the job to the queue
-        jobs.add(qJob);
+    /**
+     * Submit a job to the executor. Uses job key, default if not set.
+     * @param job
+     * @return true, non-coalescing jobs are never rejected.
+     */
+    public boolean submit(Job job){
+        if (job.getKey() == null){
+            job.setKey(KEY_DEFAULT);
+        }
 
-        // Detect long running jobs / deadlocks.
-        if (lastJobTimeStart.get() != 0 && lastJobTimeFinish.get() == 0){
-            final long curTime = System.currentTimeMillis();
-            final long runTime = curTime - lastJobTimeStart.get();
+        if (job.getLane() == null){
+            job.setLane(JobLane.forJobName(job.getName()));
+        }
 
-            // Give it a time, might be a long running task
-            if (runTime < 1000*10){
-                return;
+        return enqueue(job);
+    }
+
+    /**
+     * Adds job to the queue of its key.
+     * If the queue is full, coalescing jobs are rejected, other jobs are accepted over the capacity
+     * so no persistent state is lost.
+     * @param job
+     * @return false if job was rejected.
+     */
+    private boolean enqueue(Job job){
+        synchronized (keyQueues){
+            // Merge to the waiting job of the same type, if any. Merge does not need free space.
+            if (job.getCoalesceKey() != null){
+                final Job pending = coalescing.get(job.getCoalesceKey());
+                if (pending != null && ((CoalescingJobRunnable) pending.getJob()).mergeWith(job.getJob())){
+                    onCoalesced(job);
+                    return true;
+                }
             }
 
-            // Mail notification body;
-            final StringBuilder sb = new StringBuilder();
+            if (queueSize.incrementAndGet() > capacity){
+                if (job.getCoalesceKey() != null) {
+                    queueSize.decrementAndGet();
+                    rejectedJobs.incrementAndGet();
+                    log.warn(String.format("Executor queue full, capacity: %d, rejecting job %s", capacity, job.getTaskName()));
+                    return false;
+                }
 
-            // Now we are talking about deadlocked thread.
-            if (numDeadlockDetections.incrementAndGet() > 2){
-                final String deadLockMsg = String.format("TaskExecutor deadlocked by name=%s.%s, runTime: %s, timeStart: %s, now: %s, %s, detections: %s",
-                        lastJobName, lastJobID, runTime, lastJobTimeStart.get(), System.currentTimeMillis(), new Date(), numDeadlockDetections.get());
+                overCapacityJobs.incrementAndGet();
+                log.warn(String.format("Executor queue full, capacity: %d, accepting job %s over capacity", capacity, job.getTaskName()));
+            }
 
-                log.warn(deadLockMsg);
-                log.info(deadLockMsg);
+            job.setEnqueueTstamp(System.currentTimeMillis());
+            laneQueued[job.getLane().ordinal()].incrementAndGet();
+            if (job.getCoalesceKey() != null){
+                coalescing.put(job.getCoalesceKey(), job);
+            }
 
-            } else {
-                final String logInfo = String.format("TaskExecutor: Long running task detected, name=%s.%s, runTime: %s, timeStart: %s, now: %s, %s",
-                        lastJobName, lastJobID, runTime, lastJobTimeStart.get(), System.currentTimeMillis(), new Date());
+            KeyQueue kq = keyQueues.get(job.getKey());
+            if (kq == null){
+                kq = new KeyQueue(job.getKey());
+                keyQueues.put(job.getKey(), kq);
+            }
 
-                log.info(logInfo);
-                log.warn(logInfo);
-                sb.append(logInfo);
+            kq.jobs.add(job);
+            if (!kq.scheduled){
+                kq.scheduled = true;
+                readyQueues[job.getLane().ordinal()].add(kq);
+                keyQueues.notifyAll();
+            }
+        }
 
-                // Job last logs to detect where it got was stuck.
-                if (lastJob != null) {
-                    final long threadId = Thread.currentThread().getId();
-                    final String extraTaskInfo = String.format("Job: %s.%s, #%ss log: {{%s}}",
-                            lastJobName, lastJobID, threadId, lastJob.getLogger().dumpMessages());
+        return true;
+    }
 
-                    log.info(extraTaskInfo);
-                    sb.append("\n\n");
-                    sb.append(extraTaskInfo);
+    /**
+     * Accounts coalesced job.
+     * @param job
+     */
+    private void onCoalesced(Job job){
+        coalescedJobs.incrementAndGet();
+
+        final String name = job.getName() == null ? "" : job.getName();
+        AtomicLong ctr = coalescedByName.get(name);
+        if (ctr == null){
+            ctr = new AtomicLong(0);
+            final AtomicLong prev = coalescedByName.putIfAbsent(name, ctr);
+            ctr = prev == null ? ctr : prev;
+        }
 
-                } else {
-                    log.info("Last job was null, cannot provide debug info");
+        ctr.incrementAndGet();
+        log.info(String.format("Job %s coalesced to the waiting one, key: %s", job.getTaskName(), job.getCoalesceKey()));
+    }
 
+    /**
+     * Takes next job to execute, from the highest priority lane which may run another job.
+     * Waits at most given time if there is no such job.
+     *
+     * @param timeout milliseconds
+     * @return job or null if there is none.
+     * @throws InterruptedException
+     */
+    private Job takeJob(long timeout) throws InterruptedException {
+        synchronized (keyQueues){
+            for(int attempt = 0; attempt < 2; attempt++) {
+                for (int lane = 0; lane < readyQueues.length; lane++) {
+                    if (readyQueues[lane].isEmpty() || laneRunning[lane] >= laneMaxRunning[lane]) {
+                        continue;
+                    }
+
+                    final KeyQueue kq = readyQueues[lane].poll();
+                    final Job job = kq.jobs.poll();
+                    if (job.getCoalesceKey() != null && coalescing.get(job.getCoalesceKey()) == job){
+                        coalescing.remove(job.getCoalesceKey());
+                    }
+
+                    laneRunning[lane] += 1;
+                    queueSize.decrementAndGet();
+                    laneQueued[lane].decrementAndGet();
+                    laneWaitTime[lane].record(System.currentTimeMillis() - job.getEnqueueTstamp());
+                    return job;
                 }
 
-                // Thread dump:
-                sb.append("\n\nThread dump:\n");
-                sb.append(threadDump());
-                sb.append("\n\n");
-
-                // Advise user to do inspection on deadlocked system, if possible.
-                sb.append("If possible, try to obtain thread dump directly from the JVM, by calling\n");
-                sb.append("kill -QUIT <pid>\n");
-                sb.append("Or use jstack.");
-
-                // Administrator mail notification.
-                final UserServicePlugin plugin = plugRef.get();
-                if (plugin != null) {
-                    plugin.notifyAdminByMail("OpenFire: System deadlock",
-                            "TaskExecutor is experiencing an unpleasant situation - a deadlock." +
-                                    "Some task started and refuses to finish.\n\n " +
-                                    sb.toString());
+                if (attempt == 0) {
+                    keyQueues.wait(timeout);
                 }
             }
 
-//            if (runTime > (1000l * 60l * 5l)){
-//                log.info("Trying to kill frozen thread");
-//                restartExecutor();
-//            }
+            return null;
+        }
+    }
+
+    /**
+     * Called by the worker after the job finished.
+     * Re-schedules its key queue if it has more jobs, so other keys get their turn, removes it otherwise.
+     * @param job
+     */
+    private void releaseJob(Job job){
+        final int lane = job.getLane().ordinal();
+        laneExecuted[lane].incrementAndGet();
+
+        synchronized (keyQueues){
+            laneRunning[lane] -= 1;
+
+            final KeyQueue kq = keyQueues.get(job.getKey());
+            if (kq.jobs.isEmpty()){
+                kq.scheduled = false;
+                keyQueues.remove(kq.key);
+            } else {
+                readyQueues[kq.jobs.peek().getLane().ordinal()].add(kq);
+            }
+
+            keyQueues.notifyAll();
         }
     }
 
     /**
-     * Starts a new worker thread.
+     * Returns job running for the longest time, null if all workers are idle. Used by the watchdog.
+     * @return
      */
-    protected synchronized void startWorkerThread(){
-        final String threadName = "TaskExecutor." + threadCnt.getAndIncrement();
-        wThread = new Thread(this, threadName);
-        wThread.start();
+    RunningJob getLongestRunningJob(){
+        final Worker worker = findLongestRunningWorker();
+        if (worker == null){
+            return null;
+        }
+
+        // Worker may finish meanwhile, read job first and check it is still running after.
+        final Job job = worker.lastJob;
+        final long timeStart = worker.lastJobTimeStart.get();
+        if (job == null || worker.lastJobTimeFinish.get() != 0){
+            return null;
+        }
 
-        log.info(String.format("Executor thread started: %s, tid: %s", threadName, wThread.getId()));
+        return new RunningJob(worker.thread, job, timeStart);
     }
 
     /**
-     * Tries to drastically restart the executor.
+     * Returns worker running a job for the longest time, null if all workers are idle.
+     * @return
      */
-    protected synchronized void restartExecutor(){
-        if (wThread == null){
-            log.warn("Working thread is null");
-            return;
+    private Worker findLongestRunningWorker(){
+        final Worker[] curWorkers = workers;
+        if (curWorkers == null){
+            return null;
         }
 
-        // If already has 2 running threads, do nothing - restart did not went well probably.
-        if (threadCnt.get() >= 2){
-            log.info("Not going to start a new thread, thread counter too big");
-            return;
+        Worker longest = null;
+        for (Worker worker : curWorkers) {
+            if (worker.lastJobTimeStart.get() == 0 || worker.lastJobTimeFinish.get() != 0){
+                continue;
+            }
+
+            if (longest == null || worker.lastJobTimeStart.get() < longest.lastJobTimeStart.get()){
+                longest = worker;
+            }
         }
 
-        // Try to kill worker thread.
-        try {
-            wThread.interrupt();
-            wThread.interrupt();
-        } catch(Exception e){
-            log.error("Exception in interrupting worker thread", e);
+        return longest;
+    }
+
+    /**
+     * Returns true if the job queue is at least 3/4 full.
+     * @return
+     */
+    public boolean isOverloaded(){
+        return queueSize.get() >= capacity * 3L / 4L;
+    }
+
+    public int getQueueSize() {
+        return queueSize.get();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getRejectedJobs() {
+        return rejectedJobs.get();
+    }
+
+    /**
+     * Returns number of jobs accepted while the queue was full.
+     * @return
+     */
+    public long getOverCapacityJobs() {
+        return overCapacityJobs.get();
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public long getCoalescedJobs() {
+        return coalescedJobs.get();
+    }
+
+    /**
+     * Returns number of coalesced jobs by job name.
+     * @return
+     */
+    public Map<String, Long> getCoalescedByName() {
+        final Map<String, Long> ret = new HashMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> e : coalescedByName.entrySet()) {
+            ret.put(e.getKey(), e.getValue().get());
         }
 
-        // Give it some time.
-        try {
-            Thread.sleep(500);
-        } catch (InterruptedException e) {
-            log.error("Sleep interrupted", e);
+        return ret;
+    }
+
+    /**
+     * Returns number of jobs waiting in the given lane.
+     * @param lane
+     * @return
+     */
+    public int getLaneQueueSize(JobLane lane){
+        return laneQueued[lane.ordinal()].get();
+    }
+
+    /**
+     * Returns number of jobs currently executed from the given lane.
+     * @param lane
+     * @return
+     */
+    public int getLaneRunning(JobLane lane){
+        synchronized (keyQueues){
+            return laneRunning[lane.ordinal()];
         }
+    }
 
-        // Spawn a new worker thread to keep executor running.
-        startWorkerThread();
+    public long getLaneExecuted(JobLane lane){
+        return laneExecuted[lane.ordinal()].get();
     }
 
     /**
-     * Submit a job to the executor.
-     * @param job
+     * Returns histogram of time jobs spent waiting in the given lane, in milliseconds.
+     * @param lane
+     * @return
      */
-    public void submit(Job job){
-        jobs.add(job);
+    public LatencyHistogram getLaneWaitTime(JobLane lane){
+        return laneWaitTime[lane.ordinal()];
     }
 
     /**
-     * Generates thread dump, used in deadlock detection.
+     * Returns number of keys with waiting or running jobs.
      * @return
      */
-    protected String threadDump(){
-        final StringBuilder sb = new StringBuilder();
-        try {
-            final Map<Thread, StackTraceElement[]> map = Thread.getAllStackTraces();
-            for (Map.Entry<Thread, StackTraceElement[]> threadEntry : map.entrySet()) {
-                sb.append("Thread:")
-                        .append(threadEntry.getKey().getName())
-                        .append(":")
-                        .append(threadEntry.getKey().getState())
-                        .append("\n");
-
-                for (StackTraceElement element : threadEntry.getValue()) {
-                    sb.append("--> ")
-                            .append(element)
-                            .append("\n");
-                }
-            }
-        } catch (Throwable t){
-            log.error("Exception when generating thread dump", t);
+    public int getActiveKeys() {
+        synchronized (keyQueues){
+            return keyQueues.size();
         }
+    }
+
+    public UserServicePlugin getPlugin() {
+        return plugRef.get();
+    }
 
-        return sb.toString();
+    public ExecutorWatchdog getWatchdog() {
+        return watchdog;
     }
 
     /**
-     * Main runnable to be executed by working thread.
+     * Snapshot of a job being executed by a worker.
      */
-    public void run(){
-        final long threadId = Thread.currentThread().getId();
-        log.info(String.format("Job Executor thread started, name: %s, tid: %s",
-                Thread.currentThread().getName(),
-                threadId));
+    static class RunningJob {
+        private final Thread thread;
+        private final Job job;
+        private final long timeStart;
+
+        RunningJob(Thread thread, Job job, long timeStart) {
+            this.thread = thread;
+            this.job = job;
+            this.timeStart = timeStart;
+        }
 
-        // Main working loop.
-        while(isWorking && !Thread.interrupted()){
-            UserServicePlugin svc = plugRef.get();
-            if (svc == null){
-                isWorking = false;
-                log.info("Manager disappeared");
-                break;
-            }
+        public Thread getThread() {
+            return thread;
+        }
+
+        public Job getJob() {
+            return job;
+        }
+
+        public long getTimeStart() {
+            return timeStart;
+        }
+    }
+
+    /**
+     * Serial queue of jobs with the same key.
+     */
+    private static class KeyQueue {
+        private final String key;
+        private final ArrayDeque<Job> jobs = new ArrayDeque<Job>();
+
+        /**
+         * True if queue is in the ready queue or being executed by a worker.
+         */
+        private boolean scheduled = false;
+
+        private KeyQueue(String key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * Worker executing jobs from ready key queues.
+     * Tracks last running job - deadlock detection by the watchdog.
+     */
+    private class Worker implements Runnable {
+        private Thread thread;
+        private volatile Job lastJob;
+        private final AtomicLong lastJobTimeStart = new AtomicLong(0);
+        private final AtomicLong lastJobTimeFinish = new AtomicLong(0);
+
+        /**
+         * Main runnable to be executed by working thread.
+         */
+        public void run(){
+            final long threadId = Thread.currentThread().getId();
+            log.info(String.format("Job Executor thread started, name: %s, tid: %s",
+                    Thread.currentThread().getName(),
+                    threadId));
+
+            // Main working loop.
+            while(isWorking && !Thread.interrupted()){
+                UserServicePlugin svc = plugRef.get();
+                if (svc == null){
+                    isWorking = false;
+                    log.info("Manager disappeared");
+                    break;
+                }
+
+                Job job = null;
+                try {
+                    job = takeJob(1000);
+                } catch (InterruptedException ie){
+                    log.warn("Thread interrupted", ie);
+                    break;
+                }
 
-            while(!jobs.isEmpty() && isWorking){
-                final Job job = jobs.poll();
                 if (job == null){
                     continue;
                 }
@@ -260,8 +631,6 @@ public class TaskExecutor implements Runnable{
                 job.setSvc(svc);
                 final String jobName = job.getName() != null ? String.format("%s.%s", job.getName(), job.getId()) : null;
                 lastJob = job;
-                lastJobName = job.getName();
-                lastJobID = job.getId();
                 lastJobTimeStart.set(System.currentTimeMillis());
                 lastJobTimeFinish.set(0);
 
@@ -274,6 +643,8 @@ public class TaskExecutor implements Runnable{
                     job.run();
                 } catch(Throwable t){
                     log.error("Fatal error in executing a job", t);
+                } finally {
+                    releaseJob(job);
                 }
 
                 if (jobName != null){
@@ -283,18 +654,7 @@ public class TaskExecutor implements Runnable{
                 lastJobTimeFinish.set(System.currentTimeMillis());
             }
 
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException ie){
-                log.warn("Thread interrupted", ie);
-                break;
-            } catch (Exception e) {
-                log.error("Sleep interrupted", e);
-                break;
-            }
+            log.info("Executor thread finishing.");
         }
-
-        log.info("Executor thread finishing.");
     }
-
 }
@@ -13,6 +13,8 @@ import org.jivesoftware.openfire.plugin.userService.BackgroundThreadService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * AMPQ listener.
  *
@@ -29,9 +31,23 @@ public class AMQPListener extends BackgroundThreadService {
      * Timeous sync in milliseconds.
      */
     private static final long TIMEOUT_LISTEN = 1000 * 5;
+
+    /**
+     * Maximum number of unacknowledged messages delivered to us. Messages over this limit stay in the broker
+     * while consumption is paused.
+     */
+    private static final int PREFETCH_COUNT = 256;
+
+    /**
+     * Time to wait before re-checking overloaded listener, in milliseconds.
+     */
+    private static final long PAUSE_INTERVAL = 500;
     private long lastSync = 0;
     private volatile boolean running = true;
     private volatile boolean connectionOK = false;
+    private volatile boolean paused = false;
+    private final AtomicLong pauseCount = new AtomicLong(0);
+    private final AtomicLong pausedTime = new AtomicLong(0);
 
     private ConnectionFactory factory;
     private Connection connection;
@@ -119,10 +135,16 @@ public class AMQPListener extends BackgroundThreadService {
             log.info(String.format("Consumer tag: %s", consumerTag));
 
             final long threadId = Thread.currentThread().getId();
+            channel.basicQos(PREFETCH_COUNT);
             final String serverConsumerTag = channel.basicConsume(QUEUE_XMPP_NAME, false, consumer);
             log.info(String.format("Server consumer tag: %s", serverConsumerTag));
 
             while (this.running) {
+                // Backpressure, do not take new messages while listener is overloaded.
+                if (waitWhileOverloaded()){
+                    continue;
+                }
+
                 final QueueingConsumer.Delivery delivery = consumer.nextDelivery(2000);
                 if (delivery == null) {
                     continue;
@@ -164,6 +186,33 @@ public class AMQPListener extends BackgroundThreadService {
         log.info(String.format("AMPQListener thread ended. Running: %s, this: %s", running, this));
     }
 
+    /**
+     * Pauses consumption for a while if listener is overloaded.
+     * @return true if consumption was paused.
+     * @throws InterruptedException
+     */
+    private boolean waitWhileOverloaded() throws InterruptedException {
+        final AMQPMsgListener curListener = listener;
+        if (curListener == null || !curListener.isOverloaded()){
+            if (paused){
+                paused = false;
+                log.info("AMQP consumption resumed");
+            }
+
+            return false;
+        }
+
+        if (!paused){
+            paused = true;
+            pauseCount.incrementAndGet();
+            log.warn("Listener overloaded, AMQP consumption paused");
+        }
+
+        Thread.sleep(PAUSE_INTERVAL);
+        pausedTime.addAndGet(PAUSE_INTERVAL);
+        return true;
+    }
+
     private void processNewMessage(QueueingConsumer.Delivery delivery) {
         try {
             if (listener != null) {
@@ -182,6 +231,18 @@ public class AMQPListener extends BackgroundThreadService {
         this.running = running;
     }
 
+    public boolean isPaused() {
+        return paused;
+    }
+
+    public long getPauseCount() {
+        return pauseCount.get();
+    }
+
+    public long getPausedTime() {
+        return pausedTime.get();
+    }
+
     public AMQPMsgListener getListener() {
         return listener;
     }
@@ -13,4 +13,10 @@ import com.rabbitmq.client.QueueingConsumer;
  */
 public interface AMQPMsgListener {
     void acceptMessage(String queue, QueueingConsumer.Delivery delivery);
+
+    /**
+     * Returns true if listener cannot process new messages now, consumption is paused until it recovers.
+     * @return
+     */
+    boolean isOverloaded();
 }
@@ -88,17 +88,13 @@ public class ClientStateService extends IQHandler implements ServerFeaturesProvi
 
     @Override
     public IQ handleIQ(IQ packet) throws UnauthorizedException {
-        final IQ.Type iqType = packet.getType();
-        log.info(String.format("Handle IQ[clientState] packetType: %s, from: %s, to: %s, tstamp: %d",
-                iqType, packet.getFrom(), packet.getTo(), System.currentTimeMillis()));
-
-        log.info(packet.toString());
-
         if (plugin == null){
             log.info("No svc, cannot process");
             return null;
         }
 
+        plugin.getTracer().tracePacket(log, "iq.clientState", packet);
+
         final Element elem = packet.getChildElement();
         if (elem == null){
             return null;
@@ -139,14 +135,15 @@ public class ClientStateService extends IQHandler implements ServerFeaturesProvi
             if (sess instanceof LocalSession){
                 final LocalSession localSession = (LocalSession) sess;
                 localSession.setSessionData(INACTIVE_KEY, !active);
-                log.info(String.format("User %s set activity flag to %s", from, active));
+                plugin.getTracer().trace(log, active ? "clientState.active" : "clientState.inactive", from,
+                        "User %s set activity flag to %s", from, active);
 
                 if (active){
                     // Push all current presence updates to the user.
                     plugin.getPushSvc().sendPresenceInfoInTaskExecutor(from);
 
                     // Push all remote notifications so they are accepted by the application.
-                    plugin.getpPushSvc().triggerUserPushRecheck(Collections.singletonList(from.toBareJID()));
+                    plugin.getpPushSvc().triggerUserPushRecheckDebounced(Collections.singletonList(from.toBareJID()));
                 }
 
             } else {
@@ -181,7 +178,7 @@ public class ClientStateService extends IQHandler implements ServerFeaturesProvi
         }
 
         // Store activity record to the database to survive service restart & cache evictions. Do it in background.
-        plugin.submit("lastActivityStore", new JobRunnable() {
+        plugin.submit("lastActivityStore", uname, new JobRunnable() {
             @Override
             public void run(UserServicePlugin plugin, Job job) {
                 DbEntityManager.persistLastActivity(ar);
@@ -17,6 +17,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Basic database entity manager.
@@ -37,7 +38,11 @@ public class DbEntityManager {
     private static final String SQL_DELETE_PUSH_REQ_USR_ACTION_TIME="DELETE FROM "+DbPlatformPush.TABLE_NAME+" WHERE ofForUser=? AND ofMsgAction=? AND ofMsgTime<?";
     private static final String SQL_FETCH_PUSH_REQ_USERS_FMT="SELECT * FROM "+DbPlatformPush.TABLE_NAME+" WHERE (ofMsgExpire > NOW() OR ofMsgExpire IS NULL) AND ofForUser IN (%s)";
     private static final String SQL_FETCH_TOKENS_USERS_FMT="SELECT * FROM "+DbTokenConfig.TABLE_NAME+" WHERE ofUser IN (%s)";
+    private static final String SQL_FETCH_ALL_TOKENS="SELECT * FROM "+DbTokenConfig.TABLE_NAME;
     private static final String SQL_DELETE_TOKENS_FMT="DELETE FROM "+DbTokenConfig.TABLE_NAME+" WHERE ofDeviceToken IN (%s)";
+    private static final String SQL_COUNT_TOKEN="SELECT COUNT(*) FROM "+DbTokenConfig.TABLE_NAME+" WHERE ofDeviceToken=?";
+    private static final String SQL_DELETE_TOKEN="DELETE FROM "+DbTokenConfig.TABLE_NAME+" WHERE ofDeviceToken=?";
+    private static final String SQL_REPLACE_TOKEN="UPDATE "+DbTokenConfig.TABLE_NAME+" SET ofDeviceToken=? WHERE ofDeviceToken=?";
     private static final String SQL_CLEAN_PUSH_CREATE_TEMP_TABLE_FMT ="CREATE TEMPORARY TABLE IF NOT EXISTS cleanPlatformMessages AS (\n" +
             "SELECT tt.ofMsgId\n" +
             "FROM \n" +
@@ -424,6 +429,63 @@ public class DbEntityManager {
         return null;
     }
 
+    /**
+     * Stores multiple message ACKs to database in one transaction using JDBC batching.
+     * Previous ACK for the same (msgId, user, resource) is replaced.
+     *
+     * @param msgs
+     * @return number of stored ACKs, -1 on error.
+     */
+    public static int persistDbAcks(Collection<DbPushDelivery> msgs){
+        if (msgs == null || msgs.isEmpty()){
+            return 0;
+        }
+
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        PreparedStatement pstmtDelete = null;
+
+        final String q  = "INSERT INTO "+DbPushDelivery.TABLE_NAME+" VALUES (NULL, ?, ?, ?, ?, ?)";
+        final String dq = "DELETE FROM "+DbPushDelivery.TABLE_NAME+" WHERE msgId=? AND forUser=? AND forResource=?";
+        try {
+            con = DbConnectionManager.getConnection();
+            con.setAutoCommit(false);
+
+            pstmtDelete = con.prepareStatement(dq);
+            pstmt = con.prepareStatement(q);
+            for (DbPushDelivery msg : msgs) {
+                final String resource = msg.getResource() == null ? "" : msg.getResource();
+
+                pstmtDelete.setLong(1, msg.getPushMessageId());
+                pstmtDelete.setString(2, msg.getUser());
+                pstmtDelete.setString(3, resource);
+                pstmtDelete.addBatch();
+
+                pstmt.setLong(1, msg.getPushMessageId());
+                pstmt.setTimestamp(2, new Timestamp(msg.getTstamp()));
+                pstmt.setString(3, msg.getUser());
+                pstmt.setString(4, resource);
+                pstmt.setInt(5, msg.getStatus());
+                pstmt.addBatch();
+            }
+
+            pstmtDelete.executeBatch();
+            pstmt.executeBatch();
+            con.commit();
+            return msgs.size();
+        }
+        catch (SQLException e) {
+            log.error(e.getMessage(), e);
+            rollback(con);
+        }
+        finally {
+            DbConnectionManager.closeStatement(pstmtDelete);
+            DbConnectionManager.closeConnection(pstmt, con);
+        }
+
+        return -1;
+    }
+
     /**
      * Stores message ACK to database.
      * @param tokenConfig
@@ -511,6 +573,62 @@ public class DbEntityManager {
         return affected;
     }
 
+    /**
+     * Replaces tokens with their canonical values in one transaction.
+     * If the canonical token is already stored, the old token is deleted instead to avoid duplicate sending.
+     *
+     * @param canonical old token -> canonical token.
+     * @return number of affected rows.
+     */
+    public static int replaceTokens(Map<String, String> canonical){
+        if (canonical == null || canonical.isEmpty()){
+            return 0;
+        }
+
+        int affected = 0;
+        Connection con = null;
+        PreparedStatement pstmtCount = null;
+        PreparedStatement pstmtDelete = null;
+        PreparedStatement pstmtUpdate = null;
+        try {
+            con = DbConnectionManager.getConnection();
+            con.setAutoCommit(false);
+            pstmtCount = con.prepareStatement(SQL_COUNT_TOKEN);
+            pstmtDelete = con.prepareStatement(SQL_DELETE_TOKEN);
+            pstmtUpdate = con.prepareStatement(SQL_REPLACE_TOKEN);
+
+            for (Map.Entry<String, String> e : canonical.entrySet()) {
+                pstmtCount.setString(1, e.getValue());
+                final ResultSet rs = pstmtCount.executeQuery();
+                final boolean exists = rs.next() && rs.getInt(1) > 0;
+                rs.close();
+
+                if (exists){
+                    pstmtDelete.setString(1, e.getKey());
+                    affected += pstmtDelete.executeUpdate();
+                } else {
+                    pstmtUpdate.setString(1, e.getValue());
+                    pstmtUpdate.setString(2, e.getKey());
+                    affected += pstmtUpdate.executeUpdate();
+                }
+            }
+
+            con.commit();
+        }
+        catch (SQLException e) {
+            log.error(e.getMessage(), e);
+            rollback(con);
+            affected = 0;
+        }
+        finally {
+            DbConnectionManager.closeStatement(pstmtCount);
+            DbConnectionManager.closeStatement(pstmtDelete);
+            DbConnectionManager.closeConnection(null, pstmtUpdate, con);
+        }
+
+        return affected;
+    }
+
     /**
      * Loads list of all tokens related to the given users.
      * @param users
@@ -557,6 +675,37 @@ public class DbEntityManager {
         return tokens;
     }
 
+    /**
+     * Loads all stored tokens.
+     * @return null on error.
+     */
+    public static List<TokenConfig> loadAllTokens(){
+        List<TokenConfig> tokens = new ArrayList<TokenConfig>();
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            con = DbConnectionManager.getConnection();
+            pstmt = con.prepareStatement(SQL_FETCH_ALL_TOKENS);
+            rs = pstmt.executeQuery();
+            while (rs.next()) {
+                final TokenConfig token = tokenFromRes(rs);
+                if (token != null){
+                    tokens.add(token);
+                }
+            }
+        }
+        catch (SQLException e) {
+            log.error(e.getMessage(), e);
+            tokens = null;
+        }
+        finally {
+            DbConnectionManager.closeConnection(rs, pstmt, con);
+        }
+
+        return tokens;
+    }
+
     /**
      * Stores last activity record to the database.
      * @param ar ActivityRecord to store to the database.
@@ -691,7 +840,20 @@ public class DbEntityManager {
      * @param req
      */
     public static boolean persistNewPushRequest(PushRequest parent, PushRequestMessage req){
+        return persistNewPushRequest(parent, req, null);
+    }
+
+    /**
+     * Persists current push message request to the database.
+     * If record is given and the message is inserted, record gets the generated message id.
+     *
+     * @param parent
+     * @param req
+     * @param record record of the inserted message, may be null.
+     */
+    public static boolean persistNewPushRequest(PushRequest parent, PushRequestMessage req, DbPlatformPush record){
         Connection con = null;
+        ResultSet rsKeys = null;
         PreparedStatement pstmt = null;
         PreparedStatement pstmtDelete = null;
 
@@ -731,7 +893,7 @@ public class DbEntityManager {
 
             // In case of cancellation, do not insert a new record.
             if (!req.isCancel()){
-                pstmt = con.prepareStatement(q);
+                pstmt = con.prepareStatement(q, Statement.RETURN_GENERATED_KEYS);
                 pstmt.setString(1, key != null && !key.isEmpty() ? key : null);
                 pstmt.setString(2, req.getAction());
                 pstmt.setTimestamp(3, new Timestamp(parent.getTstamp()));
@@ -756,6 +918,11 @@ public class DbEntityManager {
                 pstmt.setString(16, req.getAux2());
                 pstmt.setString(17, null);
                 pstmt.executeUpdate();
+
+                if (record != null){
+                    rsKeys = pstmt.getGeneratedKeys();
+                    record.setId(rsKeys.next() ? rsKeys.getLong(1) : null);
+                }
             }
 
             con.commit();
@@ -771,7 +938,7 @@ public class DbEntityManager {
                 DbConnectionManager.closeStatement(pstmtDelete);
             }
 
-            DbConnectionManager.closeConnection(null, pstmt, con);
+            DbConnectionManager.closeConnection(rsKeys, pstmt, con);
         }
     }
 
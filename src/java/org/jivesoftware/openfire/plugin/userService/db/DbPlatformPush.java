@@ -1,6 +1,8 @@
 package org.jivesoftware.openfire.plugin.userService.db;
 
 import org.jivesoftware.openfire.plugin.userService.platformPush.TokenConfig;
+import org.jivesoftware.openfire.plugin.userService.platformPush.reqMessage.PushRequest;
+import org.jivesoftware.openfire.plugin.userService.platformPush.reqMessage.PushRequestMessage;
 import org.xmpp.packet.JID;
 
 import javax.xml.transform.Result;
@@ -55,6 +57,46 @@ public class DbPlatformPush {
     public DbPlatformPush() {
     }
 
+    /**
+     * Builds record of the push request message as it is stored to the database by persistNewPushRequest().
+     * Id is not set.
+     * @param parent
+     * @param req
+     * @return
+     */
+    public static DbPlatformPush createFromRequest(PushRequest parent, PushRequestMessage req){
+        final JID user = parent.getFromUser();
+        final String key = req.getKey();
+
+        DbPlatformPush pp = new DbPlatformPush();
+        pp.setKey(key != null && !key.isEmpty() ? key : null);
+        pp.setAction(req.getAction());
+        pp.setTime(parent.getTstamp());
+        pp.setExpiration(req.getExpiration());
+        pp.setForUser(req.getToUser().toBareJID());
+        pp.setForResource(req.getToUser().getResource());
+        pp.setFromUser(user.toBareJID());
+        pp.setFromResource(user.getResource());
+        pp.setType(req.getMessageType());
+        pp.setDurable(true);
+        pp.setUnique(req.isUnique());
+        pp.setAckWait(req.requiresAck());
+        pp.setPriority(req.getPriority());
+        pp.setAlertKey(req.getAlertKey());
+        pp.setAux1(req.getAux1());
+        pp.setAux2(req.getAux2());
+        return pp;
+    }
+
+    /**
+     * Returns true if the message is expired at the given time.
+     * @param now
+     * @return
+     */
+    public boolean isExpired(long now){
+        return expiration != null && time + expiration <= now;
+    }
+
     /**
      * Loads data from the given result set.
      * @param rs
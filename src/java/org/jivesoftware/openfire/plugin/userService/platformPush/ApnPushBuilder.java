@@ -17,10 +17,16 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Builder for payload building for the Apple push notifications.
  *
+ * Building has two phases. Aggregation groups the push requests of the user, computes badges, priorities and
+ * the phx part of the payload, once per message set. Rendering localizes alert strings and builds the final
+ * payload per token. Rendered payloads are cached by (message set version, language list, platform), so
+ * tokens with the same languages share one rendering.
+ *
  * Created by dusanklinec on 17.07.15.
  */
 public class ApnPushBuilder {
@@ -83,6 +89,20 @@ public class ApnPushBuilder {
     protected TokenConfig currentToken;
     protected StringsManager strings;
 
+    // Set on the first confirmed send of the payload to any of the tokens.
+    private final AtomicBoolean sendConfirmed = new AtomicBoolean(false);
+
+    // Aggregation state, valid for the current message set version.
+    protected int messageSetVersion = 0;
+    protected int aggregatedVersion = -1;
+    protected List<MsgHolder> msgsByPriority;
+    protected List<MsgHolder> msgsByTimestamp;
+
+    // Rendered payloads: version|platform|langs -> payload.
+    protected final Map<String, RenderedPayload> renderCache = new HashMap<String, RenderedPayload>();
+    protected int renders = 0;
+    protected int renderCacheHits = 0;
+
     // Alert tags
     boolean newMsg = false;
     boolean newMissed = false;
@@ -95,9 +115,14 @@ public class ApnPushBuilder {
      * Grouping, processing of the input messages.
      */
     protected void preprocess(){
-        // Reset old badges count.
+        // Reset state of the previous message set.
         totalBadge = 0;
+        totalUrgency = PushRequestMessage.URGENCY_MIN;
+        topAlert = null;
+        actionMap.clear();
         actionBadge.clear();
+        actionTime.clear();
+        actionPush.clear();
         for(DbPlatformPush ppush : pushMessagesList){
             final String action = ppush.getAction();
             List<MsgHolder> lstToUse = null;
@@ -192,16 +217,11 @@ public class ApnPushBuilder {
      * BBuilds string description
      */
     public void buildAlertString(){
-        processAlertTags();
-
-        // A new list, sorted by priority and time stamp.
-        List<MsgHolder> msgsByPriority = new ArrayList<MsgHolder>(actionPush.values());
-        List<MsgHolder> msgsByTimestamp = new ArrayList<MsgHolder>(actionPush.values());
-        Collections.sort(msgsByPriority, new PushMsgPriorityComparator());
-        Collections.sort(msgsByTimestamp, new PushMsgTimestampComparator());
+        alertString = null;
+        alertStringBody = null;
 
         // Prepare default title, just in case.
-        final List<Locale> locales = StringsManager.getLocales(currentToken.getLangs());
+        final List<Locale> locales = StringsManager.getLocales(currentToken == null ? null : currentToken.getLangs());
         buildDefaultAlertString(locales);
 
         // Building alert tile -> default if empty list.
@@ -296,17 +316,25 @@ public class ApnPushBuilder {
     }
 
     /**
-     * Build apple push.
+     * Aggregation phase, once per message set.
+     * Groups messages, computes badges and priorities, builds locale independent phx payload.
      */
-    public void buildForToken(TokenConfig token) throws JSONException {
-        currentToken = token;
+    public void aggregate() throws JSONException {
+        if (aggregatedVersion == messageSetVersion){
+            return;
+        }
 
         // Group, categorize, compute priorities.
         preprocess();
 
         // Generate total alert name.
         buildAlertStringKey();
-        buildAlertString();
+
+        // Lists sorted by priority and time stamp, for alert strings.
+        msgsByPriority = new ArrayList<MsgHolder>(actionPush.values());
+        msgsByTimestamp = new ArrayList<MsgHolder>(actionPush.values());
+        Collections.sort(msgsByPriority, new PushMsgPriorityComparator());
+        Collections.sort(msgsByTimestamp, new PushMsgTimestampComparator());
 
         // Build custom JSON notification.
         JSONObject root = new JSONObject();
@@ -328,6 +356,43 @@ public class ApnPushBuilder {
         root.put("msg", pushArr);
         jsonPhxPushPayload = root;
         phxPushPayload = root.toString();
+        renderCache.clear();
+        aggregatedVersion = messageSetVersion;
+    }
+
+    /**
+     * Build apple push for the token. Aggregation is done on the first call, payload rendered for the
+     * token languages is reused for other tokens with the same languages and platform.
+     */
+    public void buildForToken(TokenConfig token) throws JSONException {
+        currentToken = token;
+        aggregate();
+
+        final String cacheKey = messageSetVersion + "|"
+                + (token == null ? "" : token.getPlatform()) + "|"
+                + (token == null ? "" : token.getLangList());
+
+        RenderedPayload rendered = renderCache.get(cacheKey);
+        if (rendered == null){
+            rendered = render();
+            renderCache.put(cacheKey, rendered);
+            renders += 1;
+        } else {
+            renderCacheHits += 1;
+        }
+
+        alertString = rendered.alertString;
+        alertStringBody = rendered.alertStringBody;
+        jsonPayload = rendered.jsonPayload;
+        payload = rendered.payload;
+    }
+
+    /**
+     * Rendering phase, localizes alert strings for the current token and builds the final payload.
+     * @return
+     */
+    protected RenderedPayload render() throws JSONException {
+        buildAlertString();
 
         // Build general APN payload.
         final String tmpPayload = APNS.newPayload()
@@ -337,9 +402,25 @@ public class ApnPushBuilder {
                 .build();
 
         // Parse general payload, build JSON.
-        jsonPayload = new JSONObject(tmpPayload);
-        jsonPayload.put("phx", root);
-        payload = jsonPayload.toString();
+        final RenderedPayload rendered = new RenderedPayload();
+        rendered.alertString = alertString;
+        rendered.alertStringBody = alertStringBody;
+        rendered.jsonPayload = new JSONObject(tmpPayload);
+        rendered.jsonPayload.put("phx", jsonPhxPushPayload);
+        rendered.payload = rendered.jsonPayload.toString();
+        return rendered;
+    }
+
+    /**
+     * Marks payload of this builder as delivered to the push service.
+     * @return true only for the first confirmation.
+     */
+    public boolean confirmSend(){
+        return sendConfirmed.compareAndSet(false, true);
+    }
+
+    public boolean isSendConfirmed(){
+        return sendConfirmed.get();
     }
 
     public String getUser() {
@@ -366,9 +447,18 @@ public class ApnPushBuilder {
 
     public ApnPushBuilder setPushMessagesList(List<DbPlatformPush> pushMessagesList) {
         this.pushMessagesList = pushMessagesList;
+        this.messageSetVersion += 1;
         return this;
     }
 
+    public int getRenders() {
+        return renders;
+    }
+
+    public int getRenderCacheHits() {
+        return renderCacheHits;
+    }
+
     public String getAlertStringKey() {
         return alertStringKey;
     }
@@ -499,4 +589,14 @@ public class ApnPushBuilder {
                     '}';
         }
     }
+
+    /**
+     * Payload rendered for one language list and platform.
+     */
+    protected static class RenderedPayload {
+        private String alertString;
+        private String alertStringBody;
+        private JSONObject jsonPayload;
+        private String payload;
+    }
 }
@@ -0,0 +1,398 @@
+package org.jivesoftware.openfire.plugin.userService.platformPush;
+
+import org.jivesoftware.openfire.plugin.userService.db.DbEntityManager;
+import org.jivesoftware.openfire.plugin.userService.db.DbPlatformPush;
+import org.jivesoftware.openfire.plugin.userService.platformPush.ackMessage.PushAck;
+import org.jivesoftware.openfire.plugin.userService.platformPush.ackMessage.PushAckMessage;
+import org.jivesoftware.openfire.plugin.userService.platformPush.reqMessage.PushRequest;
+import org.jivesoftware.openfire.plugin.userService.platformPush.reqMessage.PushRequestMessage;
+import org.jivesoftware.openfire.plugin.userService.utils.LRUCache;
+import org.jivesoftware.util.JiveGlobals;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-through in-memory store of pending platform push messages, per destination user.
+ * Database is used only for durability and for loading a user not in the store (cold start, evicted user).
+ *
+ * Each database modification is mirrored to the store after it is committed, with the same matching rules as SQL.
+ * Users not loaded in the store are skipped, they load the current state from the database on next access.
+ * Loading a user holds the user lock, so a modification committed during the load is either seen by the SELECT
+ * or applied after the load.
+ *
+ * Created by dusanklinec on 18.10.16.
+ */
+public class PendingPushStore {
+    private static final Logger log = LoggerFactory.getLogger(PendingPushStore.class);
+
+    /**
+     * Maximal number of users kept in the store, least recently used users are evicted.
+     */
+    public static final String PROP_USERS = "phonex.push.pendingUsers";
+    public static final int DEFAULT_USERS = 4096;
+
+    private LRUCache<String, PendingUser> users = new LRUCache<String, PendingUser>(DEFAULT_USERS);
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong loads = new AtomicLong(0);
+
+    public void init(){
+        users = new LRUCache<String, PendingUser>(Math.max(16, JiveGlobals.getIntProperty(PROP_USERS, DEFAULT_USERS)));
+    }
+
+    public void deinit(){
+        users.clear();
+    }
+
+    /**
+     * Returns non-expired pending messages for given users, grouped by user. Users without messages are omitted.
+     * Users not in the store are loaded from the database.
+     * @param toUsers bare JIDs
+     * @return
+     */
+    public Map<String, List<DbPlatformPush>> getPending(Collection<String> toUsers){
+        final Map<String, List<DbPlatformPush>> ret = new HashMap<String, List<DbPlatformPush>>();
+        if (toUsers == null){
+            return ret;
+        }
+
+        final long now = System.currentTimeMillis();
+        for (String user : toUsers) {
+            final PendingUser pu = getOrCreate(user);
+            synchronized (pu){
+                if (!pu.loaded){
+                    pu.msgs.clear();
+                    pu.msgs.addAll(DbEntityManager.loadPushRequestMessages(Collections.singletonList(user)));
+                    pu.loaded = true;
+                    loads.incrementAndGet();
+                } else {
+                    hits.incrementAndGet();
+                }
+
+                // Expired messages are not loaded from DB either.
+                final Iterator<DbPlatformPush> it = pu.msgs.iterator();
+                while(it.hasNext()){
+                    if (it.next().isExpired(now)){
+                        it.remove();
+                    }
+                }
+
+                if (!pu.msgs.isEmpty()){
+                    ret.put(user, new ArrayList<DbPlatformPush>(pu.msgs));
+                }
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * New push request message was persisted, mirrors DbEntityManager.persistNewPushRequest().
+     * @param parent
+     * @param req
+     * @param record inserted record with id set, null if nothing was inserted.
+     */
+    public void onPersisted(PushRequest parent, PushRequestMessage req, DbPlatformPush record){
+        final String fromUser = parent.getFromUser().toBareJID();
+        final String fromResource = parent.getFromUser().getResource();
+        final String toUser = req.getToUser().toBareJID();
+        final String key = req.getKey();
+
+        if (req.isCancel() || req.isUnique()){
+            if (key != null && !key.isEmpty() && req.isCancel()) {
+                // Deletion by key is not limited to the destination user.
+                for (Map.Entry<String, PendingUser> e : users.getAll()) {
+                    final PendingUser pu = e.getValue();
+                    synchronized (pu){
+                        final Iterator<DbPlatformPush> it = pu.msgs.iterator();
+                        while(it.hasNext()){
+                            final DbPlatformPush msg = it.next();
+                            if (sqlEq(fromUser, msg.getFromUser()) && sqlEq(fromResource, msg.getFromResource()) && sqlEq(key, msg.getKey())){
+                                it.remove();
+                            }
+                        }
+                    }
+                }
+
+            } else {
+                final PendingUser pu = getLoaded(toUser);
+                if (pu != null){
+                    synchronized (pu){
+                        final Iterator<DbPlatformPush> it = pu.msgs.iterator();
+                        while(it.hasNext()){
+                            final DbPlatformPush msg = it.next();
+                            if (sqlEq(fromUser, msg.getFromUser()) && sqlEq(fromResource, msg.getFromResource())
+                                    && sqlEq(req.getAction(), msg.getAction())){
+                                it.remove();
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        if (record == null){
+            return;
+        }
+
+        final PendingUser pu = getLoaded(toUser);
+        if (pu == null){
+            return;
+        }
+
+        synchronized (pu){
+            if (record.getId() == null){
+                // Id unknown, could not be deleted by id later. Reload.
+                invalidate(pu);
+                return;
+            }
+
+            for (DbPlatformPush msg : pu.msgs) {
+                if (record.getId().equals(msg.getId())){
+                    return;
+                }
+            }
+
+            pu.msgs.add(record);
+        }
+    }
+
+    /**
+     * Push ACK was persisted, mirrors DbEntityManager.persistPushAck() with expiration.
+     * @param ack
+     */
+    public void onAck(PushAck ack){
+        if (ack == null || ack.getFromUser() == null || ack.getMessages() == null){
+            return;
+        }
+
+        final PendingUser pu = getLoaded(ack.getFromUser().toBareJID());
+        if (pu == null){
+            return;
+        }
+
+        // Same deletion criteria as for the database.
+        final Set<String> keys = new HashSet<String>();
+        final Map<String, Long> actionTimes = new HashMap<String, Long>();
+        for (PushAckMessage msg : ack.getMessages()) {
+            final String key = msg.getKey();
+            if (key != null && !key.isEmpty()){
+                keys.add(key);
+            }
+
+            final Long timestamp = msg.getTimestamp();
+            String action = msg.getAction();
+            if (timestamp == null || timestamp < 100 || action == null || action.isEmpty()){
+                continue;
+            }
+
+            if (msg.getMsgRef() != null){
+                action = msg.getMsgRef().getAction();
+            }
+
+            final Long prev = actionTimes.get(action);
+            if (prev == null || prev < timestamp){
+                actionTimes.put(action, timestamp);
+            }
+        }
+
+        final long now = System.currentTimeMillis();
+        synchronized (pu){
+            final Iterator<DbPlatformPush> it = pu.msgs.iterator();
+            while(it.hasNext()){
+                final DbPlatformPush msg = it.next();
+                final Long ackTime = msg.getAction() == null ? null : actionTimes.get(msg.getAction());
+                if (msg.isExpired(now)
+                        || (msg.getKey() != null && keys.contains(msg.getKey()))
+                        || (ackTime != null && msg.getTime() <= ackTime)){
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Messages without ACK wait were deleted after sending, mirrors DbEntityManager.deleteNoAckWaitPushRequests().
+     * @param user
+     * @param sent
+     */
+    public void onNoAckWaitDeleted(String user, Collection<DbPlatformPush> sent){
+        final PendingUser pu = getLoaded(user);
+        if (pu == null || sent == null){
+            return;
+        }
+
+        final Set<Long> ids = new HashSet<Long>();
+        for (DbPlatformPush msg : sent) {
+            if (!msg.isAckWait()){
+                ids.add(msg.getId());
+            }
+        }
+
+        if (ids.isEmpty()){
+            return;
+        }
+
+        synchronized (pu){
+            final Iterator<DbPlatformPush> it = pu.msgs.iterator();
+            while(it.hasNext()){
+                if (ids.contains(it.next().getId())){
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Messages older than given time were deleted, mirrors DbEntityManager.deletePushRequestsOlderThan().
+     * @param user
+     * @param action
+     * @param timestamp
+     */
+    public void onDeletedOlderThan(String user, String action, long timestamp){
+        final PendingUser pu = getLoaded(user);
+        if (pu == null){
+            return;
+        }
+
+        synchronized (pu){
+            final Iterator<DbPlatformPush> it = pu.msgs.iterator();
+            while(it.hasNext()){
+                final DbPlatformPush msg = it.next();
+                if (sqlEq(action, msg.getAction()) && msg.getTime() <= timestamp){
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Only topN newest messages were kept for the user and action, mirrors DbEntityManager.cleanDbPushRequestDb().
+     * @param user
+     * @param action
+     * @param topN
+     */
+    public void onCleaned(String user, String action, int topN){
+        final PendingUser pu = getLoaded(user);
+        if (pu == null){
+            return;
+        }
+
+        synchronized (pu){
+            final List<DbPlatformPush> forAction = new ArrayList<DbPlatformPush>();
+            for (DbPlatformPush msg : pu.msgs) {
+                if (sqlEq(action, msg.getAction())){
+                    forAction.add(msg);
+                }
+            }
+
+            if (forAction.size() <= topN){
+                return;
+            }
+
+            // Messages older than (topN+1)-th newest one are deleted.
+            Collections.sort(forAction, new Comparator<DbPlatformPush>() {
+                @Override
+                public int compare(DbPlatformPush o1, DbPlatformPush o2) {
+                    return o1.getTime() < o2.getTime() ? 1 : (o1.getTime() > o2.getTime() ? -1 : 0);
+                }
+            });
+
+            final long threshold = forAction.get(topN).getTime();
+            final Iterator<DbPlatformPush> it = pu.msgs.iterator();
+            while(it.hasNext()){
+                final DbPlatformPush msg = it.next();
+                if (sqlEq(action, msg.getAction()) && msg.getTime() < threshold){
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Database was modified in a way not mirrored to the store, all users are reloaded on next access.
+     */
+    public void invalidateAll(){
+        for (Map.Entry<String, PendingUser> e : users.getAll()) {
+            final PendingUser pu = e.getValue();
+            synchronized (pu){
+                invalidate(pu);
+            }
+        }
+    }
+
+    private void invalidate(PendingUser pu){
+        pu.loaded = false;
+        pu.msgs.clear();
+    }
+
+    private PendingUser getOrCreate(String user){
+        synchronized (users){
+            PendingUser pu = users.get(user);
+            if (pu == null){
+                pu = new PendingUser();
+                users.put(user, pu);
+            }
+
+            return pu;
+        }
+    }
+
+    /**
+     * Returns user record if the user is loaded. Has to be called after the database modification is committed.
+     * @param user
+     * @return
+     */
+    private PendingUser getLoaded(String user){
+        if (user == null){
+            return null;
+        }
+
+        final PendingUser pu = users.get(user);
+        if (pu == null){
+            return null;
+        }
+
+        synchronized (pu){
+            return pu.loaded ? pu : null;
+        }
+    }
+
+    /**
+     * SQL equality, NULL is not equal to anything.
+     */
+    private static boolean sqlEq(String a, String b){
+        return a != null && a.equals(b);
+    }
+
+    public int getUsers(){
+        return users.size();
+    }
+
+    public long getHits(){
+        return hits.get();
+    }
+
+    public long getLoads(){
+        return loads.get();
+    }
+
+    /**
+     * Pending messages of one user, guarded by itself.
+     */
+    private static class PendingUser {
+        private boolean loaded = false;
+        private final List<DbPlatformPush> msgs = new ArrayList<DbPlatformPush>();
+    }
+}
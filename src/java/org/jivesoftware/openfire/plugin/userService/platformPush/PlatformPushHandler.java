@@ -1,11 +1,10 @@
 package org.jivesoftware.openfire.plugin.userService.platformPush;
 
+import com.google.android.gcm.server.Constants;
 import com.google.android.gcm.server.Message;
 import com.google.android.gcm.server.Result;
-import com.notnoop.apns.APNS;
 import com.notnoop.apns.ApnsService;
 import com.notnoop.apns.EnhancedApnsNotification;
-import com.notnoop.exceptions.NetworkIOException;
 import org.dom4j.Element;
 import org.jivesoftware.openfire.IQHandlerInfo;
 import org.jivesoftware.openfire.IQRouter;
@@ -14,11 +13,19 @@ import org.jivesoftware.openfire.auth.UnauthorizedException;
 import org.jivesoftware.openfire.disco.ServerFeaturesProvider;
 import org.jivesoftware.openfire.handler.IQHandler;
 import org.jivesoftware.openfire.plugin.UserServicePlugin;
+import org.jivesoftware.openfire.plugin.userService.CoalescingJobRunnable;
 import org.jivesoftware.openfire.plugin.userService.Job;
 import org.jivesoftware.openfire.plugin.userService.JobRunnable;
+import org.jivesoftware.openfire.plugin.userService.TaskExecutor;
 import org.jivesoftware.openfire.plugin.userService.clientState.ClientStateService;
 import org.jivesoftware.openfire.plugin.userService.db.DbEntityManager;
 import org.jivesoftware.openfire.plugin.userService.db.DbPlatformPush;
+import org.jivesoftware.openfire.plugin.userService.platformPush.apn.ApnDispatcher;
+import org.jivesoftware.openfire.plugin.userService.platformPush.apn.ApnSendCallback;
+import org.jivesoftware.openfire.plugin.userService.platformPush.apn.ApnSendRecord;
+import org.jivesoftware.openfire.plugin.userService.platformPush.gcm.GcmCircuitBreaker;
+import org.jivesoftware.openfire.plugin.userService.platformPush.gcm.GcmRateLimiter;
+import org.jivesoftware.openfire.plugin.userService.platformPush.gcm.GcmRetryScheduler;
 import org.jivesoftware.openfire.plugin.userService.platformPush.gcm.GcmSendRecord;
 import org.jivesoftware.openfire.plugin.userService.platformPush.gcm.GcmSender;
 import org.jivesoftware.openfire.plugin.userService.platformPush.ackMessage.PushAck;
@@ -31,6 +38,7 @@ import org.jivesoftware.openfire.plugin.userService.push.AckMergeRecord;
 import org.jivesoftware.openfire.plugin.userService.push.PushSendRecord;
 import org.jivesoftware.openfire.plugin.userService.utils.LRUCache;
 import org.jivesoftware.openfire.plugin.userService.utils.MiscUtils;
+import org.jivesoftware.util.JiveGlobals;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.slf4j.Logger;
@@ -39,7 +47,7 @@ import org.xmpp.packet.IQ;
 import org.xmpp.packet.JID;
 
 import java.util.*;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.notnoop.apns.EnhancedApnsNotification.*;
 
@@ -50,9 +58,34 @@ import static com.notnoop.apns.EnhancedApnsNotification.*;
 public class PlatformPushHandler extends IQHandler implements ServerFeaturesProvider, LRUCache.LRUCacheEvictionListener<String, PushMsgCacheCleanRec> {
     private static final Logger log = LoggerFactory.getLogger(PlatformPushHandler.class);
     private static final int MAX_REC_PER_USER_ACTION = 100;
+    private static final String APN_CERT_DEVEL = "/home/phonex/keys/apn_devel02.p12";
+    private static final String APN_CERT_PROD = "/home/phonex/keys/apn_prod02.p12";
+    private static final String APN_CERT_PASS = "seeGiengoow5";
+
+    /**
+     * Maximum number of new records in the GCM send queue. Retries of already queued records are not limited.
+     */
+    public static final String PROP_GCM_QUEUE_CAPACITY = "phonex.push.gcmQueueCapacity";
+    public static final int DEFAULT_GCM_QUEUE_CAPACITY = 10000;
+
+    /**
+     * Number of GCM worker threads.
+     */
+    public static final String PROP_GCM_WORKERS = "phonex.gcm.workers";
+    public static final int DEFAULT_GCM_WORKERS = 4;
+
+    /**
+     * Maximum number of GCM HTTP requests per second, all workers together. 0 disables the limit.
+     */
+    public static final String PROP_GCM_RATE_LIMIT = "phonex.gcm.rateLimit";
+    public static final int DEFAULT_GCM_RATE_LIMIT = 50;
 
     private UserServicePlugin plugin;
-    private final LRUCache<JID, TokenConfig> tokenCache = new LRUCache<JID, TokenConfig>(128);
+
+    /**
+     * Registry of device tokens, token resolution on the push path without database access.
+     */
+    private final TokenCache tokenCache = new TokenCache();
 
     /**
      * Best effor cache for last X push request messages stored in the database.
@@ -67,22 +100,59 @@ public class PlatformPushHandler extends IQHandler implements ServerFeaturesProv
      */
     private final LRUCache<String, PushMsgCacheCleanRec> pushMsgCleanCache = new LRUCache<String, PushMsgCacheCleanRec>(1024);
 
+    /**
+     * Pending push request messages per destination user, write-through, database is read only on cold start.
+     */
+    private final PendingPushStore pendingStore = new PendingPushStore();
+
+    /**
+     * Aggregation window for push rechecks.
+     */
+    private PushRecheckDebouncer recheckDebouncer;
+
     /**
      * Apple push notification service
      */
     private ApnsService apnSvcProd;
     private ApnsService apnSvcDevel;
 
+    /**
+     * Asynchronous APN dispatch, pool of gateway connections per environment.
+     */
+    private ApnDispatcher apnProd;
+    private ApnDispatcher apnDevel;
+    private final ApnSendCallback apnCallback = new ApnSendCallback() {
+        @Override
+        public void onApnSent(ApnSendRecord rec) {
+            log.debug(String.format("APN sent %s", rec));
+            resultProcessor.onSendConfirmed(rec.getBuilder());
+        }
+
+        @Override
+        public void onApnFailed(ApnSendRecord rec, Throwable cause) {
+            log.warn(String.format("APN sending failed %s", rec), cause);
+        }
+    };
+
+    /**
+     * Batch processing of send results - non-ACK requests deletion, token maintenance.
+     */
+    private PushResultProcessor resultProcessor;
+
     /**
      * Apple push notification feedback service watcher - detection of invalid tokens.
      */
     private ApnFeedbackWatcher apnFeedbackWatcher;
 
     /**
-     * Sender thread for GCM communication.
+     * Sender threads for GCM communication, sharing GCM availability state and request rate.
      */
-    private GcmSender gcmSender;
-    private final PriorityBlockingQueue<GcmSendRecord> gcmQueue = new PriorityBlockingQueue<GcmSendRecord>();
+    private final List<GcmSender> gcmSenders = new ArrayList<GcmSender>();
+    private final GcmCircuitBreaker gcmCircuit = new GcmCircuitBreaker();
+    private GcmRateLimiter gcmRateLimiter;
+    private final GcmRetryScheduler gcmScheduler = new GcmRetryScheduler();
+    private int gcmQueueCapacity = DEFAULT_GCM_QUEUE_CAPACITY;
+    private final AtomicLong gcmShed = new AtomicLong(0);
 
     public PlatformPushHandler(UserServicePlugin plugin) {
         super("ClientStateService");
@@ -92,36 +162,44 @@ public class PlatformPushHandler extends IQHandler implements ServerFeaturesProv
     public void init() {
         IQRouter iqRouter = XMPPServer.getInstance().getIQRouter();
         iqRouter.addHandler(this);
-        tokenCache.clear();
+        tokenCache.init();
+        tokenCache.warm();
         messageKeyCache.clear();
         pushMsgCleanCache.clear();
         pushMsgCleanCache.setEvictionListener(this);
+        pendingStore.init();
+        recheckDebouncer = new PushRecheckDebouncer(this);
+        recheckDebouncer.start();
+        gcmQueueCapacity = Math.max(16, JiveGlobals.getIntProperty(PROP_GCM_QUEUE_CAPACITY, DEFAULT_GCM_QUEUE_CAPACITY));
         apnFeedbackWatcher = new ApnFeedbackWatcher(this);
+        resultProcessor = new PushResultProcessor(this);
+        resultProcessor.start();
         cleanPushMsgDb();
 
         try {
-            apnSvcDevel = APNS.newService()
-                    .withCert("/home/phonex/keys/apn_devel02.p12", "seeGiengoow5")
-                    .withSandboxDestination()
-                    .build();
-
-            apnSvcProd = APNS.newService()
-                    .withCert("/home/phonex/keys/apn_prod02.p12", "seeGiengoow5")
-                    .withProductionDestination()
-                    .build();
+            apnDevel = new ApnDispatcher("devel", true, APN_CERT_DEVEL, APN_CERT_PASS, apnCallback);
+            apnProd = new ApnDispatcher("prod", false, APN_CERT_PROD, APN_CERT_PASS, apnCallback);
+            apnSvcDevel = apnDevel.newFeedbackService();
+            apnSvcProd = apnProd.newFeedbackService();
+            apnDevel.start();
+            apnProd.start();
 
             apnFeedbackWatcher.start();
             log.info("APN service started");
 
         } catch(Exception e){
-            apnSvcDevel = null;
-            apnSvcProd = null;
             log.error("Cannot initialize Apple push notification library", e);
+            stopApn();
         }
 
         try {
-            gcmSender = new GcmSender(this, plugin);
-            gcmSender.start();
+            gcmRateLimiter = new GcmRateLimiter(JiveGlobals.getIntProperty(PROP_GCM_RATE_LIMIT, DEFAULT_GCM_RATE_LIMIT));
+            final int workers = Math.max(1, JiveGlobals.getIntProperty(PROP_GCM_WORKERS, DEFAULT_GCM_WORKERS));
+            for(int i = 0; i < workers; i++){
+                final GcmSender gcmSender = new GcmSender(this, plugin, i);
+                gcmSenders.add(gcmSender);
+                gcmSender.start();
+            }
 
         } catch(Exception e){
             log.error("Exception in GCM initialization");
@@ -129,12 +207,43 @@ public class PlatformPushHandler extends IQHandler implements ServerFeaturesProv
     }
 
     public void deinit(){
-        tokenCache.clear();
+        tokenCache.deinit();
         messageKeyCache.clear();
         pushMsgCleanCache.clear();
         pushMsgCleanCache.setEvictionListener(null);
+        pendingStore.deinit();
+        recheckDebouncer.deinit();
         apnFeedbackWatcher.deinit();
-        gcmSender.deinit();
+        resultProcessor.deinit();
+        for (GcmSender gcmSender : gcmSenders) {
+            gcmSender.deinit();
+        }
+        gcmSenders.clear();
+
+        stopApn();
+
+        // Remove this as IQ listener.
+        try {
+            IQRouter iqRouter = XMPPServer.getInstance().getIQRouter();
+            iqRouter.removeHandler(this);
+        } catch (Exception ex) {
+            log.error("Could not unregister from IQ router", ex);
+        }
+    }
+
+    /**
+     * Stops APN dispatchers and feedback services, also the partially initialized ones.
+     */
+    private void stopApn(){
+        if (apnProd != null){
+            apnProd.deinit();
+            apnProd = null;
+        }
+
+        if (apnDevel != null){
+            apnDevel.deinit();
+            apnDevel = null;
+        }
 
         try {
             if (apnSvcProd != null){
@@ -152,13 +261,8 @@ public class PlatformPushHandler extends IQHandler implements ServerFeaturesProv
             log.error("Could not stop devel APN service", e);
         }
 
-        // Remove this as IQ listener.
-        try {
-            IQRouter iqRouter = XMPPServer.getInstance().getIQRouter();
-            iqRouter.removeHandler(this);
-        } catch (Exception ex) {
-            log.error("Could not unregister from IQ router", ex);
-        }
+        apnSvcProd = null;
+        apnSvcDevel = null;
     }
 
     @Override
@@ -235,11 +339,12 @@ public class PlatformPushHandler extends IQHandler implements ServerFeaturesProv
             // ...
 
             // Store to the database in background thread.
-            plugin.submit("pushAckStore", new JobRunnable() {
+            plugin.submit("pushAckStore", packet.getFrom().toBareJID(), new JobRunnable() {
                 @Override
                 public void run(UserServicePlugin plugin, Job job) {
                     // Persist all messages. If call cancellation is received, do not store it, delete message instead.
                     final int affected = DbEntityManager.persistPushAck(pack, true);
+                    pendingStore.onAck(pack);
                     log.info(String.format("Push ACK received, num: %d, affected rows: %d", MiscUtils.collectionSize(pack.getMessages()), affected));
                 }
             });
@@ -338,21 +443,23 @@ public class PlatformPushHandler extends IQHandler implements ServerFeaturesProv
             tokenConfig.setUser(from);
             log.info(String.format("Token configuration received from %s, token: %s", from, tokenConfig));
 
-            // Get token from the cache, if already have this token, avoid database manipulation.
-            final TokenConfig tokenFromCache = tokenCache.get(from);
-            if (tokenFromCache != null && tokenFromCache.equals(tokenConfig)){
+            // Get token from the registry, if already have this token, avoid database manipulation.
+            if (isTokenCached(tokenConfig)){
                 log.debug(String.format("Token update ignored, same in cache for user: %s", from));
                 return retPacket;
             }
 
-            // Store to the LRU cache for fast lookup.
-            tokenCache.put(from, tokenConfig);
-
             // Store to the database. Update if the JID is same.
-            plugin.submit("tokenStore", new JobRunnable() {
+            plugin.submit("tokenStore", from.toBareJID(), new JobRunnable() {
                 @Override
                 public void run(UserServicePlugin plugin, Job job) {
+                    // Same update may have been queued meanwhile.
+                    if (isTokenCached(tokenConfig)){
+                        return;
+                    }
+
                     DbEntityManager.persistAppleTokenConfig(tokenConfig);
+                    tokenCache.updateToken(tokenConfig);
 
                     // Trigger broadcast of the stored messages.
                     triggerUserPushRecheck(null, tokenConfig);
@@ -370,6 +477,16 @@ public class PlatformPushHandler extends IQHandler implements ServerFeaturesProv
         return retPacket;
     }
 
+    /**
+     * Returns true if the token registry already holds the same token configuration for the token user.
+     * @param tokenConfig
+     * @return
+     */
+    private boolean isTokenCached(TokenConfig tokenConfig){
+        final TokenConfig tokenFromCache = tokenCache.getToken(tokenConfig.getUser());
+        return tokenFromCache != null && tokenFromCache.equals(tokenConfig);
+    }
+
     /**
      * Handling new push requests.
      * @param request
@@ -384,13 +501,14 @@ public class PlatformPushHandler extends IQHandler implements ServerFeaturesProv
         final String bareJidUser = request.getFromUser().toBareJID();
 
         // Store to the database in background thread.
-        plugin.submit("pushReqStore", new JobRunnable() {
+        plugin.submit("pushReqStore", bareJidUser, new JobRunnable() {
             @Override
             public void run(UserServicePlugin plugin, Job job) {
                 // Persist all messages. If call cancellation is received, do not store it, delete message instead.
                 int affected = 0;
                 final long curTime = System.currentTimeMillis();
                 final Set<String> usersToNotify = new HashSet<String>();
+                final Set<String> usersToNotifyNow = new HashSet<String>();
                 final List<PushRequestMessage> requests = request.getMessages();
                 final JID fromUser = request.getFromUser();
                 final UserServicePlugin usrPlugin = getPlugin();
@@ -451,11 +569,18 @@ public class PlatformPushHandler extends IQHandler implements ServerFeaturesProv
 
                     // Persisting to the database + protection against flooding / errors. Keeps last 100 records
                     // for user-action pairs.
-                    boolean success = DbEntityManager.persistNewPushRequest(request, curReq);
+                    final DbPlatformPush record = curReq.isCancel() ? null : DbPlatformPush.createFromRequest(request, curReq);
+                    boolean success = DbEntityManager.persistNewPushRequest(request, curReq, record);
                     if (success) {
+                        pendingStore.onPersisted(request, curReq, record);
                         affected += 1;
                         usersToNotify.add(toUser.toBareJID());
 
+                        // Active call cannot wait for the aggregation window.
+                        if (curReq.getUrgencyType() >= PushRequestMessage.URGENCY_REALTIME){
+                            usersToNotifyNow.add(toUser.toBareJID());
+                        }
+
                         // Reflect change to the database in the push message database cleaning cache.
                         handleNewPushRequestAdded(toUser, request, curReq);
                     }
@@ -466,8 +591,15 @@ public class PlatformPushHandler extends IQHandler implements ServerFeaturesProv
                 }
 
                 // Trigger sending all unacknowledged push messages to the client via APN. this job loads all push messages to send.
+                // Realtime messages are sent immediately, together with messages waiting in the aggregation window.
+                usersToNotify.removeAll(usersToNotifyNow);
+                if (!usersToNotifyNow.isEmpty()) {
+                    recheckDebouncer.cancel(usersToNotifyNow);
+                    triggerUserPushRecheck(usersToNotifyNow, null);
+                }
+
                 if (!usersToNotify.isEmpty()) {
-                    triggerUserPushRecheck(usersToNotify, null);
+                    recheckDebouncer.schedule(usersToNotify);
                 }
             }
         });
@@ -483,6 +615,15 @@ public class PlatformPushHandler extends IQHandler implements ServerFeaturesProv
         triggerUserPushRecheck(users, null);
     }
 
+    /**
+     * Triggers sending all available push messages for given users after the aggregation window,
+     * together with other triggers for the same users received meanwhile.
+     * @param users
+     */
+    public void triggerUserPushRecheckDebounced(final Collection<String> users){
+        recheckDebouncer.schedule(users);
+    }
+
     /**
      * Triggers procedure to recheck database for waiting toUser. Expired messages are ignored, not loaded.
      * This trigger leads to sending push notification to a given user. Should be called with care when there is a reason.
@@ -492,12 +633,29 @@ public class PlatformPushHandler extends IQHandler implements ServerFeaturesProv
      *                 In this manner we avoid duplicate reception.
      */
     public void triggerUserPushRecheck(final Collection<String> users, final TokenConfig forToken){
-        plugin.submit("reqRecheck", new JobRunnable() {
-            @Override
-            public void run(UserServicePlugin plugin, Job job) {
-                triggerUserPushRecheckInt(users, forToken);
-            }
-        });
+        // Recheck waiting in the queue for the same users / token absorbs this one.
+        final String key = getRecheckKey(users, forToken);
+        final String coalesceKey = forToken != null ? "reqRecheck|token|" + forToken.getToken() : "reqRecheck|" + key;
+        plugin.submitCoalescing("reqRecheck", key, coalesceKey, new RecheckJob(users, forToken));
+    }
+
+    /**
+     * Returns executor key for push recheck job. Recheck for a single user is serialized with other jobs of the user,
+     * recheck for multiple users uses the default key.
+     * @param users bare JIDs
+     * @param forToken
+     * @return
+     */
+    private String getRecheckKey(Collection<String> users, TokenConfig forToken){
+        if (forToken != null && forToken.getUser() != null){
+            return forToken.getUser().toBareJID();
+        }
+
+        if (users != null && users.size() == 1){
+            return users.iterator().next();
+        }
+
+        return TaskExecutor.KEY_DEFAULT;
     }
 
     /**
@@ -509,28 +667,17 @@ public class PlatformPushHandler extends IQHandler implements ServerFeaturesProv
      */
     public void triggerUserPushRecheckInt(Collection<String> users, TokenConfig forToken){
         // Load user : token database.
-        final Map<String, List<TokenConfig>> tokenDatabase = new HashMap<String, List<TokenConfig>>();
+        final Map<String, List<TokenConfig>> tokenDatabase;
         if (forToken != null){
             // Only single token was given. Do it for this single token as it was added recently.
             final List<TokenConfig> singleList = new ArrayList<TokenConfig>();
             singleList.add(forToken);
+            tokenDatabase = new HashMap<String, List<TokenConfig>>();
             tokenDatabase.put(forToken.getUser().toBareJID(), singleList);
 
         } else {
-            // Load all tokens for given set of users.
-            final List<TokenConfig> tokenList = DbEntityManager.loadTokens(users);
-            for(TokenConfig curToken : tokenList){
-                final JID user = curToken.getUser();
-                final String bareUser = user.toBareJID();
-
-                if (!tokenDatabase.containsKey(bareUser)){
-                    tokenDatabase.put(bareUser, new ArrayList<TokenConfig>());
-                }
-
-                final List<TokenConfig> lst = tokenDatabase.get(bareUser);
-                lst.add(curToken);
-            }
-
+            // All tokens for given set of users, from the token registry.
+            tokenDatabase = tokenCache.getTokens(users);
         }
 
         triggerPushReqRecheckOnUsers(tokenDatabase);
@@ -549,31 +696,17 @@ public class PlatformPushHandler extends IQHandler implements ServerFeaturesProv
         }
 
         // If APN service is down, nothing to do.
-        if (apnSvcDevel == null || apnSvcProd == null){
+        if (apnDevel == null || apnProd == null){
             log.warn("Could not use Apple push, service is null");
             return;
         }
 
-        final Set<String> userSet = tokenDatabase.keySet();
-        final List<DbPlatformPush> reqs = DbEntityManager.loadPushRequestMessages(userSet);
-        final Map<String, List<DbPlatformPush>> usrRequests = new HashMap<String, List<DbPlatformPush>>();
-
-        // Group messages by toUser field to a list.
-        for(DbPlatformPush ppush : reqs){
-            final String user = ppush.getForUser();
-            List<DbPlatformPush> lstToUse = null;
-
-            if (!usrRequests.containsKey(user)){
-                lstToUse = new ArrayList<DbPlatformPush>();
-                usrRequests.put(user, lstToUse);
-
-            } else {
-                lstToUse = usrRequests.get(user);
-
-            }
+        // Non-ACK requests of already confirmed sends must not be sent again.
+        resultProcessor.flushConfirmed(this);
 
-            lstToUse.add(ppush);
-        }
+        // Messages grouped by toUser, from the pending store.
+        final Set<String> userSet = tokenDatabase.keySet();
+        final Map<String, List<DbPlatformPush>> usrRequests = pendingStore.getPending(userSet);
 
         // Group messages by actionName. Compute badge numbers, highest priority.
         for(String user : usrRequests.keySet()){
@@ -591,7 +724,7 @@ public class PlatformPushHandler extends IQHandler implements ServerFeaturesProv
                 // TODO: it should affect the expiration of the wrapping message. After this expiration time is over
                 // TODO: this service should post a new push notification send job, this time without expired notification.
                 for(TokenConfig token : tokens){
-                    // For each token build separately - different language settings?
+                    // Payload is rendered once per language list and platform, shared by tokens with the same settings.
                     builder.buildForToken(token);
                     final String payload = builder.getPayload();
 
@@ -599,14 +732,11 @@ public class PlatformPushHandler extends IQHandler implements ServerFeaturesProv
                     // TODO: Expiration is useful for active call. After call is expired, new push notification without call
 
                     // Send to a particular token, depending on the platform.
-                    // TODO: add builder to the send job and remove non-ACK messages after sending succeeds.
+                    // Non-ACK messages of the builder are deleted by the result processor after the first confirmed send.
                     sendTokenPayload(token, payload, builder);
                 }
 
-                // Delete non-ack messages from the database.
-                // iterate list, remove those not having wait ack set.
-                final int affectedNonAck = DbEntityManager.deleteNoAckWaitPushRequests(list);
-                log.info(String.format("Sent finished, non-ack deleted: %d", affectedNonAck));
+                log.debug(String.format("Payloads for %s, tokens: %d, rendered: %d", user, tokens.size(), builder.getRenders()));
 
             } catch (JSONException e) {
                 log.error("Exception in generating APN", e);
@@ -629,20 +759,18 @@ public class PlatformPushHandler extends IQHandler implements ServerFeaturesProv
                     token.getToken() /* Device Token */,
                     payload);
 
-            try {
-                if (token.getDebug()) {
-                    log.info(String.format("Broadcasting devel push message, to: %s, payload: %s", token.getUser(), payload));
-                    apnSvcDevel.push(notification);
+            final ApnSendRecord apnRec = new ApnSendRecord(notification, token.getToken(), token.getUser());
+            apnRec.setBuilder(builder);
 
-                } else {
-                    log.info(String.format("Broadcasting production push message, to: %s, payload: %s", token.getUser(), payload));
-                    apnSvcProd.push(notification);
-                }
+            final ApnDispatcher dispatcher = token.getDebug() ? apnDevel : apnProd;
+            if (dispatcher == null){
+                log.warn("Could not use Apple push, dispatcher is null");
+                return;
+            }
 
-                // TODO: delete non-ACK message as send was successful.
-            } catch(NetworkIOException e){
-                log.error("Exception in sending APN", e);
-                throw e;
+            log.info(String.format("Broadcasting %s push message, to: %s, payload: %s", dispatcher.getName(), token.getUser(), payload));
+            if (!dispatcher.submit(apnRec)){
+                log.warn(String.format("APN for %s dropped, %s queue is full", token.getUser(), dispatcher.getName()));
             }
 
         } else if (token.isAndroid()){
@@ -656,10 +784,11 @@ public class PlatformPushHandler extends IQHandler implements ServerFeaturesProv
             GcmSendRecord sndRec = new GcmSendRecord();
             sndRec.setTo(token.getToken());
             sndRec.setPushMsg(gcmMsg);
+            sndRec.setBatchKey(payload);
             sndRec.setBuilder(builder);
 
             log.info(String.format("Broadcasting GCM push message, to: %s, payload: %s", token.getUser(), payload));
-            addSendRecord(sndRec, true);
+            offerSendRecord(sndRec);
         }
     }
 
@@ -673,9 +802,33 @@ public class PlatformPushHandler extends IQHandler implements ServerFeaturesProv
             return;
         }
 
-        // TODO: update token cache.
         // TODO: reflect this to the last-active records.
-        log.info("Detected %d of disabled tokens, devel=%s", tokens.size(), devel);
+        log.info(String.format("Detected %d of disabled tokens, devel=%s", tokens.size(), devel));
+        invalidateTokens(tokens);
+    }
+
+    /**
+     * Given tokens were deleted from the database, removes them from the token registry.
+     * @param tokens
+     */
+    public void invalidateTokens(Collection<String> tokens) {
+        if (tokens == null || tokens.isEmpty()){
+            return;
+        }
+
+        tokenCache.removeTokens(tokens);
+    }
+
+    /**
+     * Given tokens were replaced by canonical tokens in the database, reflects it in the token registry.
+     * @param canonical old token -> canonical token.
+     */
+    public void tokensReplaced(Map<String, String> canonical) {
+        if (canonical == null || canonical.isEmpty()){
+            return;
+        }
+
+        tokenCache.replaceTokens(canonical);
     }
 
     /**
@@ -797,6 +950,7 @@ public class PlatformPushHandler extends IQHandler implements ServerFeaturesProv
         // DB cleanup for given record.
         JID user = new JID(rec.getUser());
         DbEntityManager.deletePushRequestsOlderThan(user, rec.getAction(), rec.getTimestamp());
+        pendingStore.onDeletedOlderThan(user.toBareJID(), rec.getAction(), rec.getTimestamp());
     }
 
     /**
@@ -827,14 +981,21 @@ public class PlatformPushHandler extends IQHandler implements ServerFeaturesProv
 
         // On eviction cleaning SQL is needed to be called, because we may loose a lot of
         // records, e.g., in case recordsAhead == 1, all older records get deleted, only 1 record remains, not 100.
-        plugin.submit("evictClean", new JobRunnable() {
+        final String bareUser = new JID(rec.getUser()).toBareJID();
+        plugin.submitCoalescing("evictClean", bareUser, "evictClean|" + bareUser + "|" + rec.getAction(), new CoalescingJobRunnable() {
             @Override
             public void run(UserServicePlugin plugin, Job job) {
                 // Persist all messages. If call cancellation is received, do not store it, delete message instead.
                 final JID user = new JID(rec.getUser());
                 final int affected = DbEntityManager.cleanDbPushRequestDb(MAX_REC_PER_USER_ACTION, user, rec.getAction());
+                pendingStore.onCleaned(user.toBareJID(), rec.getAction(), MAX_REC_PER_USER_ACTION);
                 log.info(String.format("Eviction cleaning, affected rows: %d", affected));
             }
+
+            @Override
+            public boolean mergeWith(JobRunnable job) {
+                return true;
+            }
         });
     }
 
@@ -848,6 +1009,7 @@ public class PlatformPushHandler extends IQHandler implements ServerFeaturesProv
                 try {
                     log.info("<push_db_clean>");
                     int affected = DbEntityManager.cleanDbPushRequestDb(MAX_REC_PER_USER_ACTION);
+                    pendingStore.invalidateAll();
                     log.info(String.format("Push DB cleaned, entries removed: %d. </push_db_clean>", affected));
                 } catch(Exception e){
                     log.error("Exception in clean thread", e);
@@ -921,8 +1083,8 @@ public class PlatformPushHandler extends IQHandler implements ServerFeaturesProv
             final String toUser = obj.getString("user");
             final JSONObject pushMsg = obj.getJSONObject("push");
 
-            // Load all tokens for given set of users.
-            final List<TokenConfig> tokenList = DbEntityManager.loadTokens(Collections.singletonList(toUser));
+            // All tokens of the user, from the token registry.
+            final List<TokenConfig> tokenList = tokenCache.getTokens(toUser);
             for(TokenConfig curToken : tokenList) {
                 try {
                     sendTokenPayload(curToken, pushMsg.toString(), null);
@@ -956,13 +1118,41 @@ public class PlatformPushHandler extends IQHandler implements ServerFeaturesProv
     }
 
     /**
-     * Main entry to submit new push notifications to the queue.
-     * Try to merge with existing waiting message to save space / messages / bandwidth.
+     * Re-schedules already queued record for a retry at its send time.
+     * Record superseded by a newer payload in the meantime is dropped.
      * @param sndRec
      * @param tryMerge
      */
     public void addSendRecord(GcmSendRecord sndRec, boolean tryMerge) {
-        gcmQueue.add(sndRec);
+        gcmScheduler.reschedule(sndRec);
+    }
+
+    /**
+     * Adds a new record to the GCM queue if there is space left.
+     * If the queue is full, the record is dropped. Push requests stay in the database without ACK, thus
+     * they are sent again on the next push recheck for the user.
+     * Older record with a built payload for the same token is cancelled, the new payload contains its requests.
+     *
+     * @param sndRec
+     * @return true if record was enqueued.
+     */
+    public boolean offerSendRecord(GcmSendRecord sndRec) {
+        if (gcmScheduler.size() >= gcmQueueCapacity){
+            gcmShed.incrementAndGet();
+            log.warn(String.format("GCM queue full, size: %d, dropping record %s", gcmScheduler.size(), sndRec.getPacketId()));
+            return false;
+        }
+
+        gcmScheduler.offer(sndRec);
+        return true;
+    }
+
+    /**
+     * Returns true if GCM queue does not accept new records.
+     * @return
+     */
+    public boolean isOverloaded(){
+        return gcmScheduler.size() >= gcmQueueCapacity;
     }
 
     /**
@@ -970,21 +1160,130 @@ public class PlatformPushHandler extends IQHandler implements ServerFeaturesProv
      * @param sndRec
      */
     public void onGcmSendFailed(GcmSendRecord sndRec){
+        // Push requests of the record stay in the database unless another token of the builder confirms the send,
+        // they are sent again on the next push recheck for the user.
         log.info("GCM sending failed for " + sndRec);
-
-        // TODO: mark all messages related to this sending record as not sent - in a thread safe way.
-        // TODO    Beware of multiple push messages carrying subsets of push requests. If one fails another can succeed
-        // TODO    thus take care if some message is not already ACKed. => Store positive ACKs. None ack = no delivery.
     }
 
+    /**
+     * Called by sender with the GCM result for the record.
+     * @param sndRec
+     * @param gcmResult
+     */
     public void onGcmSendSuccess(GcmSendRecord sndRec, Result gcmResult) {
-        log.info("GCM sending success");
+        if (gcmResult.getMessageId() != null){
+            log.debug(String.format("GCM sending success, id: %s", sndRec.getPacketId()));
+            resultProcessor.onSendConfirmed(sndRec.getBuilder());
+            if (gcmResult.getCanonicalRegistrationId() != null){
+                resultProcessor.onCanonicalToken(sndRec.getTo(), gcmResult.getCanonicalRegistrationId());
+            }
+
+            return;
+        }
+
+        final String error = gcmResult.getErrorCodeName();
+        if (Constants.ERROR_NOT_REGISTERED.equals(error) || Constants.ERROR_INVALID_REGISTRATION.equals(error)){
+            log.info(String.format("GCM token not valid, id: %s, error: %s", sndRec.getPacketId(), error));
+            resultProcessor.onTokenUnregistered(sndRec.getTo());
+            return;
+        }
+
+        log.warn(String.format("GCM sending failed, id: %s, error: %s", sndRec.getPacketId(), error));
+    }
+
+    /**
+     * Push recheck job. Rechecks for the same key waiting in the executor are merged, user sets are joined.
+     */
+    private class RecheckJob implements CoalescingJobRunnable {
+        private final Set<String> users;
+
+        /**
+         * Token the recheck is for, the newest one wins on merge, e.g., with changed debug flag or languages.
+         */
+        private TokenConfig forToken;
+
+        private RecheckJob(Collection<String> users, TokenConfig forToken) {
+            this.users = users == null ? null : new LinkedHashSet<String>(users);
+            this.forToken = forToken;
+        }
+
+        @Override
+        public void run(UserServicePlugin plugin, Job job) {
+            triggerUserPushRecheckInt(users, forToken);
+        }
+
+        @Override
+        public boolean mergeWith(JobRunnable job) {
+            if (!(job instanceof RecheckJob)){
+                return false;
+            }
+
+            final RecheckJob other = (RecheckJob) job;
+            if (forToken != null || other.forToken != null){
+                // Token is part of the coalescing key.
+                if (forToken == null || other.forToken == null){
+                    return false;
+                }
+
+                forToken = other.forToken;
+                return true;
+            }
+
+            if (users == null || other.users == null){
+                return false;
+            }
+
+            users.addAll(other.users);
+            return true;
+        }
+    }
+
+    public ApnDispatcher getApnProd() {
+        return apnProd;
+    }
+
+    public ApnDispatcher getApnDevel() {
+        return apnDevel;
+    }
+
+    public PushResultProcessor getResultProcessor() {
+        return resultProcessor;
+    }
+
+    public PushRecheckDebouncer getRecheckDebouncer() {
+        return recheckDebouncer;
+    }
+
+    public TokenCache getTokenCache() {
+        return tokenCache;
+    }
+
+    public PendingPushStore getPendingStore() {
+        return pendingStore;
+    }
+
+    public List<GcmSender> getGcmSenders() {
+        return Collections.unmodifiableList(gcmSenders);
+    }
+
+    public GcmCircuitBreaker getGcmCircuit() {
+        return gcmCircuit;
+    }
+
+    public GcmRateLimiter getGcmRateLimiter() {
+        return gcmRateLimiter;
+    }
+
+    public GcmRetryScheduler getGcmScheduler() {
+        return gcmScheduler;
+    }
 
-        // TODO: delete non-ack db messages.
+    public int getGcmQueueCapacity() {
+        return gcmQueueCapacity;
     }
 
-    public PriorityBlockingQueue<GcmSendRecord> getGcmQueue() {
-        return gcmQueue;
+    public long getGcmShed() {
+        return gcmShed.get();
     }
 
 }
@@ -0,0 +1,174 @@
+package org.jivesoftware.openfire.plugin.userService.platformPush;
+
+import org.jivesoftware.util.JiveGlobals;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Aggregation window for platform push rechecks.
+ * Recheck triggers for a user are collected for the window duration since the first trigger,
+ * then one recheck is triggered for all collected users, so a burst of push requests results in a single
+ * APN / GCM notification per token.
+ *
+ * Window is fixed from the first trigger, later triggers do not extend it, so the delay is bounded.
+ *
+ * Created by dusanklinec on 18.10.16.
+ */
+public class PushRecheckDebouncer extends Thread {
+    private static final Logger log = LoggerFactory.getLogger(PushRecheckDebouncer.class);
+
+    /**
+     * Aggregation window in milliseconds. 0 disables aggregation.
+     */
+    public static final String PROP_WINDOW = "phonex.push.aggregationWindow";
+    public static final long DEFAULT_WINDOW = 250;
+
+    private final PlatformPushHandler handler;
+    private final long window;
+    private volatile boolean debouncerWorking = true;
+
+    /**
+     * User -> deadline of the window. Ordered by the deadline as the window is constant.
+     */
+    private final LinkedHashMap<String, Long> pending = new LinkedHashMap<String, Long>();
+
+    private final AtomicLong triggers = new AtomicLong(0);
+    private final AtomicLong rechecks = new AtomicLong(0);
+
+    public PushRecheckDebouncer(PlatformPushHandler handler) {
+        this.handler = handler;
+        this.window = Math.max(0, JiveGlobals.getLongProperty(PROP_WINDOW, DEFAULT_WINDOW));
+        this.setName("PushRecheckDebouncer");
+        this.setDaemon(true);
+    }
+
+    public void deinit(){
+        log.info("Deinitializing push recheck debouncer");
+        debouncerWorking = false;
+        synchronized (pending){
+            if (!pending.isEmpty()){
+                log.info(String.format("Dropping %d pending rechecks, messages stay in the database", pending.size()));
+            }
+
+            pending.notifyAll();
+        }
+    }
+
+    /**
+     * Schedules recheck for given users at the end of the aggregation window.
+     * @param users bare JIDs
+     */
+    public void schedule(Collection<String> users){
+        if (users == null || users.isEmpty()){
+            return;
+        }
+
+        triggers.addAndGet(users.size());
+        if (window <= 0 || !debouncerWorking){
+            rechecks.incrementAndGet();
+            handler.triggerUserPushRecheck(users, null);
+            return;
+        }
+
+        final long deadline = System.currentTimeMillis() + window;
+        synchronized (pending){
+            final boolean wasEmpty = pending.isEmpty();
+            for (String user : users) {
+                if (!pending.containsKey(user)){
+                    pending.put(user, deadline);
+                }
+            }
+
+            if (wasEmpty){
+                pending.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Removes users from the window, e.g., when an immediate recheck is triggered for them.
+     * @param users
+     */
+    public void cancel(Collection<String> users){
+        if (users == null){
+            return;
+        }
+
+        synchronized (pending){
+            for (String user : users) {
+                pending.remove(user);
+            }
+        }
+    }
+
+    public void run(){
+        log.info("Push recheck debouncer thread started.");
+
+        while(debouncerWorking){
+            final List<String> due = new ArrayList<String>();
+            try {
+                synchronized (pending){
+                    if (pending.isEmpty()){
+                        pending.wait(1000);
+                        continue;
+                    }
+
+                    final long now = System.currentTimeMillis();
+                    final Iterator<Map.Entry<String, Long>> it = pending.entrySet().iterator();
+                    while(it.hasNext()){
+                        final Map.Entry<String, Long> e = it.next();
+                        if (e.getValue() > now){
+                            break;
+                        }
+
+                        due.add(e.getKey());
+                        it.remove();
+                    }
+
+                    if (due.isEmpty()){
+                        pending.wait(Math.max(1, pending.values().iterator().next() - now));
+                        continue;
+                    }
+                }
+            } catch (InterruptedException e) {
+                log.error("Push recheck debouncer interrupted", e);
+                break;
+            }
+
+            try {
+                rechecks.incrementAndGet();
+                handler.triggerUserPushRecheck(due, null);
+            } catch(Exception ex){
+                log.error("Exception in triggering push recheck", ex);
+            }
+        }
+
+        log.info("Push recheck debouncer thread finishing.");
+    }
+
+    public int getPendingUsers(){
+        synchronized (pending){
+            return pending.size();
+        }
+    }
+
+    public long getTriggers() {
+        return triggers.get();
+    }
+
+    public long getRechecks() {
+        return rechecks.get();
+    }
+
+    public long getWindow() {
+        return window;
+    }
+}
@@ -0,0 +1,250 @@
+package org.jivesoftware.openfire.plugin.userService.platformPush;
+
+import org.jivesoftware.openfire.plugin.userService.db.DbEntityManager;
+import org.jivesoftware.openfire.plugin.userService.db.DbPlatformPush;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Processes results of the platform push sending off the sender threads, in batches.
+ *  - deletes non-ACK push requests of the builder after a confirmed send,
+ *  - rewrites tokens to canonical ids returned by GCM,
+ *  - deletes tokens GCM reports as unregistered / invalid,
+ *  - reflects token changes in the token registry.
+ *
+ * Created by dusanklinec on 18.10.16.
+ */
+public class PushResultProcessor extends Thread {
+    private static final Logger log = LoggerFactory.getLogger(PushResultProcessor.class);
+
+    /**
+     * Interval between batches, in milliseconds.
+     */
+    private static final long BATCH_INTERVAL = 1000;
+
+    /**
+     * Maximum number of push requests deleted by one statement.
+     */
+    private static final int MAX_DELETE_BATCH = 500;
+
+    private final WeakReference<PlatformPushHandler> svcRef;
+    private volatile boolean working = true;
+
+    private final ConcurrentLinkedQueue<ApnPushBuilder> confirmed = new ConcurrentLinkedQueue<ApnPushBuilder>();
+    private final Object confirmedLock = new Object();
+    private final ConcurrentMap<String, String> canonical = new ConcurrentHashMap<String, String>();
+    private final Set<String> unregistered = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    // Statistics.
+    private final AtomicLong confirmedSends = new AtomicLong(0);
+    private final AtomicLong noAckDeleted = new AtomicLong(0);
+    private final AtomicLong tokensReplaced = new AtomicLong(0);
+    private final AtomicLong tokensDeleted = new AtomicLong(0);
+
+    public PushResultProcessor(PlatformPushHandler svc) {
+        this.svcRef = new WeakReference<PlatformPushHandler>(svc);
+        this.setName("PushResultProcessor");
+        this.setDaemon(true);
+    }
+
+    public void deinit(){
+        log.info("Deinitializing PushResultProcessor thread");
+        working = false;
+    }
+
+    /**
+     * Payload of the builder was accepted by the push service. Non-ACK push requests of the builder get deleted
+     * once, on the first confirmation.
+     * @param builder
+     */
+    public void onSendConfirmed(ApnPushBuilder builder){
+        if (builder == null || !builder.confirmSend()){
+            return;
+        }
+
+        confirmedSends.incrementAndGet();
+        confirmed.add(builder);
+    }
+
+    /**
+     * GCM returned canonical registration id for the token.
+     * @param token
+     * @param canonicalToken
+     */
+    public void onCanonicalToken(String token, String canonicalToken){
+        if (token == null || canonicalToken == null || token.equals(canonicalToken)){
+            return;
+        }
+
+        canonical.put(token, canonicalToken);
+    }
+
+    /**
+     * Token is not valid anymore.
+     * @param token
+     */
+    public void onTokenUnregistered(String token){
+        if (token == null){
+            return;
+        }
+
+        unregistered.add(token);
+    }
+
+    public void run(){
+        log.info("PushResultProcessor thread started.");
+
+        while(working){
+            final PlatformPushHandler svc = svcRef.get();
+            if (svc == null){
+                working = false;
+                log.info("Manager disappeared");
+                break;
+            }
+
+            try {
+                processBatch(svc);
+            } catch(Exception e){
+                log.error("Exception in processing push results", e);
+            }
+
+            try {
+                Thread.sleep(BATCH_INTERVAL);
+            } catch (Exception e) {
+                log.error("Sleep interrupted", e);
+                break;
+            }
+        }
+
+        log.info("PushResultProcessor thread finishing.");
+    }
+
+    /**
+     * Processes all results collected since the last batch.
+     * @param svc
+     */
+    protected void processBatch(PlatformPushHandler svc){
+        processConfirmed(svc);
+        processUnregistered(svc);
+        processCanonical(svc);
+    }
+
+    /**
+     * Deletes non-ACK push requests of the confirmed sends now, waits for the batch in progress.
+     * Called before a push recheck reads pending requests, so delivered non-ACK requests are not sent again.
+     * @param svc
+     */
+    public void flushConfirmed(PlatformPushHandler svc){
+        processConfirmed(svc);
+    }
+
+    private void processConfirmed(PlatformPushHandler svc){
+        synchronized (confirmedLock){
+            deleteConfirmed(svc);
+        }
+    }
+
+    private void deleteConfirmed(PlatformPushHandler svc){
+        final Map<String, List<DbPlatformPush>> noAckByUser = new LinkedHashMap<String, List<DbPlatformPush>>();
+        final List<DbPlatformPush> noAck = new ArrayList<DbPlatformPush>();
+
+        ApnPushBuilder builder;
+        while((builder = confirmed.poll()) != null){
+            final List<DbPlatformPush> list = builder.getPushMessagesList();
+            if (list == null || list.isEmpty()){
+                continue;
+            }
+
+            List<DbPlatformPush> userList = noAckByUser.get(builder.getUser());
+            if (userList == null){
+                userList = new ArrayList<DbPlatformPush>();
+                noAckByUser.put(builder.getUser(), userList);
+            }
+
+            for (DbPlatformPush msg : list) {
+                if (!msg.isAckWait()){
+                    userList.add(msg);
+                    noAck.add(msg);
+                }
+            }
+        }
+
+        if (noAck.isEmpty()){
+            return;
+        }
+
+        int affected = 0;
+        for(int offset = 0; offset < noAck.size(); offset += MAX_DELETE_BATCH){
+            affected += DbEntityManager.deleteNoAckWaitPushRequests(
+                    noAck.subList(offset, Math.min(noAck.size(), offset + MAX_DELETE_BATCH)));
+        }
+
+        for (Map.Entry<String, List<DbPlatformPush>> e : noAckByUser.entrySet()) {
+            svc.getPendingStore().onNoAckWaitDeleted(e.getKey(), e.getValue());
+        }
+
+        noAckDeleted.addAndGet(affected);
+        log.info(String.format("Sent confirmed, non-ack deleted: %d, users: %d", affected, noAckByUser.size()));
+    }
+
+    private void processUnregistered(PlatformPushHandler svc){
+        if (unregistered.isEmpty()){
+            return;
+        }
+
+        final Set<String> tokens = new HashSet<String>(unregistered);
+        unregistered.removeAll(tokens);
+
+        final int affected = DbEntityManager.deleteTokens(tokens);
+        tokensDeleted.addAndGet(affected);
+        svc.invalidateTokens(tokens);
+        log.info(String.format("Unregistered tokens: %d, deleted: %d", tokens.size(), affected));
+    }
+
+    private void processCanonical(PlatformPushHandler svc){
+        if (canonical.isEmpty()){
+            return;
+        }
+
+        // Canonical id written meanwhile for the same token stays for the next batch.
+        final Map<String, String> replace = new HashMap<String, String>(canonical);
+        for (Map.Entry<String, String> e : replace.entrySet()) {
+            canonical.remove(e.getKey(), e.getValue());
+        }
+
+        final int affected = DbEntityManager.replaceTokens(replace);
+        tokensReplaced.addAndGet(affected);
+        svc.tokensReplaced(replace);
+        log.info(String.format("Canonical tokens: %d, affected: %d", replace.size(), affected));
+    }
+
+    public long getConfirmedSends() {
+        return confirmedSends.get();
+    }
+
+    public long getNoAckDeleted() {
+        return noAckDeleted.get();
+    }
+
+    public long getTokensReplaced() {
+        return tokensReplaced.get();
+    }
+
+    public long getTokensDeleted() {
+        return tokensDeleted.get();
+    }
+}
@@ -1,82 +1,428 @@
 package org.jivesoftware.openfire.plugin.userService.platformPush;
 
+import org.jivesoftware.openfire.plugin.userService.db.DbEntityManager;
 import org.jivesoftware.openfire.plugin.userService.utils.LRUCache;
+import org.jivesoftware.util.JiveGlobals;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.xmpp.packet.JID;
 
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Cache for the device tokens stored for individual user.
- * Idea: queries for user/resource + queries of the type: Has a given user any working device token?
+ * Registry of the device tokens, mirror of the token table.
+ * Indices: user@domain.net -> tokens, user@domain.net/resource -> token, device token -> owners.
+ *
+ * Registry is warmed with the whole table on start. While no user was evicted the registry is complete,
+ * user not present has no token and no database access is needed. Otherwise users not present are loaded
+ * from the database on access.
+ *
+ * Each token table modification is mirrored after it is committed. Index modifications are done under the
+ * registry lock, readers use immutable per-user snapshots. Database load overlapping a modification is not
+ * cached, so a stale result does not stay in the registry.
+ *
  * Created by dusanklinec on 13.07.15.
  */
-public class TokenCache {
-    private static final int CACHE_SIZE = 128;
+public class TokenCache implements LRUCache.LRUCacheEvictionListener<String, TokenCache.UserTokens> {
+    private static final Logger log = LoggerFactory.getLogger(TokenCache.class);
 
     /**
-     * Cache user@domain.net/resource -> tokenConfig.
+     * Maximal number of users kept in the registry, least recently used users are evicted.
      */
-    private final LRUCache<JID, TokenConfig> tokenCache = new LRUCache<JID, TokenConfig>(CACHE_SIZE);
+    public static final String PROP_USERS = "phonex.push.tokenUsers";
+    public static final int DEFAULT_USERS = 100000;
 
     /**
-     * Cache user@domain.net -> Set<TokenConfig>
+     * Cache user@domain.net -> tokens of the user.
      */
-    private final LRUCache<String, Set<TokenConfig>> tokenUsrCache = new LRUCache<String, Set<TokenConfig>>(CACHE_SIZE);
+    private LRUCache<String, UserTokens> users = new LRUCache<String, UserTokens>(DEFAULT_USERS);
+
+    /**
+     * Device token -> user@domain.net/resource having the token.
+     */
+    private final Map<String, Set<JID>> owners = new HashMap<String, Set<JID>>();
+
+    /**
+     * True if registry contains all users having a token.
+     */
+    private volatile boolean complete = false;
+
+    /**
+     * Number of modifications, used to detect loads overlapping a modification.
+     */
+    private long modifications = 0;
+
+    // Statistics.
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong loads = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+
+    public synchronized void init(){
+        users = new LRUCache<String, UserTokens>(Math.max(16, JiveGlobals.getIntProperty(PROP_USERS, DEFAULT_USERS)));
+        users.setEvictionListener(this);
+        owners.clear();
+        complete = false;
+    }
+
+    public synchronized void deinit(){
+        clear();
+        users.setEvictionListener(null);
+    }
+
+    /**
+     * Loads the whole token table. Registry is complete if all users fit and no modification happened meanwhile.
+     */
+    public void warm(){
+        final long mod = getModifications();
+        final List<TokenConfig> tokens = DbEntityManager.loadAllTokens();
+        if (tokens == null){
+            log.warn("Token registry could not be warmed");
+            return;
+        }
+
+        final Map<String, List<TokenConfig>> byUser = groupByUser(tokens);
+        synchronized (this){
+            if (mod != modifications){
+                log.info("Token registry modified during warm up, loading users on demand");
+                return;
+            }
+
+            final long evictedBefore = evictions.get();
+            for (Map.Entry<String, List<TokenConfig>> e : byUser.entrySet()) {
+                install(e.getKey(), e.getValue());
+            }
+
+            complete = evictedBefore == evictions.get();
+        }
+
+        log.info(String.format("Token registry warmed, users: %d, tokens: %d, complete: %s", byUser.size(), tokens.size(), complete));
+    }
 
     /**
      * Flushes all caches.
      */
-    public void clear(){
-        tokenCache.clear();
-        tokenUsrCache.clear();
+    public synchronized void clear(){
+        modifications += 1;
+        complete = false;
+        users.clear();
+        owners.clear();
     }
 
     /**
-     * Removes user from the token cache.
+     * Removes user from the registry, it is loaded from the database on next access.
      * @param user
      */
     public synchronized void remove(JID user){
-        final String res = user.getResource();
-        final boolean resEmpty = res == null || res.isEmpty();
-        if (!resEmpty){
-            tokenCache.remove(user);
+        modifications += 1;
+        if (users.containsKey(user.toBareJID())){
+            complete = false;
+            unindex(users.remove(user.toBareJID()));
         }
+    }
+
+    /**
+     * Token was persisted for the given user, mirrors DbEntityManager.persistAppleTokenConfig().
+     * @param token
+     */
+    public synchronized void updateToken(TokenConfig token){
+        final JID user = token.getUser();
+        modifications += 1;
 
-        final Set<TokenConfig> tokens = tokenUsrCache.get(user.toBareJID());
-        if (resEmpty){
-            tokens.clear();
+        final UserTokens entry = users.get(user.toBareJID());
+        if (entry == null){
+            // Not in the registry, loaded from the database on access.
+            if (complete){
+                install(user.toBareJID(), Collections.singletonList(token));
+            }
             return;
         }
 
-        final Iterator<TokenConfig> it = tokens.iterator();
-        while(it.hasNext()){
-            final TokenConfig token = it.next();
-            final JID tokenUser = token.getUser();
-            if (user.equals(tokenUser)){
-                it.remove();
+        final Map<String, TokenConfig> byResource = new LinkedHashMap<String, TokenConfig>(entry.byResource);
+        final TokenConfig old = byResource.put(user.getResource(), token);
+        if (old != null){
+            unindex(old);
+        }
+
+        index(token);
+        entry.byResource = Collections.unmodifiableMap(byResource);
+    }
+
+    /**
+     * Tokens were deleted, mirrors DbEntityManager.deleteTokens().
+     * @param tokens
+     */
+    public synchronized void removeTokens(Collection<String> tokens){
+        modifications += 1;
+        for (String token : tokens) {
+            final Set<JID> tokenOwners = owners.remove(token);
+            if (tokenOwners == null){
+                continue;
+            }
+
+            for (JID owner : tokenOwners) {
+                final UserTokens entry = users.get(owner.toBareJID());
+                if (entry == null){
+                    continue;
+                }
+
+                final Map<String, TokenConfig> byResource = new LinkedHashMap<String, TokenConfig>(entry.byResource);
+                final TokenConfig cur = byResource.get(owner.getResource());
+                if (cur != null && token.equals(cur.getToken())){
+                    byResource.remove(owner.getResource());
+                    entry.byResource = Collections.unmodifiableMap(byResource);
+                }
             }
         }
     }
 
     /**
-     * Updates token for the given user in the cache.
-     * @param user
-     * @param token
+     * Tokens were replaced by canonical ones, mirrors DbEntityManager.replaceTokens().
+     * If the registry is not complete, it cannot tell whether canonical token is stored, owners are removed instead.
+     *
+     * @param canonical old token -> canonical token.
      */
-    public synchronized void updateToken(JID user, TokenConfig token){
-        // TODO: implement.
+    public synchronized void replaceTokens(Map<String, String> canonical){
+        modifications += 1;
+        for (Map.Entry<String, String> e : canonical.entrySet()) {
+            final Set<JID> tokenOwners = owners.get(e.getKey());
+            if (tokenOwners == null){
+                continue;
+            }
+
+            if (!complete){
+                for (JID owner : new ArrayList<JID>(tokenOwners)) {
+                    unindex(users.remove(owner.toBareJID()));
+                }
+                continue;
+            }
+
+            if (owners.containsKey(e.getValue())){
+                removeTokens(Collections.singletonList(e.getKey()));
+                continue;
+            }
+
+            for (JID owner : new ArrayList<JID>(tokenOwners)) {
+                final UserTokens entry = users.get(owner.toBareJID());
+                final TokenConfig cur = entry == null ? null : entry.byResource.get(owner.getResource());
+                if (cur != null && e.getKey().equals(cur.getToken())){
+                    updateToken(copyWithToken(cur, e.getValue()));
+                }
+            }
+        }
     }
 
+    /**
+     * Returns cached token for the given user/resource, does not access the database.
+     * @param user
+     * @return null if not known.
+     */
     public TokenConfig getToken(JID user){
-        // TODO: implement.
-        return null;
+        final UserTokens entry = users.get(user.toBareJID());
+        return entry == null ? null : entry.byResource.get(user.getResource());
+    }
+
+    /**
+     * Returns all tokens of the user.
+     * @param user bare JID
+     * @return
+     */
+    public List<TokenConfig> getTokens(String user){
+        final List<TokenConfig> tokens = getTokens(Collections.singletonList(user)).get(user);
+        return tokens == null ? new ArrayList<TokenConfig>() : tokens;
+    }
+
+    /**
+     * Returns tokens of the given users, grouped by user. Users without tokens are omitted.
+     * Users not in the registry are loaded from the database, unless the registry is complete.
+     * @param toUsers bare JIDs
+     * @return
+     */
+    public Map<String, List<TokenConfig>> getTokens(Collection<String> toUsers){
+        final Map<String, List<TokenConfig>> ret = new HashMap<String, List<TokenConfig>>();
+        if (toUsers == null){
+            return ret;
+        }
+
+        final Set<String> missing = new HashSet<String>();
+        for (String user : toUsers) {
+            final UserTokens entry = users.get(user);
+            if (entry == null){
+                missing.add(user);
+                continue;
+            }
+
+            hits.incrementAndGet();
+            if (!entry.byResource.isEmpty()){
+                ret.put(user, new ArrayList<TokenConfig>(entry.byResource.values()));
+            }
+        }
+
+        if (missing.isEmpty() || complete){
+            return ret;
+        }
+
+        final long mod = getModifications();
+        final Map<String, List<TokenConfig>> loaded = groupByUser(DbEntityManager.loadTokens(missing));
+        loads.addAndGet(missing.size());
+        ret.putAll(loaded);
+
+        synchronized (this){
+            if (mod != modifications){
+                return ret;
+            }
+
+            // Users without tokens are cached too.
+            for (String user : missing) {
+                final List<TokenConfig> tokens = loaded.get(user);
+                install(user, tokens == null ? Collections.<TokenConfig>emptyList() : tokens);
+            }
+        }
+
+        return ret;
+    }
+
+    @Override
+    public void onEntryEvicted(LRUCache<String, UserTokens> cache, Map.Entry<String, UserTokens> eldest) {
+        // Called from users.put(), under the registry lock.
+        evictions.incrementAndGet();
+        complete = false;
+        unindex(eldest.getValue());
+    }
+
+    private void install(String user, List<TokenConfig> tokens){
+        final UserTokens old = users.remove(user);
+        if (old != null){
+            unindex(old);
+        }
+
+        final Map<String, TokenConfig> byResource = new LinkedHashMap<String, TokenConfig>();
+        for (TokenConfig token : tokens) {
+            byResource.put(token.getUser().getResource(), token);
+        }
+
+        for (TokenConfig token : byResource.values()) {
+            index(token);
+        }
+
+        users.put(user, new UserTokens(Collections.unmodifiableMap(byResource)));
     }
 
-    public Set<TokenConfig> getTokens(String user){
-        // TODO: implement.
-        return null;
+    private void index(TokenConfig token){
+        if (token.getToken() == null){
+            return;
+        }
+
+        Set<JID> tokenOwners = owners.get(token.getToken());
+        if (tokenOwners == null){
+            tokenOwners = new HashSet<JID>(2);
+            owners.put(token.getToken(), tokenOwners);
+        }
+
+        tokenOwners.add(token.getUser());
     }
 
+    private void unindex(TokenConfig token){
+        final Set<JID> tokenOwners = token.getToken() == null ? null : owners.get(token.getToken());
+        if (tokenOwners == null){
+            return;
+        }
+
+        tokenOwners.remove(token.getUser());
+        if (tokenOwners.isEmpty()){
+            owners.remove(token.getToken());
+        }
+    }
+
+    private void unindex(UserTokens entry){
+        if (entry == null){
+            return;
+        }
+
+        for (TokenConfig token : entry.byResource.values()) {
+            unindex(token);
+        }
+    }
+
+    private synchronized long getModifications(){
+        return modifications;
+    }
+
+    private static Map<String, List<TokenConfig>> groupByUser(List<TokenConfig> tokens){
+        final Map<String, List<TokenConfig>> byUser = new HashMap<String, List<TokenConfig>>();
+        for (TokenConfig token : tokens) {
+            if (token == null || token.getUser() == null){
+                continue;
+            }
+
+            final String bareUser = token.getUser().toBareJID();
+            List<TokenConfig> lst = byUser.get(bareUser);
+            if (lst == null){
+                lst = new ArrayList<TokenConfig>();
+                byUser.put(bareUser, lst);
+            }
+
+            lst.add(token);
+        }
+
+        return byUser;
+    }
+
+    private static TokenConfig copyWithToken(TokenConfig src, String token){
+        final TokenConfig tkn = new TokenConfig();
+        tkn.setUser(src.getUser());
+        tkn.setPlatform(src.getPlatform());
+        tkn.setToken(token);
+        tkn.setFakeUdid(src.getFakeUdid());
+        tkn.setVersion(src.getVersion());
+        tkn.setAppVersion(src.getAppVersion());
+        tkn.setOsVersion(src.getOsVersion());
+        tkn.setLangs(new ArrayList<String>(src.getLangs()));
+        tkn.setDebug(src.getDebug());
+        tkn.setAuxJson(src.getAuxJson());
+        return tkn;
+    }
+
+    public int getUsers() {
+        return users.size();
+    }
+
+    public synchronized int getTokenCount() {
+        return owners.size();
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getLoads() {
+        return loads.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Tokens of the single user, user/resource -> token. Immutable snapshot, replaced on modification.
+     */
+    static class UserTokens {
+        private volatile Map<String, TokenConfig> byResource;
+
+        private UserTokens(Map<String, TokenConfig> byResource) {
+            this.byResource = byResource;
+        }
+    }
 }
@@ -0,0 +1,165 @@
+package org.jivesoftware.openfire.plugin.userService.platformPush.apn;
+
+import com.notnoop.apns.ApnsDelegate;
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ApnsService;
+import com.notnoop.apns.ApnsServiceBuilder;
+import com.notnoop.apns.DeliveryError;
+import org.jivesoftware.openfire.plugin.userService.utils.LatencyHistogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One connection to the APN gateway with its own sender thread.
+ * Takes notifications from the shared dispatcher queue, so a slow connection does not hold back the others.
+ *
+ * Created by dusanklinec on 18.10.16.
+ */
+public class ApnConnection extends Thread {
+    private static final Logger log = LoggerFactory.getLogger(ApnConnection.class);
+
+    private final ApnDispatcher dispatcher;
+    private final int connIdx;
+    private final ApnsService service;
+    private volatile boolean connectionWorking = true;
+
+    // Statistics.
+    private final AtomicLong sent = new AtomicLong(0);
+    private final AtomicLong failed = new AtomicLong(0);
+    private final AtomicLong gatewayErrors = new AtomicLong(0);
+    private final AtomicLong closed = new AtomicLong(0);
+    private final AtomicLong resent = new AtomicLong(0);
+    private final LatencyHistogram writeTime;
+    private final long startTstamp = System.currentTimeMillis();
+
+    public ApnConnection(ApnDispatcher dispatcher, int connIdx, ApnsServiceBuilder builder) {
+        this.dispatcher = dispatcher;
+        this.connIdx = connIdx;
+        this.writeTime = new LatencyHistogram(dispatcher.getName() + "." + connIdx);
+        this.service = builder.withDelegate(new ConnectionDelegate()).build();
+        this.setName("ApnConnection." + dispatcher.getName() + "." + connIdx);
+        this.setDaemon(true);
+    }
+
+    public void deinit(){
+        log.info(String.format("Deinitializing APN connection %s", getName()));
+        connectionWorking = false;
+
+        try {
+            service.stop();
+        } catch(Exception e){
+            log.error("Could not stop APN service", e);
+        }
+    }
+
+    public void run(){
+        log.info(String.format("APN connection thread %s started.", getName()));
+
+        while(connectionWorking){
+            final ApnSendRecord rec;
+            try {
+                rec = dispatcher.getQueue().poll(1000, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                log.error("APN connection interrupted", e);
+                break;
+            }
+
+            if (rec == null){
+                continue;
+            }
+
+            final long timeStart = System.currentTimeMillis();
+            rec.setSendTstamp(timeStart);
+            try {
+                service.push(rec.getNotification());
+                sent.incrementAndGet();
+                writeTime.record(System.currentTimeMillis() - timeStart);
+                dispatcher.onSent(rec);
+
+            } catch(Exception e){
+                failed.incrementAndGet();
+                log.error(String.format("Exception in sending APN %s on %s", rec, getName()), e);
+                dispatcher.onFailed(rec, e);
+            }
+        }
+
+        log.info(String.format("APN connection thread %s finishing.", getName()));
+    }
+
+    /**
+     * Returns average number of notifications sent per second since the connection start.
+     * @return
+     */
+    public double getThroughput(){
+        final long elapsed = System.currentTimeMillis() - startTstamp;
+        return elapsed <= 0 ? 0.0 : sent.get() * 1000.0 / elapsed;
+    }
+
+    public int getConnIdx() {
+        return connIdx;
+    }
+
+    public ApnsService getService() {
+        return service;
+    }
+
+    public long getSent() {
+        return sent.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getGatewayErrors() {
+        return gatewayErrors.get();
+    }
+
+    public long getClosed() {
+        return closed.get();
+    }
+
+    public long getResent() {
+        return resent.get();
+    }
+
+    public LatencyHistogram getWriteTime() {
+        return writeTime;
+    }
+
+    /**
+     * Asynchronous events of the APN library for this connection.
+     */
+    private class ConnectionDelegate implements ApnsDelegate {
+        @Override
+        public void messageSent(ApnsNotification message, boolean resent) {
+
+        }
+
+        @Override
+        public void messageSendFailed(ApnsNotification message, Throwable e) {
+            gatewayErrors.incrementAndGet();
+            log.warn(String.format("APN gateway rejected notification %s on %s",
+                    message == null ? null : message.getIdentifier(), getName()), e);
+        }
+
+        @Override
+        public void connectionClosed(DeliveryError e, int messageIdentifier) {
+            closed.incrementAndGet();
+            log.info(String.format("APN connection %s closed, error: %s, id: %d", getName(), e, messageIdentifier));
+        }
+
+        @Override
+        public void cacheLengthExceeded(int newCacheLength) {
+            log.info(String.format("APN connection %s cache length exceeded, new length: %d", getName(), newCacheLength));
+        }
+
+        @Override
+        public void notificationsResent(int resendCount) {
+            resent.addAndGet(resendCount);
+        }
+    }
+}
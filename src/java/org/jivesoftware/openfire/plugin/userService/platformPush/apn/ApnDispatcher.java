@@ -0,0 +1,182 @@
+package org.jivesoftware.openfire.plugin.userService.platformPush.apn;
+
+import com.notnoop.apns.APNS;
+import com.notnoop.apns.ApnsService;
+import com.notnoop.apns.ApnsServiceBuilder;
+import org.jivesoftware.openfire.plugin.userService.utils.LatencyHistogram;
+import org.jivesoftware.util.JiveGlobals;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * APN dispatch for one environment (production / devel).
+ * Notifications are submitted to a bounded queue without blocking, a pool of gateway connections
+ * sends them, each from its own thread. Result is reported to the completion callback.
+ *
+ * Created by dusanklinec on 18.10.16.
+ */
+public class ApnDispatcher {
+    private static final Logger log = LoggerFactory.getLogger(ApnDispatcher.class);
+
+    /**
+     * Number of gateway connections per environment.
+     */
+    public static final String PROP_POOL_SIZE = "phonex.apn.poolSize";
+    public static final int DEFAULT_POOL_SIZE = 2;
+
+    /**
+     * Maximum number of notifications waiting for sending, per environment.
+     */
+    public static final String PROP_QUEUE_CAPACITY = "phonex.apn.queueCapacity";
+    public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+
+    private final String name;
+    private final boolean devel;
+    private final String certPath;
+    private final String certPass;
+    private final ApnSendCallback callback;
+
+    private final int poolSize;
+    private final int queueCapacity;
+    private final BlockingQueue<ApnSendRecord> queue;
+    private final List<ApnConnection> connections = new ArrayList<ApnConnection>();
+
+    private final AtomicLong submitted = new AtomicLong(0);
+    private final AtomicLong rejected = new AtomicLong(0);
+    private final LatencyHistogram queueWait;
+
+    public ApnDispatcher(String name, boolean devel, String certPath, String certPass, ApnSendCallback callback) {
+        this.name = name;
+        this.devel = devel;
+        this.certPath = certPath;
+        this.certPass = certPass;
+        this.callback = callback;
+        this.poolSize = Math.max(1, JiveGlobals.getIntProperty(PROP_POOL_SIZE, DEFAULT_POOL_SIZE));
+        this.queueCapacity = Math.max(16, JiveGlobals.getIntProperty(PROP_QUEUE_CAPACITY, DEFAULT_QUEUE_CAPACITY));
+        this.queue = new ArrayBlockingQueue<ApnSendRecord>(queueCapacity);
+        this.queueWait = new LatencyHistogram(name);
+    }
+
+    /**
+     * Builds gateway connections and starts their threads.
+     */
+    public synchronized void start(){
+        for(int i = 0; i < poolSize; i++){
+            final ApnConnection conn = new ApnConnection(this, i, newBuilder());
+            connections.add(conn);
+            conn.start();
+        }
+
+        log.info(String.format("APN dispatcher %s started, connections: %d, queue capacity: %d", name, poolSize, queueCapacity));
+    }
+
+    public synchronized void deinit(){
+        for (ApnConnection conn : connections) {
+            conn.deinit();
+        }
+
+        if (!queue.isEmpty()){
+            log.info(String.format("APN dispatcher %s stopped, dropping %d notifications", name, queue.size()));
+        }
+
+        queue.clear();
+    }
+
+    /**
+     * Submits notification for sending, does not block.
+     * @param rec
+     * @return false if the queue is full and notification was rejected.
+     */
+    public boolean submit(ApnSendRecord rec){
+        rec.setEnqueueTstamp(System.currentTimeMillis());
+        if (!queue.offer(rec)){
+            rejected.incrementAndGet();
+            log.warn(String.format("APN queue %s full, capacity: %d, rejecting %s", name, queueCapacity, rec));
+            return false;
+        }
+
+        submitted.incrementAndGet();
+        return true;
+    }
+
+    void onSent(ApnSendRecord rec){
+        queueWait.record(rec.getSendTstamp() - rec.getEnqueueTstamp());
+        if (callback == null){
+            return;
+        }
+
+        try {
+            callback.onApnSent(rec);
+        } catch(Exception e){
+            log.error("Exception in APN sent callback", e);
+        }
+    }
+
+    void onFailed(ApnSendRecord rec, Throwable cause){
+        if (callback == null){
+            return;
+        }
+
+        try {
+            callback.onApnFailed(rec, cause);
+        } catch(Exception e){
+            log.error("Exception in APN failed callback", e);
+        }
+    }
+
+    /**
+     * Builds APN service for the feedback service of this environment, same destination as the gateway connections.
+     * @return
+     */
+    public ApnsService newFeedbackService(){
+        return newBuilder().build();
+    }
+
+    /**
+     * Builds APN service builder for one connection, without pooling / queueing, connection has its own thread.
+     * @return
+     */
+    protected ApnsServiceBuilder newBuilder(){
+        final ApnsServiceBuilder builder = APNS.newService().withCert(certPath, certPass);
+        return devel ? builder.withSandboxDestination() : builder.withProductionDestination();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isDevel() {
+        return devel;
+    }
+
+    public BlockingQueue<ApnSendRecord> getQueue() {
+        return queue;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public synchronized List<ApnConnection> getConnections() {
+        return Collections.unmodifiableList(new ArrayList<ApnConnection>(connections));
+    }
+
+    public long getSubmitted() {
+        return submitted.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public LatencyHistogram getQueueWait() {
+        return queueWait;
+    }
+}
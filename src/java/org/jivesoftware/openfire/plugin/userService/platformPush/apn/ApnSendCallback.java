@@ -0,0 +1,21 @@
+package org.jivesoftware.openfire.plugin.userService.platformPush.apn;
+
+/**
+ * Completion callback of the APN dispatcher. Called on the connection thread.
+ *
+ * Created by dusanklinec on 18.10.16.
+ */
+public interface ApnSendCallback {
+    /**
+     * Notification was written to the gateway.
+     * @param rec
+     */
+    void onApnSent(ApnSendRecord rec);
+
+    /**
+     * Notification could not be written to the gateway or was rejected.
+     * @param rec
+     * @param cause
+     */
+    void onApnFailed(ApnSendRecord rec, Throwable cause);
+}
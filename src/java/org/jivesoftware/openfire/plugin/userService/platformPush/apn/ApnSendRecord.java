@@ -0,0 +1,70 @@
+package org.jivesoftware.openfire.plugin.userService.platformPush.apn;
+
+import com.notnoop.apns.EnhancedApnsNotification;
+import org.jivesoftware.openfire.plugin.userService.platformPush.ApnPushBuilder;
+import org.xmpp.packet.JID;
+
+/**
+ * APN notification waiting in the dispatcher queue.
+ *
+ * Created by dusanklinec on 18.10.16.
+ */
+public class ApnSendRecord {
+    private final EnhancedApnsNotification notification;
+    private final String token;
+    private final JID user;
+    private ApnPushBuilder builder;
+    private long enqueueTstamp;
+    private long sendTstamp;
+
+    public ApnSendRecord(EnhancedApnsNotification notification, String token, JID user) {
+        this.notification = notification;
+        this.token = token;
+        this.user = user;
+    }
+
+    public EnhancedApnsNotification getNotification() {
+        return notification;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    public JID getUser() {
+        return user;
+    }
+
+    public ApnPushBuilder getBuilder() {
+        return builder;
+    }
+
+    public void setBuilder(ApnPushBuilder builder) {
+        this.builder = builder;
+    }
+
+    public long getEnqueueTstamp() {
+        return enqueueTstamp;
+    }
+
+    public void setEnqueueTstamp(long enqueueTstamp) {
+        this.enqueueTstamp = enqueueTstamp;
+    }
+
+    public long getSendTstamp() {
+        return sendTstamp;
+    }
+
+    public void setSendTstamp(long sendTstamp) {
+        this.sendTstamp = sendTstamp;
+    }
+
+    @Override
+    public String toString() {
+        return "ApnSendRecord{" +
+                "id=" + notification.getIdentifier() +
+                ", user=" + user +
+                ", enqueueTstamp=" + enqueueTstamp +
+                '}';
+    }
+}
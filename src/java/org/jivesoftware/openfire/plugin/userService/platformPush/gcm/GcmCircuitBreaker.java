@@ -0,0 +1,74 @@
+package org.jivesoftware.openfire.plugin.userService.platformPush.gcm;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * GCM availability state shared by all GCM workers.
+ * When GCM fails the whole request (5xx, connection error) the circuit is opened for the Retry-After period,
+ * or an exponential backoff if GCM did not provide one. No worker sends while the circuit is open.
+ *
+ * Created by dusanklinec on 18.10.16.
+ */
+public class GcmCircuitBreaker {
+    private static final Logger log = LoggerFactory.getLogger(GcmCircuitBreaker.class);
+
+    private long openUntil = 0;
+    private int consecutiveFailures = 0;
+    private final AtomicLong opens = new AtomicLong(0);
+
+    /**
+     * Opens the circuit after a failed request.
+     * @param retryAfter milliseconds from the Retry-After header, negative if not present.
+     * @return time the circuit stays open until.
+     */
+    public synchronized long onFailure(long retryAfter){
+        consecutiveFailures += 1;
+        final long delay;
+        if (retryAfter > 0){
+            delay = Math.min(retryAfter, GcmSender.MAX_BACKOFF_DELAY);
+        } else {
+            final int shift = Math.min(consecutiveFailures - 1, 20);
+            delay = Math.min((long) GcmSender.BACKOFF_INITIAL_DELAY << shift, GcmSender.MAX_BACKOFF_DELAY);
+        }
+
+        final long until = System.currentTimeMillis() + delay;
+        if (until > openUntil){
+            openUntil = until;
+        }
+
+        opens.incrementAndGet();
+        log.warn(String.format("GCM circuit open for %d ms, retryAfter: %d, consecutive failures: %d",
+                delay, retryAfter, consecutiveFailures));
+        return openUntil;
+    }
+
+    /**
+     * Request went through, resets the failure counter.
+     */
+    public synchronized void onSuccess(){
+        consecutiveFailures = 0;
+    }
+
+    /**
+     * Returns number of milliseconds the circuit stays open for, 0 if closed.
+     * @return
+     */
+    public synchronized long getRemaining(){
+        return Math.max(0, openUntil - System.currentTimeMillis());
+    }
+
+    public synchronized long getOpenUntil() {
+        return openUntil;
+    }
+
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    public long getOpens() {
+        return opens.get();
+    }
+}
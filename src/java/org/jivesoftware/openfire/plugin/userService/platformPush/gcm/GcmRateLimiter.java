@@ -0,0 +1,73 @@
+package org.jivesoftware.openfire.plugin.userService.platformPush.gcm;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket limiting the rate of GCM HTTP requests, shared by all GCM workers.
+ * Bucket holds at most one second of requests (at least one request).
+ *
+ * Created by dusanklinec on 18.10.16.
+ */
+public class GcmRateLimiter {
+    private final double rate;
+    private double tokens;
+    private long lastRefill;
+    private final AtomicLong throttled = new AtomicLong(0);
+
+    /**
+     * @param rate requests per second, non-positive disables limiting.
+     */
+    public GcmRateLimiter(double rate) {
+        this.rate = rate;
+        this.tokens = rate;
+        this.lastRefill = System.currentTimeMillis();
+    }
+
+    /**
+     * Takes one request permit, blocks until it is available.
+     * @throws InterruptedException
+     */
+    public void acquire() throws InterruptedException {
+        if (rate <= 0){
+            return;
+        }
+
+        while(true){
+            final long wait;
+            synchronized (this){
+                refill();
+                if (tokens >= 1.0){
+                    tokens -= 1.0;
+                    return;
+                }
+
+                wait = (long) Math.ceil((1.0 - tokens) * 1000.0 / rate);
+            }
+
+            throttled.incrementAndGet();
+            Thread.sleep(Math.max(1, wait));
+        }
+    }
+
+    private void refill(){
+        final long now = System.currentTimeMillis();
+        if (now <= lastRefill){
+            return;
+        }
+
+        tokens = Math.min(Math.max(1.0, rate), tokens + (now - lastRefill) * rate / 1000.0);
+        lastRefill = now;
+    }
+
+    public double getRate() {
+        return rate;
+    }
+
+    /**
+     * Number of times a worker had to wait for a permit.
+     * @return
+     */
+    public long getThrottled() {
+        return throttled.get();
+    }
+}
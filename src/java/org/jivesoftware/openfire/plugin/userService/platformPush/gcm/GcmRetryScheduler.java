@@ -0,0 +1,114 @@
+package org.jivesoftware.openfire.plugin.userService.platformPush.gcm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * GCM send queue ordered by (due time, sequence number).
+ * Workers block until the next record is due, no polling.
+ *
+ * A new payload built for a token supersedes the older record to the same token, which is cancelled.
+ * Cancelled records are discarded lazily, when they get due.
+ *
+ * Created by dusanklinec on 18.10.16.
+ */
+public class GcmRetryScheduler {
+    private final DelayQueue<GcmSendRecord> queue = new DelayQueue<GcmSendRecord>();
+
+    /**
+     * token -> the most recent built record for the token.
+     */
+    private final ConcurrentHashMap<String, GcmSendRecord> latest = new ConcurrentHashMap<String, GcmSendRecord>();
+
+    private final AtomicLong cancelled = new AtomicLong(0);
+
+    /**
+     * Adds a new record. If the record carries a built payload, older built record to the same token is cancelled.
+     * @param rec
+     */
+    public void offer(GcmSendRecord rec){
+        if (rec.getBuilder() != null && rec.getTo() != null){
+            final GcmSendRecord previous = latest.put(rec.getTo(), rec);
+            if (previous != null && previous != rec && !previous.isCancelled()){
+                previous.setCancelled(true);
+                cancelled.incrementAndGet();
+            }
+        }
+
+        queue.add(rec);
+    }
+
+    /**
+     * Adds record back for a retry at its send time. Cancelled records are dropped.
+     * @param rec
+     */
+    public void reschedule(GcmSendRecord rec){
+        if (rec.isCancelled()){
+            return;
+        }
+
+        queue.add(rec);
+    }
+
+    /**
+     * Record is not going to be sent anymore (success or dropped).
+     * @param rec
+     */
+    public void onFinished(GcmSendRecord rec){
+        if (rec.getTo() != null){
+            latest.remove(rec.getTo(), rec);
+        }
+    }
+
+    /**
+     * Waits for the next due record, then takes all due records, at most max.
+     * Cancelled records are skipped.
+     *
+     * @param max maximum number of records to take.
+     * @param timeout maximum waiting time in milliseconds.
+     * @return due records, empty if none got due during the timeout.
+     * @throws InterruptedException
+     */
+    public List<GcmSendRecord> takeDue(int max, long timeout) throws InterruptedException {
+        final List<GcmSendRecord> due = new ArrayList<GcmSendRecord>();
+        final GcmSendRecord first = queue.poll(timeout, TimeUnit.MILLISECONDS);
+        if (first == null){
+            return due;
+        }
+
+        due.add(first);
+        if (max > 1){
+            queue.drainTo(due, max - 1);
+        }
+
+        final List<GcmSendRecord> active = new ArrayList<GcmSendRecord>(due.size());
+        for (GcmSendRecord rec : due) {
+            if (!rec.isCancelled()){
+                active.add(rec);
+            }
+        }
+
+        return active;
+    }
+
+    public int size(){
+        return queue.size();
+    }
+
+    public void clear(){
+        queue.clear();
+        latest.clear();
+    }
+
+    /**
+     * Number of records cancelled by a newer payload.
+     * @return
+     */
+    public long getCancelled() {
+        return cancelled.get();
+    }
+}
@@ -8,14 +8,17 @@ import org.json.JSONException;
 import org.xmpp.packet.JID;
 
 import java.util.Random;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Record for priority queue for failed send requests.
+ * Record for the GCM send queue, ordered by scheduled send time and creation sequence.
  *
  * Created by dusanklinec on 11.03.15.
  */
-public class GcmSendRecord implements Comparable<GcmSendRecord> {
+public class GcmSendRecord implements Delayed {
     public static final int MAX_RETRIES = 30;
 
     /**
@@ -23,6 +26,17 @@ public class GcmSendRecord implements Comparable<GcmSendRecord> {
      */
     private static final AtomicInteger counter = new AtomicInteger(0);
 
+    /**
+     * Monotonic sequence, tie-breaker for records with the same send time.
+     */
+    private static final AtomicLong seqCounter = new AtomicLong(0);
+    private final long seq = seqCounter.incrementAndGet();
+
+    /**
+     * Set when a newer payload for the same token supersedes this record.
+     */
+    private volatile boolean cancelled = false;
+
     /**
      * Scheduled time for next sending.
      */
@@ -48,6 +62,12 @@ public class GcmSendRecord implements Comparable<GcmSendRecord> {
      */
     private Message pushMsg;
 
+    /**
+     * Records with the same batch key carry the same message and are sent in one multicast request.
+     * Null if the record is not batched.
+     */
+    private String batchKey;
+
     /**
      * Destination of the packet (token)
      */
@@ -85,20 +105,25 @@ public class GcmSendRecord implements Comparable<GcmSendRecord> {
     }
 
     @Override
-    public int compareTo(GcmSendRecord pushSendRecord) {
-        if (pushSendRecord == null){
-            return -1;
+    public long getDelay(TimeUnit unit) {
+        return unit.convert(sendTstamp - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed o) {
+        if (o == this){
+            return 0;
         }
 
-        // Tie-breaker is the packet ID.
-        if (sendTstamp == pushSendRecord.getSendTstamp()){
-            if (pushMsg == null){
-                return -1;
-            } else if (pushSendRecord.getPushMsg() == null){
-                return -1;
-            }
+        if (!(o instanceof GcmSendRecord)){
+            final long diff = getDelay(TimeUnit.MILLISECONDS) - o.getDelay(TimeUnit.MILLISECONDS);
+            return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+        }
 
-            return pushMsg.toString().compareTo(pushSendRecord.getPushMsg().toString());
+        // Tie-breaker is the sequence number.
+        final GcmSendRecord pushSendRecord = (GcmSendRecord) o;
+        if (sendTstamp == pushSendRecord.getSendTstamp()){
+            return seq < pushSendRecord.getSeq() ? -1 : (seq > pushSendRecord.getSeq() ? 1 : 0);
         }
 
         return sendTstamp < pushSendRecord.getSendTstamp() ? -1 : 1;
@@ -146,10 +171,24 @@ public class GcmSendRecord implements Comparable<GcmSendRecord> {
                 ", pushMsg=" + pushMsg +
                 ", to='" + to + '\'' +
                 ", forceResend=" + forceResend +
+                ", seq=" + seq +
+                ", cancelled=" + cancelled +
                 ", lock=" + lock +
                 '}';
     }
 
+    public long getSeq() {
+        return seq;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public void setCancelled(boolean cancelled) {
+        this.cancelled = cancelled;
+    }
+
     public long getSendTstamp() {
         return sendTstamp;
     }
@@ -182,6 +221,14 @@ public class GcmSendRecord implements Comparable<GcmSendRecord> {
         this.pushMsg = pushMsg;
     }
 
+    public String getBatchKey() {
+        return batchKey;
+    }
+
+    public void setBatchKey(String batchKey) {
+        this.batchKey = batchKey;
+    }
+
     public boolean isForceResend() {
         return forceResend;
     }
@@ -1,5 +1,8 @@
 package org.jivesoftware.openfire.plugin.userService.platformPush.gcm;
 
+import com.google.android.gcm.server.Constants;
+import com.google.android.gcm.server.InvalidRequestException;
+import com.google.android.gcm.server.MulticastResult;
 import com.google.android.gcm.server.Result;
 import com.google.android.gcm.server.Sender;
 import org.jivesoftware.openfire.IQRouter;
@@ -12,12 +15,17 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 
 /**
- * Packet sender worker.
+ * Packet sender worker. Several workers share the GCM queue, the circuit breaker and the rate limiter.
  *
  * Created by dusanklinec on 13.03.15.
  */
@@ -42,14 +50,56 @@ public class GcmSender extends Thread {
      */
     protected static final int MAX_BACKOFF_DELAY = 1024000;
 
+    /**
+     * Maximum number of registration ids in one multicast request, GCM limit.
+     */
+    protected static final int MAX_MULTICAST_SIZE = 1000;
+
+    /**
+     * Maximum number of records one worker takes from the queue in one round.
+     */
+    public static final String PROP_MAX_IN_FLIGHT = "phonex.gcm.maxInFlight";
+    public static final int DEFAULT_MAX_IN_FLIGHT = 5000;
+
+    /**
+     * GCM send endpoint, if empty, the Google endpoint is used.
+     */
+    public static final String PROP_ENDPOINT = "phonex.gcm.endpoint";
+
+    private final GcmCircuitBreaker circuit;
+    private final GcmRateLimiter rateLimiter;
+    private final int maxInFlight;
+
+    /**
+     * Maximum time a worker waits for a due record before checking its state, in milliseconds.
+     */
+    private static final long WAIT_TIMEOUT = 1000;
+
+    private final AtomicLong httpRequests = new AtomicLong(0);
+    private final AtomicLong recordsSent = new AtomicLong(0);
+
     /**
      * Default constructor.
      * @param svc
      */
-    public GcmSender(PlatformPushHandler svc, UserServicePlugin plugin) {
+    public GcmSender(PlatformPushHandler svc, UserServicePlugin plugin, int workerIdx) {
+        this(svc, plugin, workerIdx, null);
+    }
+
+    /**
+     * Constructor with the given GCM client, e.g., for a local GCM stub.
+     * @param svc
+     * @param plugin
+     * @param workerIdx
+     * @param sender GCM client, if null, it is built from the configuration.
+     */
+    GcmSender(PlatformPushHandler svc, UserServicePlugin plugin, int workerIdx, Sender sender) {
         this.svcRef = new WeakReference<PlatformPushHandler>(svc);
         this.pluginRef = new WeakReference<UserServicePlugin>(plugin);
         this.random = new Random();
+        this.circuit = svc.getGcmCircuit();
+        this.rateLimiter = svc.getGcmRateLimiter();
+        this.maxInFlight = Math.max(1, JiveGlobals.getIntProperty(PROP_MAX_IN_FLIGHT, DEFAULT_MAX_IN_FLIGHT));
 
         // Load API key.
         apiKey = JiveGlobals.getProperty("phonex.gcm.apikey", "");
@@ -60,8 +110,17 @@ public class GcmSender extends Thread {
                     apiKey.length(), MiscUtils.substring(apiKey, 0, 6)));
         }
 
-        gcmSender = new Sender(apiKey);
-        this.setName("GcmSender");
+        final String endpoint = JiveGlobals.getProperty(PROP_ENDPOINT, "");
+        if (sender != null){
+            gcmSender = sender;
+        } else if (MiscUtils.isEmpty(endpoint)){
+            gcmSender = new Sender(apiKey);
+        } else {
+            log.warn(String.format("GCM uses custom endpoint %s", endpoint));
+            gcmSender = new Sender(apiKey, endpoint);
+        }
+
+        this.setName("GcmSender." + workerIdx);
     }
 
     public void deinit(){
@@ -81,77 +140,204 @@ public class GcmSender extends Thread {
                 break;
             }
 
-            // Iterate send queue and process all records.
-            final PriorityBlockingQueue<GcmSendRecord> sndQueue = svc.getGcmQueue();
-            while(!sndQueue.isEmpty() && senderWorking){
-                GcmSendRecord sndRec = sndQueue.poll();
-                if (sndRec == null){
-                    continue;
+            // Nothing is sent while GCM is unavailable.
+            final long circuitRemaining = circuit.getRemaining();
+            if (circuitRemaining > 0){
+                try {
+                    Thread.sleep(Math.min(circuitRemaining, 1000));
+                } catch (Exception e) {
+                    log.error("Sleep interrupted", e);
+                    break;
                 }
 
-                final long curTime = System.currentTimeMillis();
+                continue;
+            }
 
-                // Compare time of sending with current time. If we have some time, take some nap.
-                if ((curTime - sndRec.getSendTstamp()) < 0){
-                    // Add back to queue and take a short nap.
-                    svc.addSendRecord(sndRec, false);
-                    break;
+            // Wait for records due for sending, group identical payloads to multicast requests.
+            final Map<String, List<GcmSendRecord>> batches;
+            try {
+                batches = takeDueRecords(svc, svc.getGcmScheduler());
+            } catch (InterruptedException e) {
+                log.error("Waiting for GCM records interrupted", e);
+                break;
+            }
+
+            for (List<GcmSendRecord> batch : batches.values()) {
+                for(int offset = 0; offset < batch.size() && senderWorking; offset += MAX_MULTICAST_SIZE){
+                    sendBatch(svc, batch.subList(offset, Math.min(batch.size(), offset + MAX_MULTICAST_SIZE)));
                 }
+            }
+        }
+
+        log.info("Sender thread finishing.");
+    }
 
-                // If sending counter is too high, drop off from the queue.
-                if (sndRec.getResendAttempt() > sndRec.getMaxRetries()){
-                    log.info(String.format("Send counter too high for packet %s to %s, dropping", sndRec.getPacketId(), sndRec.getTo()));
+    /**
+     * Waits for records due for sending, takes at most maxInFlight.
+     * Records are grouped by the batch key, in order of the queue. Records without batch key are sent alone.
+     * Records with too many send attempts are dropped.
+     *
+     * @param svc
+     * @param scheduler
+     * @return batch key -> records with that key, empty if nothing got due.
+     */
+    private Map<String, List<GcmSendRecord>> takeDueRecords(PlatformPushHandler svc, GcmRetryScheduler scheduler) throws InterruptedException {
+        final Map<String, List<GcmSendRecord>> batches = new LinkedHashMap<String, List<GcmSendRecord>>();
+        for (GcmSendRecord sndRec : scheduler.takeDue(maxInFlight, WAIT_TIMEOUT)) {
+            // If sending counter is too high, drop off from the queue.
+            if (sndRec.getResendAttempt() > sndRec.getMaxRetries()){
+                log.info(String.format("Send counter too high for packet %s to %s, dropping", sndRec.getPacketId(), sndRec.getTo()));
 
-                    // Store delivery result to database so it is not tried to deliver again.
-                    svc.onGcmSendFailed(sndRec);
-                    continue;
-                }
+                // Store delivery result to database so it is not tried to deliver again.
+                scheduler.onFinished(sndRec);
+                svc.onGcmSendFailed(sndRec);
+                continue;
+            }
 
-                // Send
-                try {
-                    sndRec.incSendCtr();
-                    sndRec.setLastSendTstamp(curTime);
-                    Result gcmResult = null;
-
-                    // Do GCM send.
-                    try {
-                        gcmResult = gcmSender.sendNoRetry(sndRec.getPushMsg(), sndRec.getTo());
-                    } catch(Exception e){
-                        log.error("Exception in sending GCM", e);
-                    }
-
-                    log.info(String.format("Packet sent, id: %s, result: %s", sndRec.getPacketId(), gcmResult));
-                    if (gcmResult == null){
-                        // Re-schedule sending of this packet.
-                        // If there is no client session anymore (client offline) this is not reached thus give some
-                        // reasonable resend boundary, e.g. 10 attempts.
-                        final int backoff = sndRec.getBackoff();
-                        final long sleepTime = backoff / 2 + random.nextInt(backoff);
-                        if (2 * backoff < MAX_BACKOFF_DELAY) {
-                            sndRec.setBackoff(backoff*2);
-                        }
-
-                        sndRec.setSendTstamp(System.currentTimeMillis() + sleepTime);
-                        svc.addSendRecord(sndRec, true);
-                        log.info(String.format("Packet %s re-scheduled with offset %d to %s. ResendAttempt %d",
-                                sndRec.getPacketId(), sleepTime, sndRec.getTo(), sndRec.getResendAttempt()));
-                    } else {
-                        svc.onGcmSendSuccess(sndRec, gcmResult);
-                    }
-
-                } catch(Exception ex){
-                    log.error("Error during sending a packet", ex);
-                }
+            final String key = sndRec.getBatchKey() != null ? sndRec.getBatchKey() : "packet:" + sndRec.getPacketId();
+            List<GcmSendRecord> batch = batches.get(key);
+            if (batch == null){
+                batch = new ArrayList<GcmSendRecord>();
+                batches.put(key, batch);
             }
 
+            batch.add(sndRec);
+        }
+
+        return batches;
+    }
+
+    /**
+     * Sends one message to all records in the batch in one HTTP request.
+     * Per-token results are split back to the records, records failed with a retriable error are re-scheduled
+     * with their own backoff. If the whole request fails, the shared circuit is opened and records are
+     * re-scheduled to its closing time.
+     *
+     * @param svc
+     * @param batch records with the same message, at most MAX_MULTICAST_SIZE.
+     */
+    private void sendBatch(PlatformPushHandler svc, List<GcmSendRecord> batch){
+        final long curTime = System.currentTimeMillis();
+        final List<String> regIds = new ArrayList<String>(batch.size());
+        for (GcmSendRecord sndRec : batch) {
+            sndRec.incSendCtr();
+            sndRec.setLastSendTstamp(curTime);
+            regIds.add(sndRec.getTo());
+        }
+
+        // Do GCM send.
+        List<Result> results = null;
+        boolean requestFailed = true;
+        long retryAfter = -1;
+        try {
+            rateLimiter.acquire();
+            if (batch.size() == 1){
+                final Result gcmResult = gcmSender.sendNoRetry(batch.get(0).getPushMsg(), regIds.get(0));
+                results = gcmResult == null ? null : Collections.singletonList(gcmResult);
+
+            } else {
+                final MulticastResult multicastResult = gcmSender.sendNoRetry(batch.get(0).getPushMsg(), regIds);
+                results = multicastResult == null ? null : multicastResult.getResults();
+            }
+
+            httpRequests.incrementAndGet();
+            recordsSent.addAndGet(batch.size());
+            requestFailed = results == null;
+
+        } catch(InvalidRequestException e){
+            // 5xx is GCM unavailability, other codes are errors of this request.
+            log.error("GCM request rejected", e);
+            requestFailed = e.getHttpStatusCode() >= 500;
+            retryAfter = e.getRetryAfter();
+
+        } catch(InterruptedException e){
+            log.error("Interrupted while waiting for GCM rate limiter", e);
+            requestFailed = false;
+
+        } catch(Exception e){
+            log.error("Exception in sending GCM", e);
+            requestFailed = false;
+        }
+
+        long circuitUntil = 0;
+        if (requestFailed){
+            circuitUntil = circuit.onFailure(retryAfter);
+        } else if (results != null) {
+            circuit.onSuccess();
+        }
+
+        if (results != null && results.size() != batch.size()){
+            log.error(String.format("GCM multicast result size mismatch, records: %d, results: %d", batch.size(), results.size()));
+            results = null;
+        }
+
+        for(int i = 0, sz = batch.size(); i < sz; i++){
+            final GcmSendRecord sndRec = batch.get(i);
+            final Result gcmResult = results == null ? null : results.get(i);
+            log.debug(String.format("Packet sent, id: %s, result: %s", sndRec.getPacketId(), gcmResult));
+
             try {
-                Thread.sleep(100);
-            } catch (Exception e) {
-                log.error("Sleep interrupted", e);
-                break;
+                if (requestFailed){
+                    sndRec.setSendTstamp(circuitUntil);
+                    svc.addSendRecord(sndRec, true);
+
+                } else if (gcmResult == null || isRetriable(gcmResult)){
+                    reschedule(svc, sndRec);
+                } else {
+                    svc.getGcmScheduler().onFinished(sndRec);
+                    svc.onGcmSendSuccess(sndRec, gcmResult);
+                }
+
+            } catch(Exception ex){
+                log.error("Error during sending a packet", ex);
             }
         }
+    }
 
-        log.info("Sender thread finishing.");
+    /**
+     * Re-schedule sending of this packet.
+     * If there is no client session anymore (client offline) this is not reached thus give some
+     * reasonable resend boundary, e.g. 10 attempts.
+     *
+     * @param svc
+     * @param sndRec
+     */
+    private void reschedule(PlatformPushHandler svc, GcmSendRecord sndRec){
+        final int backoff = sndRec.getBackoff();
+        final long sleepTime = backoff / 2 + random.nextInt(backoff);
+        if (2 * backoff < MAX_BACKOFF_DELAY) {
+            sndRec.setBackoff(backoff*2);
+        }
+
+        sndRec.setSendTstamp(System.currentTimeMillis() + sleepTime);
+        svc.addSendRecord(sndRec, true);
+        log.info(String.format("Packet %s re-scheduled with offset %d to %s. ResendAttempt %d",
+                sndRec.getPacketId(), sleepTime, sndRec.getTo(), sndRec.getResendAttempt()));
+    }
+
+    /**
+     * Returns true if the token result signalizes temporary GCM failure.
+     * @param gcmResult
+     * @return
+     */
+    private static boolean isRetriable(Result gcmResult){
+        final String error = gcmResult.getErrorCodeName();
+        return Constants.ERROR_UNAVAILABLE.equals(error) || Constants.ERROR_INTERNAL_SERVER_ERROR.equals(error);
+    }
+
+    /**
+     * Number of HTTP requests sent to GCM.
+     * @return
+     */
+    public long getHttpRequests() {
+        return httpRequests.get();
+    }
+
+    /**
+     * Number of records sent to GCM, in all HTTP requests.
+     * @return
+     */
+    public long getRecordsSent() {
+        return recordsSent.get();
     }
 }
@@ -35,19 +35,16 @@ public class PresenceQueryHandler extends IQHandler implements ServerFeaturesPro
     @Override
     public IQ handleIQ(IQ packet) throws UnauthorizedException {
         final IQ.Type iqType = packet.getType();
-        log.info(String.format("Handle IQ[presenceQuery] packetType: %s, from: %s, to: %s, tstamp: %d",
-                iqType, packet.getFrom(), packet.getTo(), System.currentTimeMillis()));
-        
-        log.info(packet.toString());
-
-        // Handle only specific get requests.
-        if (!IQ.Type.get.equals(iqType)) {
-            log.info("Undesired type, not processing");
+        if (svc == null){
+            log.info("No svc, cannot process");
             return null;
         }
 
-        if (svc == null){
-            log.info("No svc, cannot process");
+        svc.getPlugin().getTracer().tracePacket(log, "iq.presenceQuery", packet);
+
+        // Handle only specific get requests.
+        if (!IQ.Type.get.equals(iqType)) {
+            log.debug("Undesired type, not processing");
             return null;
         }
 
@@ -0,0 +1,246 @@
+package org.jivesoftware.openfire.plugin.userService.push;
+
+import org.jivesoftware.openfire.plugin.userService.db.DbEntityManager;
+import org.jivesoftware.openfire.plugin.userService.db.DbPushDelivery;
+import org.jivesoftware.util.JiveGlobals;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Write-behind stage for push delivery ACKs.
+ * ACKs are buffered and flushed to database in one transaction, either when buffer reaches batch size
+ * or after flush interval. Multiple ACKs for the same (msgId, user, resource) are coalesced, the newest one wins.
+ * If the batch fails, ACKs are written one by one and the failed ones are requeued for the next flush.
+ * After deinit ACKs are written synchronously.
+ *
+ * Created by dusanklinec on 18.10.16.
+ */
+public class PushAckWriter extends Thread {
+    private static final Logger log = LoggerFactory.getLogger(PushAckWriter.class);
+    public static final String PROP_BATCH_SIZE = "phonex.push.ackBatchSize";
+    public static final String PROP_FLUSH_INTERVAL = "phonex.push.ackFlushInterval";
+    public static final int DEFAULT_BATCH_SIZE = 200;
+    public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+
+    /**
+     * Maximum number of write attempts of a single ACK.
+     */
+    private static final int MAX_ATTEMPTS = 5;
+
+    private final Object lock = new Object();
+    private volatile boolean writerWorking = true;
+    private boolean stopped = false;
+    private boolean lastFlushFailed = false;
+    private Map<String, DbPushDelivery> buffer = new LinkedHashMap<String, DbPushDelivery>();
+
+    /**
+     * Number of failed write attempts of requeued ACKs.
+     */
+    private final Map<String, Integer> attempts = new HashMap<String, Integer>();
+
+    private final int batchSize;
+    private final long flushInterval;
+
+    public PushAckWriter() {
+        this.batchSize = Math.max(1, JiveGlobals.getIntProperty(PROP_BATCH_SIZE, DEFAULT_BATCH_SIZE));
+        this.flushInterval = Math.max(10, JiveGlobals.getLongProperty(PROP_FLUSH_INTERVAL, DEFAULT_FLUSH_INTERVAL));
+        this.setName("PushAckWriter");
+    }
+
+    /**
+     * Stops the writer thread and flushes all buffered ACKs on the calling thread.
+     * ACKs added later are written synchronously.
+     */
+    public void deinit(){
+        log.info("Deinitializing ACK writer");
+        writerWorking = false;
+        synchronized (lock){
+            stopped = true;
+            lock.notifyAll();
+        }
+
+        try {
+            this.join(5000);
+        } catch (InterruptedException e) {
+            log.error("Interrupted while waiting for ACK writer", e);
+        }
+
+        // Durable flush, whatever is left in the buffer, failed ACKs are retried.
+        for(int i = 0; i < MAX_ATTEMPTS && getBufferSize() > 0; i++){
+            flush();
+        }
+
+        final int left = getBufferSize();
+        if (left > 0){
+            log.error(String.format("ACK writer stopped, %d ACKs could not be persisted", left));
+        }
+    }
+
+    /**
+     * Adds ACK to the write buffer. Replaces buffered ACK for the same message and destination.
+     * @param ack
+     */
+    public void add(DbPushDelivery ack){
+        final String key = ackKey(ack);
+        synchronized (lock){
+            if (!stopped) {
+                buffer.remove(key);
+                buffer.put(key, ack);
+                attempts.remove(key);
+
+                if (buffer.size() >= batchSize) {
+                    lock.notifyAll();
+                }
+                return;
+            }
+        }
+
+        // Writer is stopped, nobody would flush the buffer.
+        if (DbEntityManager.persistDbAck(ack) == null){
+            log.error(String.format("Could not persist ACK %s", key));
+        }
+    }
+
+    /**
+     * Writes all buffered ACKs to the database.
+     * @return number of ACKs written
+     */
+    public int flush(){
+        final List<DbPushDelivery> toWrite;
+        synchronized (lock){
+            if (buffer.isEmpty()){
+                return 0;
+            }
+
+            toWrite = new ArrayList<DbPushDelivery>(buffer.values());
+            buffer = new LinkedHashMap<String, DbPushDelivery>();
+        }
+
+        final long timeStart = System.currentTimeMillis();
+        final int written = DbEntityManager.persistDbAcks(toWrite);
+        if (written >= 0){
+            onWritten(toWrite);
+            log.info(String.format("ACKs flushed: %d, time: %d ms", written, System.currentTimeMillis() - timeStart));
+            return written;
+        }
+
+        // Batch failed, e.g., on a single bad row. Write one by one, requeue the failed ones.
+        log.warn(String.format("Could not persist %d ACKs in batch, writing one by one", toWrite.size()));
+        final List<DbPushDelivery> done = new ArrayList<DbPushDelivery>(toWrite.size());
+        final List<DbPushDelivery> failed = new ArrayList<DbPushDelivery>();
+        for (DbPushDelivery ack : toWrite) {
+            // First row failed too, database is probably down, do not try the rest.
+            if (done.isEmpty() && !failed.isEmpty()){
+                failed.add(ack);
+                continue;
+            }
+
+            if (DbEntityManager.persistDbAck(ack) != null){
+                done.add(ack);
+            } else {
+                failed.add(ack);
+            }
+        }
+
+        onWritten(done);
+        requeue(failed);
+        log.info(String.format("ACKs flushed one by one: %d, failed: %d, time: %d ms",
+                done.size(), failed.size(), System.currentTimeMillis() - timeStart));
+        return done.size();
+    }
+
+    /**
+     * Clears retry counters of written ACKs.
+     * @param written
+     */
+    private void onWritten(List<DbPushDelivery> written){
+        synchronized (lock){
+            lastFlushFailed = false;
+            if (attempts.isEmpty()){
+                return;
+            }
+
+            for (DbPushDelivery ack : written) {
+                attempts.remove(ackKey(ack));
+            }
+        }
+    }
+
+    /**
+     * Returns failed ACKs to the buffer for the next flush, unless a newer ACK for the same key was added meanwhile.
+     * ACK is dropped after MAX_ATTEMPTS failed attempts.
+     * @param failed
+     */
+    private void requeue(List<DbPushDelivery> failed){
+        if (failed.isEmpty()){
+            return;
+        }
+
+        synchronized (lock){
+            lastFlushFailed = true;
+            for (DbPushDelivery ack : failed) {
+                final String key = ackKey(ack);
+                if (buffer.containsKey(key)){
+                    continue;
+                }
+
+                final Integer prev = attempts.get(key);
+                final int cur = prev == null ? 1 : prev + 1;
+                if (cur >= MAX_ATTEMPTS){
+                    attempts.remove(key);
+                    log.error(String.format("ACK %s dropped after %d failed attempts", key, cur));
+                    continue;
+                }
+
+                attempts.put(key, cur);
+                buffer.put(key, ack);
+            }
+        }
+    }
+
+    private static String ackKey(DbPushDelivery ack){
+        return ack.getPushMessageId() + "|" + ack.getUser() + "|" + (ack.getResource() == null ? "" : ack.getResource());
+    }
+
+    /**
+     * Returns number of buffered ACKs.
+     * @return
+     */
+    public int getBufferSize(){
+        synchronized (lock){
+            return buffer.size();
+        }
+    }
+
+    public void run(){
+        log.info("ACK writer thread started.");
+
+        while(writerWorking){
+            try {
+                synchronized (lock){
+                    // After a failed flush wait for the whole interval, not to hammer the database.
+                    if (writerWorking && (buffer.size() < batchSize || lastFlushFailed)){
+                        lock.wait(flushInterval);
+                    }
+                }
+            } catch (InterruptedException e) {
+                log.error("ACK writer interrupted", e);
+                break;
+            }
+
+            try {
+                flush();
+            } catch(Exception ex){
+                log.error("Exception in ACK flush", ex);
+            }
+        }
+
+        log.info("ACK writer thread finishing.");
+    }
+}
@@ -0,0 +1,55 @@
+package org.jivesoftware.openfire.plugin.userService.push;
+
+import org.jivesoftware.openfire.plugin.userService.db.DbPushMessage;
+import org.jivesoftware.openfire.plugin.userService.push.messages.SimplePushPart;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Descriptor of one XMPP push action.
+ * Binds push action name to the parser of the AMQP push request and to the factory rebuilding the push part
+ * from the database record. Merge policy of the action is defined by the push part it creates
+ * (unique flag, canMergeWith / mergeWith).
+ *
+ * Created by dusanklinec on 18.10.16.
+ */
+public abstract class PushAction {
+    private final String action;
+
+    protected PushAction(String action) {
+        this.action = action;
+    }
+
+    /**
+     * Handles push request for this action received from the queue.
+     * By default the action is only registered, nothing is pushed.
+     *
+     * @param svc
+     * @param user destination user
+     * @param obj whole push request
+     * @param msg push message for this action
+     * @param recvTstamp time the request was received from the queue
+     * @throws JSONException
+     */
+    public void handleRequest(PushService svc, String user, JSONObject obj, JSONObject msg, long recvTstamp) throws JSONException {
+
+    }
+
+    /**
+     * Builds push part from the stored database push message.
+     * @param dbMsg
+     * @return
+     */
+    public abstract SimplePushPart fromDb(DbPushMessage dbMsg);
+
+    public String getAction() {
+        return action;
+    }
+
+    @Override
+    public String toString() {
+        return "PushAction{" +
+                "action='" + action + '\'' +
+                '}';
+    }
+}
@@ -0,0 +1,191 @@
+package org.jivesoftware.openfire.plugin.userService.push;
+
+import org.jivesoftware.openfire.plugin.userService.db.DbPushMessage;
+import org.jivesoftware.openfire.plugin.userService.push.events.*;
+import org.jivesoftware.openfire.plugin.userService.push.messages.SimplePushPart;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Registry of XMPP push actions, maps push action name to its descriptor.
+ * Adding a new push event type means registering its action here.
+ *
+ * Lookup is case insensitive, keys are normalized to lower case on registration.
+ * Registry is filled before the service starts and is read-only afterwards.
+ *
+ * Created by dusanklinec on 18.10.16.
+ */
+public class PushActionRegistry {
+    private final Map<String, PushAction> actions = new HashMap<String, PushAction>();
+
+    /**
+     * Registers push action, replaces the previous one with the same name.
+     * @param action
+     */
+    public void register(PushAction action){
+        actions.put(normalize(action.getAction()), action);
+    }
+
+    /**
+     * Returns push action descriptor for the given action name or null if action is unknown.
+     * @param action
+     * @return
+     */
+    public PushAction get(String action){
+        if (action == null){
+            return null;
+        }
+
+        // Actions are sent in canonical form, normalize only if not found.
+        final PushAction pushAction = actions.get(action);
+        return pushAction != null ? pushAction : actions.get(normalize(action));
+    }
+
+    public Collection<PushAction> getActions(){
+        return Collections.unmodifiableCollection(actions.values());
+    }
+
+    private static String normalize(String action){
+        return action.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Creates registry with all known push actions.
+     * @return
+     */
+    public static PushActionRegistry createDefault(){
+        final PushActionRegistry reg = new PushActionRegistry();
+
+        reg.register(new PushAction(ClistSyncEventMessage.PUSH) {
+            @Override
+            public void handleRequest(PushService svc, String user, JSONObject obj, JSONObject msg, long recvTstamp) throws JSONException {
+                svc.pushClistSync(user, obj, msg, recvTstamp);
+            }
+
+            @Override
+            public SimplePushPart fromDb(DbPushMessage dbMsg) {
+                return new ClistSyncEventMessage(dbMsg.getTstamp());
+            }
+        });
+
+        reg.register(new PushAction(NewCertEventMessage.PUSH) {
+            @Override
+            public void handleRequest(PushService svc, String user, JSONObject obj, JSONObject msg, long recvTstamp) throws JSONException {
+                svc.pushNewCertEvent(user, obj, msg, recvTstamp);
+            }
+
+            @Override
+            public SimplePushPart fromDb(DbPushMessage dbMsg) {
+                return new NewCertEventMessage(dbMsg.getTstamp(), Long.parseLong(dbMsg.getAux1()), dbMsg.getAux2());
+            }
+        });
+
+        reg.register(new PushAction(DHKeyUsedEventMessage.PUSH) {
+            @Override
+            public void handleRequest(PushService svc, String user, JSONObject obj, JSONObject msg, long recvTstamp) throws JSONException {
+                svc.pushDHKeyUsed(user, obj, msg, recvTstamp);
+            }
+
+            @Override
+            public SimplePushPart fromDb(DbPushMessage dbMsg) {
+                return new DHKeyUsedEventMessage(dbMsg.getTstamp());
+            }
+        });
+
+        reg.register(new PushAction(AuthCheckEventMessage.PUSH) {
+            @Override
+            public SimplePushPart fromDb(DbPushMessage dbMsg) {
+                return new AuthCheckEventMessage(dbMsg.getTstamp());
+            }
+        });
+
+        reg.register(new PushAction(ContactRequestEventMessage.PUSH) {
+            @Override
+            public SimplePushPart fromDb(DbPushMessage dbMsg) {
+                return new ContactRequestEventMessage(dbMsg.getTstamp());
+            }
+        });
+
+        reg.register(new PushAction(LicenseCheckEventMessage.PUSH) {
+            @Override
+            public void handleRequest(PushService svc, String user, JSONObject obj, JSONObject msg, long recvTstamp) throws JSONException {
+                svc.pushLicenseCheck(user, obj, msg, recvTstamp);
+            }
+
+            @Override
+            public SimplePushPart fromDb(DbPushMessage dbMsg) {
+                return new LicenseCheckEventMessage(dbMsg.getTstamp());
+            }
+        });
+
+        reg.register(new PushAction(MissedCallEventMessage.PUSH) {
+            @Override
+            public SimplePushPart fromDb(DbPushMessage dbMsg) {
+                return new MissedCallEventMessage(dbMsg.getTstamp());
+            }
+        });
+
+        reg.register(new PushAction(NewFileEventMessage.PUSH) {
+            @Override
+            public SimplePushPart fromDb(DbPushMessage dbMsg) {
+                return new NewFileEventMessage(dbMsg.getTstamp());
+            }
+        });
+
+        reg.register(new PushAction(VersionCheckEventMessage.PUSH) {
+            @Override
+            public void handleRequest(PushService svc, String user, JSONObject obj, JSONObject msg, long recvTstamp) throws JSONException {
+                svc.pushVersionCheck(user, obj, msg, recvTstamp);
+            }
+
+            @Override
+            public SimplePushPart fromDb(DbPushMessage dbMsg) {
+                return new VersionCheckEventMessage(dbMsg.getTstamp());
+            }
+        });
+
+        reg.register(new PushAction(ContactCertUpdateEventMessage.PUSH) {
+            @Override
+            public void handleRequest(PushService svc, String user, JSONObject obj, JSONObject msg, long recvTstamp) throws JSONException {
+                svc.pushContactCertUpdate(user, obj, msg, recvTstamp);
+            }
+
+            @Override
+            public SimplePushPart fromDb(DbPushMessage dbMsg) {
+                return new ContactCertUpdateEventMessage(dbMsg.getTstamp());
+            }
+        });
+
+        reg.register(new PushAction(PairingRequestCheckEventMessage.PUSH) {
+            @Override
+            public void handleRequest(PushService svc, String user, JSONObject obj, JSONObject msg, long recvTstamp) throws JSONException {
+                svc.pushPairingRequestEvent(user, obj, msg, recvTstamp);
+            }
+
+            @Override
+            public SimplePushPart fromDb(DbPushMessage dbMsg) {
+                return new PairingRequestCheckEventMessage(dbMsg.getTstamp());
+            }
+        });
+
+        reg.register(new PushAction(LogoutEventMessage.PUSH) {
+            @Override
+            public void handleRequest(PushService svc, String user, JSONObject obj, JSONObject msg, long recvTstamp) throws JSONException {
+                svc.pushLogoutEvent(user, obj, msg, recvTstamp);
+            }
+
+            @Override
+            public SimplePushPart fromDb(DbPushMessage dbMsg) {
+                return new LogoutEventMessage(dbMsg.getTstamp());
+            }
+        });
+
+        return reg;
+    }
+}
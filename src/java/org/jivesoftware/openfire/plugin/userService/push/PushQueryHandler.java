@@ -35,19 +35,16 @@ public class PushQueryHandler extends IQHandler implements ServerFeaturesProvide
     @Override
     public IQ handleIQ(IQ packet) throws UnauthorizedException {
         final IQ.Type iqType = packet.getType();
-        log.info(String.format("Handle IQ[pushQuery] packetType: %s, from: %s, to: %s, tstamp: %d",
-                iqType, packet.getFrom(), packet.getTo(), System.currentTimeMillis()));
+        if (svc == null){
+            log.info("No svc, cannot process");
+            return null;
+        }
 
-        log.info(packet.toString());
+        svc.getPlugin().getTracer().tracePacket(log, "iq.pushQuery", packet);
 
         // Handle only specific get requests.
         if (!IQ.Type.get.equals(iqType)) {
-            log.info("Undesired type, not processing");
-            return null;
-        }
-
-        if (svc == null){
-            log.info("No svc, cannot process");
+            log.debug("Undesired type, not processing");
             return null;
         }
 
@@ -0,0 +1,124 @@
+package org.jivesoftware.openfire.plugin.userService.push;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Push ACK round trip time estimator for one resource.
+ * Computes retransmission timeout from smoothed RTT and its variance, RFC 6298 style.
+ * Only ACKs for packets sent once are sampled (Karn's algorithm), timeout backs the RTO off until a new sample arrives.
+ *
+ * Created by dusanklinec on 18.10.16.
+ */
+public class PushRttEstimator {
+    public static final long MIN_RTO = 1000;
+    public static final long MAX_RTO = 30000;
+    public static final long INITIAL_RTO = 10000;
+    public static final long MIN_BACKOFF = 1000;
+    public static final long MAX_BACKOFF = 15000;
+
+    private static final double ALPHA = 1.0/8.0;
+    private static final double BETA  = 1.0/4.0;
+
+    private double srtt = -1;
+    private double rttvar = 0;
+    private long rto = INITIAL_RTO;
+    private long lastRtt = -1;
+    private long samples = 0;
+    private long timeouts = 0;
+    private long lastSampleTstamp = 0;
+
+    /**
+     * Adds new RTT measurement.
+     * @param rtt round trip time in milliseconds.
+     */
+    public synchronized void addSample(long rtt){
+        if (rtt < 0){
+            return;
+        }
+
+        if (srtt < 0){
+            srtt = rtt;
+            rttvar = rtt / 2.0;
+        } else {
+            rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - rtt);
+            srtt = (1 - ALPHA) * srtt + ALPHA * rtt;
+        }
+
+        rto = clamp((long) Math.ceil(srtt + Math.max(10, 4 * rttvar)), MIN_RTO, MAX_RTO);
+        lastRtt = rtt;
+        samples += 1;
+        lastSampleTstamp = System.currentTimeMillis();
+    }
+
+    /**
+     * ACK did not arrive in RTO, back off.
+     */
+    public synchronized void onTimeout(){
+        timeouts += 1;
+        rto = clamp(rto * 2, MIN_RTO, MAX_RTO);
+    }
+
+    /**
+     * Returns timeout for waiting for the ACK.
+     * @return
+     */
+    public synchronized long getRto(){
+        return rto;
+    }
+
+    /**
+     * Returns delay before next resend attempt after timeout.
+     * Grows exponentially with number of attempts from smoothed RTT, randomized by +-25 % so resends
+     * of many resources do not synchronize.
+     *
+     * @param resendAttempt
+     * @return
+     */
+    public synchronized long getBackoff(int resendAttempt){
+        final long base = Math.max(MIN_BACKOFF, srtt < 0 ? MIN_BACKOFF : (long) srtt);
+        final int exp = Math.max(0, Math.min(resendAttempt - 1, 4));
+        final long backoff = clamp(base << exp, MIN_BACKOFF, MAX_BACKOFF);
+        final double jitter = 0.75 + ThreadLocalRandom.current().nextDouble() * 0.5;
+        return (long) (backoff * jitter);
+    }
+
+    private static long clamp(long x, long min, long max){
+        return x < min ? min : (x > max ? max : x);
+    }
+
+    public synchronized long getSrtt() {
+        return srtt < 0 ? -1 : Math.round(srtt);
+    }
+
+    public synchronized long getRttvar() {
+        return Math.round(rttvar);
+    }
+
+    public synchronized long getLastRtt() {
+        return lastRtt;
+    }
+
+    public synchronized long getSamples() {
+        return samples;
+    }
+
+    public synchronized long getTimeouts() {
+        return timeouts;
+    }
+
+    public synchronized long getLastSampleTstamp() {
+        return lastSampleTstamp;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PushRttEstimator{" +
+                "srtt=" + getSrtt() +
+                ", rttvar=" + getRttvar() +
+                ", rto=" + rto +
+                ", lastRtt=" + lastRtt +
+                ", samples=" + samples +
+                ", timeouts=" + timeouts +
+                '}';
+    }
+}
@@ -0,0 +1,452 @@
+package org.jivesoftware.openfire.plugin.userService.push;
+
+import org.jivesoftware.openfire.plugin.userService.push.messages.SimplePushPart;
+import org.jivesoftware.openfire.plugin.userService.utils.LRUCache;
+import org.jivesoftware.openfire.plugin.userService.utils.UserTracer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.component.IQResultListener;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+
+/**
+ * One lane of the XMPP push sending engine.
+ * Each lane has its own send queue, ackWait map, destination index and sender thread.
+ * Destinations are assigned to lanes by bare JID so all resources of one user are handled by the same lane,
+ * merging and ordering works the same way as with a single queue.
+ *
+ * Lane is bounded. When it fills up new records are shed by priority (low priority first), merging to pending
+ * records is always possible. Shed push messages are still in the database without ACK so the client gets them
+ * on the next push query / reconnect.
+ *
+ * Created by dusanklinec on 18.10.16.
+ */
+public class PushSendLane implements IQResultListener {
+    private static final Logger log = LoggerFactory.getLogger(PushSendLane.class);
+
+    private final DelayQueue<PushSendRecord> sndQueue = new DelayQueue<PushSendRecord>();
+    private final ConcurrentHashMap<String, PushSendRecord> ackWait = new ConcurrentHashMap<String, PushSendRecord>();
+
+    /**
+     * Destination (full JID) -> record waiting in the send queue or in the ackWait for this destination.
+     * There is at most one such record per destination, new push messages are merged to it.
+     */
+    private final ConcurrentHashMap<JID, PushSendRecord> destIndex = new ConcurrentHashMap<JID, PushSendRecord>();
+
+    /**
+     * ACK round trip time statistics per destination (full JID).
+     */
+    private final LRUCache<JID, PushRttEstimator> rttCache = new LRUCache<JID, PushRttEstimator>(8192);
+
+    private final PushService svc;
+    private final int laneIdx;
+    private final int capacity;
+    private PushSender sender;
+
+    public PushSendLane(PushService svc, int laneIdx, int capacity) {
+        this.svc = svc;
+        this.laneIdx = laneIdx;
+        this.capacity = capacity;
+    }
+
+    public void init(){
+        sender = new PushSender(svc, this);
+        sender.start();
+    }
+
+    public void deinit(){
+        if (sender != null){
+            sender.deinit();
+        }
+    }
+
+    /**
+     * Merges given record to the record waiting in ackWait queue for the same destination.
+     * Has to be called with curRec.lock held.
+     *
+     * @param curRec record waiting for ack
+     * @param sndRec new record
+     * @return
+     */
+    private AckMergeRecord mergeWithAckWaitRecord(PushSendRecord curRec, PushSendRecord sndRec) {
+        AckMergeRecord mergeRec = new AckMergeRecord(true);
+        boolean hasChanged = false;
+        try {
+            final String oldId = curRec.getPacket() != null ? curRec.getPacket().getID() : "";
+            mergeRec.setOldPacketId(oldId);
+
+            hasChanged = curRec.mergeWithRecord(sndRec);
+
+            mergeRec.setNewRecord(curRec);
+            mergeRec.setHasChanged(hasChanged);
+
+            tracer().trace(log, "push.mergeAckWait", curRec.getDestination(),
+                    "Merged with ackWait item, changed=%s, time=%d, oldId=%s", hasChanged, curRec.getSendTstamp(), oldId);
+            if (log.isDebugEnabled()){
+                log.debug(String.format("Merged with ackWait item, changed=%s, time=%d, msg=%s",
+                        hasChanged, curRec.getSendTstamp(), curRec.getPushMsg()));
+            }
+
+        } catch(Exception e){
+            log.error("Exception in message merge", e);
+
+            // Cannot proceed, add as a separate message
+            return AckMergeRecord.NOT_MERGED;
+        }
+
+        // if element has not been changed, ignore this message.
+        if (!hasChanged){
+            return mergeRec;
+        }
+
+        // Element has been changed, set to force re-send.
+        curRec.setForceResend(true);
+        return mergeRec;
+    }
+
+    /**
+     * Returns true if given record is waiting in ackWait for the response.
+     * @param rec
+     * @return
+     */
+    private boolean isInAckWait(PushSendRecord rec){
+        final String ackId = rec.getAckWaitPacketId();
+        return ackId != null && ackWait.get(ackId) == rec;
+    }
+
+    /**
+     * Main entry to submit new push notifications to the queue.
+     * Try to merge with existing waiting message to save space / messages / bandwidth.
+     * Mergeable record is looked up in the destination index, there is at most one pending record per destination.
+     *
+     * @param sndRec
+     * @param tryMerge
+     */
+    public void addSendRecord(PushSendRecord sndRec, boolean tryMerge) {
+        final JID dest = sndRec.getDestination();
+        if (!tryMerge){
+            destIndex.putIfAbsent(dest, sndRec);
+            enqueue(sndRec);
+            return;
+        }
+
+        if (log.isDebugEnabled()){
+            log.debug(String.format("Add sendRecord with merge, lane: %d, size: %d, ackSize: %d", laneIdx, sndQueue.size(), ackWait.size()));
+        }
+
+        while(true) {
+            final PushSendRecord curRec = destIndex.putIfAbsent(dest, sndRec);
+
+            // No record for this destination or re-scheduling of the indexed record.
+            if (curRec == null || curRec == sndRec) {
+                enqueue(sndRec);
+                tracer().trace(log, "push.enqueue", dest, "Message enqueued, lane: %d, size: %d", laneIdx, sndQueue.size());
+                return;
+            }
+
+            // Synchronize on record so it is not sent / acknowledged while merging.
+            synchronized (curRec.lock) {
+                // Record was finished meanwhile, replace it with the new one.
+                if (curRec.isFinished()) {
+                    if (destIndex.replace(dest, curRec, sndRec)) {
+                        enqueue(sndRec);
+                        tracer().trace(log, "push.enqueue", dest, "Message enqueued, lane: %d, size: %d", laneIdx, sndQueue.size());
+                        return;
+                    }
+
+                    continue;
+                }
+
+                if (isInAckWait(curRec)) {
+                    addSendRecordToAckWaitRecord(curRec, sndRec);
+                } else {
+                    addSendRecordToQueuedRecord(curRec, sndRec);
+                }
+
+                return;
+            }
+        }
+    }
+
+    /**
+     * Merges new record to the record for the same destination waiting in the ackWait queue.
+     * Has to be called with curRec.lock held.
+     *
+     * @param curRec
+     * @param sndRec
+     */
+    private void addSendRecordToAckWaitRecord(PushSendRecord curRec, PushSendRecord sndRec) {
+        final AckMergeRecord ackMergeRec = mergeWithAckWaitRecord(curRec, sndRec);
+        if (!ackMergeRec.wasMerged()){
+            // Merge failed, send separately. This one is not indexed.
+            enqueue(sndRec);
+            return;
+        }
+
+        svc.getStats().onMerged();
+
+        // If waiting packet has not been changed (no new content), ignore it.
+        if (!ackMergeRec.wasChanged()){
+            return;
+        }
+
+        // Packet was changed, make sure, that last send time is not too late (packet stuck in the queue).
+        // If so, this packet may be blocked in the queue, move it to the send queue.
+        if ((System.currentTimeMillis() - curRec.getLastSendTstamp()) > 1000*60*60){
+            log.warn(String.format("Message in ackWait queue for too long, record: %s", curRec));
+
+            final String lastAckId = curRec.getAckWaitPacketId();
+            if (lastAckId != null) {
+                ackWait.remove(lastAckId);
+            }
+
+            curRec.setForceResend(false);
+            enqueue(curRec);
+            tracer().trace(log, "push.enqueue", curRec.getDestination(), "Message enqueued, lane: %d, size: %d", laneIdx, sndQueue.size());
+        }
+    }
+
+    /**
+     * Merges new record to the record for the same destination waiting in the send queue.
+     * Has to be called with curRec.lock held.
+     *
+     * @param curRec
+     * @param sndRec
+     */
+    private void addSendRecordToQueuedRecord(PushSendRecord curRec, PushSendRecord sndRec) {
+        // Send time is the queue key. If merge moves it sooner, record has to be re-inserted.
+        // Otherwise record is updated in place. If record is not in the queue anymore, sender took it and waits
+        // for the lock, it will send the merged packet.
+        final boolean reschedule = sndRec.getSendTstamp() < curRec.getSendTstamp();
+        final boolean removed = reschedule && sndQueue.remove(curRec);
+
+        boolean wasChanged = false;
+        try {
+            wasChanged = curRec.mergeWithRecord(sndRec);
+            svc.getStats().onMerged();
+            tracer().trace(log, "push.merge", curRec.getDestination(), "MessageMerge, changed=%s", wasChanged);
+        } catch(Exception e){
+            log.info("Exception in merging objects", e);
+
+            // Will be added separately.
+            enqueue(sndRec);
+        }
+
+        if (removed){
+            sndQueue.add(curRec);
+        }
+    }
+
+    /**
+     * Adds record to the send queue. Record added for the first time gets its enqueue trace stamp.
+     * New record is shed if the lane is too full for its priority, re-scheduled records are always accepted.
+     *
+     * @param sndRec
+     */
+    private void enqueue(PushSendRecord sndRec){
+        if (sndRec.getEnqueueTstamp() == 0){
+            if (!canAccept(sndRec)){
+                log.warn(String.format("Lane %d overloaded, occupancy %d/%d, shedding record for %s",
+                        laneIdx, getOccupancy(), capacity, sndRec.getDestination()));
+
+                finishSendRecord(sndRec);
+                svc.getStats().onShed();
+                return;
+            }
+
+            sndRec.setEnqueueTstamp(System.currentTimeMillis());
+            svc.getStats().onEnqueued(sndRec);
+        }
+
+        sndQueue.add(sndRec);
+    }
+
+    /**
+     * Returns true if there is space for a new record of given priority.
+     * Low priority records can fill 3/4 of the lane, normal 9/10, high priority the whole lane.
+     *
+     * @param sndRec
+     * @return
+     */
+    private boolean canAccept(PushSendRecord sndRec){
+        final int priority = sndRec.getPushMsg() == null ? SimplePushPart.PRIORITY_NORMAL : sndRec.getPushMsg().getPriority();
+        final long limit;
+        if (priority >= SimplePushPart.PRIORITY_HIGH){
+            limit = capacity;
+        } else if (priority == SimplePushPart.PRIORITY_NORMAL){
+            limit = capacity * 9L / 10L;
+        } else {
+            limit = capacity * 3L / 4L;
+        }
+
+        return getOccupancy() < limit;
+    }
+
+    /**
+     * Number of records in the send queue and in the ackWait.
+     * @return
+     */
+    public int getOccupancy(){
+        return sndQueue.size() + ackWait.size();
+    }
+
+    /**
+     * Returns true if lane does not accept low priority records anymore.
+     * @return
+     */
+    public boolean isOverloaded(){
+        return getOccupancy() >= capacity * 3L / 4L;
+    }
+
+    /**
+     * Removes record from the destination index after it was acknowledged or dropped.
+     * Record is marked as finished so it is not used for merging anymore.
+     *
+     * @param sndRec
+     */
+    public void finishSendRecord(PushSendRecord sndRec){
+        sndRec.setFinished(true);
+        destIndex.remove(sndRec.getDestination(), sndRec);
+    }
+
+    /**
+     * Process IQ result/error for sent packet.
+     *
+     * @param packet
+     */
+    @Override
+    public void receivedAnswer(IQ packet) {
+        final String packetId = packet.getID();
+        final JID from = packet.getFrom();
+        final IQ.Type type = packet.getType();
+        tracer().tracePacket(log, "push.answer", packet);
+
+        boolean success = !IQ.Type.error.equals(type);
+        PushSendRecord sndRec = ackWait.get(packetId);
+        if (sndRec == null){
+            tracer().trace(log, "push.answerUnknown", from, "Unknown packet received, id=%s, from=%s", packetId, from);
+            return;
+        }
+
+        // Synchronize on sendRecord so it can be updated while siting in ackWait with new incoming message to re-transmit.
+        synchronized (sndRec.lock) {
+            // Remove from ack remove.
+            ackWait.remove(packetId);
+            sndRec.setAckTstamp(System.currentTimeMillis());
+
+            // RTT sample only if packet was sent once, otherwise we do not know which send is acknowledged.
+            if (sndRec.getResendAttempt() == 1){
+                getRttEstimator(sndRec.getDestination()).addSample(sndRec.getAckTstamp() - sndRec.getLastSendTstamp());
+            }
+
+            tracer().trace(log, "push.ack", from, "Packet acknowledged, success=%s, storing to db, packetId=%s, from=%s", success, packetId, from);
+
+            // If was updated while waiting in ackQueue, resend again. We cannot persis ACK since this entry
+            // passed via merge.
+            if (success && sndRec.isForceResend()){
+                tracer().trace(log, "push.ackResend", from, "Message updated while in ackWait, re-send, packetId=%s", packetId);
+                svc.getStats().onAnswer(sndRec, true, false);
+                sndRec.setForceResend(false);
+                addSendRecord(sndRec, true);
+            } else {
+                // Mark this record as finished in database. If success == false, this feature is not yet supported. Store it...
+                svc.getStats().onAnswer(sndRec, success, true);
+                finishSendRecord(sndRec);
+                svc.persistAck(sndRec, success ? PushService.ACK_STATUS_OK : PushService.ACK_STATUS_ERR);
+            }
+        }
+    }
+
+    /**
+     * IQ packet sent by us has timed out.
+     * @param packetId
+     */
+    @Override
+    public void answerTimeout(String packetId) {
+        PushSendRecord sndRec = ackWait.get(packetId);
+        if (sndRec == null) {
+            tracer().count("push.timeoutUnknown");
+            return;
+        }
+
+        // Synchronize on sendRecord so it can be updated while siting in ackWait with new incoming message to re-transmit.
+        synchronized (sndRec.lock) {
+            // Remove from waiting map. Answer may have been received meanwhile, record is then finished.
+            if (ackWait.remove(packetId) != sndRec || sndRec.isFinished()){
+                return;
+            }
+
+            // Re-schedule sending of this packet.
+            // If there is no client session anymore (client offline) this is not reached thus give some
+            // reasonable resend boundary, e.g. 10 attempts.
+            // Resend delay is derived from the ACK RTT of the destination, growing with attempts.
+            final int resendAttempts = sndRec.getResendAttempt();
+            final PushRttEstimator rtt = getRttEstimator(sndRec.getDestination());
+            rtt.onTimeout();
+
+            final long timeOffset = rtt.getBackoff(resendAttempts);
+
+            sndRec.setSendTstamp(System.currentTimeMillis() + timeOffset);
+            addSendRecord(sndRec, true);
+            tracer().trace(log, "push.timeout", sndRec.getDestination(), "Packet %s timed out, re-scheduled with offset %d to %s. ResendAttempt %d",
+                    packetId, timeOffset, sndRec.getDestination(), resendAttempts);
+        }
+    }
+
+    private UserTracer tracer(){
+        return svc.getPlugin().getTracer();
+    }
+
+    /**
+     * Returns RTT estimator for the given destination, creates a new one if there is none.
+     * @param dest
+     * @return
+     */
+    public PushRttEstimator getRttEstimator(JID dest){
+        synchronized (rttCache){
+            PushRttEstimator rtt = rttCache.get(dest);
+            if (rtt == null){
+                rtt = new PushRttEstimator();
+                rttCache.put(dest, rtt);
+            }
+
+            return rtt;
+        }
+    }
+
+    /**
+     * Returns RTT estimator for the given destination if exists.
+     * @param dest
+     * @return
+     */
+    public PushRttEstimator findRttEstimator(JID dest){
+        return rttCache.get(dest);
+    }
+
+    public int getLaneIdx() {
+        return laneIdx;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public DelayQueue<PushSendRecord> getSndQueue() {
+        return sndQueue;
+    }
+
+    public ConcurrentHashMap<String, PushSendRecord> getAckWait() {
+        return ackWait;
+    }
+
+    public ConcurrentHashMap<JID, PushSendRecord> getDestIndex() {
+        return destIndex;
+    }
+
+    public LRUCache<JID, PushRttEstimator> getRttCache() {
+        return rttCache;
+    }
+}
@@ -5,14 +5,28 @@ import org.jivesoftware.openfire.plugin.userService.push.messages.SimplePushMess
 import org.json.JSONException;
 import org.xmpp.packet.JID;
 
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * Record for priority queue for failed send requests.
+ * Implements Delayed so the send queue releases the record only when sendTstamp is reached.
  *
  * Created by dusanklinec on 11.03.15.
  */
-public class PushSendRecord implements Comparable<PushSendRecord> {
+public class PushSendRecord implements Delayed {
+    private static final AtomicLong SEQUENCE = new AtomicLong(0);
+
+    /**
+     * Stable tie-breaker for records scheduled at the same time. Packet ID changes on merge so it cannot be used
+     * while record is enqueued.
+     */
+    private final long seq = SEQUENCE.incrementAndGet();
+
     /**
      * Scheduled time for next sending.
+     * Used as a key in the send queue, thus may be changed only when record is not enqueued.
      */
     private long sendTstamp       = 0;
 
@@ -21,6 +35,21 @@ public class PushSendRecord implements Comparable<PushSendRecord> {
      */
     private long lastSendTstamp   = 0;
 
+    /**
+     * Trace stamp: time the record was first added to the send queue.
+     */
+    private long enqueueTstamp    = 0;
+
+    /**
+     * Trace stamp: time the record was routed for the first time.
+     */
+    private long firstRouteTstamp = 0;
+
+    /**
+     * Trace stamp: time the last ACK / error response was received.
+     */
+    private long ackTstamp        = 0;
+
     /**
      * Number of recent resend attempts.
      */
@@ -32,10 +61,20 @@ public class PushSendRecord implements Comparable<PushSendRecord> {
     private SimplePushMessage pushMsg;
 
     /**
-     * Actual packet to be sent.
+     * Actual packet to be sent. Payload is built lazily by buildPacket(), before that it holds only addressing.
      */
     private PushIq packet;
 
+    /**
+     * True if packet payload does not reflect pushMsg and has to be rebuilt before sending.
+     */
+    private boolean packetDirty = true;
+
+    /**
+     * True if rebuilt packet should get a new packet ID.
+     */
+    private boolean packetNewId = false;
+
     /**
      * If true, this message is designated to be forcefully resent even if user acknowledged its success recipient.
      */
@@ -46,20 +85,38 @@ public class PushSendRecord implements Comparable<PushSendRecord> {
      */
     private String ackWaitPacketId;
 
+    /**
+     * True if record was acknowledged or dropped, i.e., it is neither in the send queue nor in the ackWait.
+     * Finished record cannot be merged with a new one.
+     */
+    private volatile boolean finished = false;
+
     /**
      * Simple locking object for synchronization.
      */
     public final Object lock = new Object();
 
     @Override
-    public int compareTo(PushSendRecord pushSendRecord) {
-        if (pushSendRecord == null){
+    public long getDelay(TimeUnit unit) {
+        return unit.convert(sendTstamp - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed delayed) {
+        if (delayed == null){
             return -1;
         }
 
-        // Tie-breaker is the packet ID.
+        if (!(delayed instanceof PushSendRecord)){
+            final long diff = getDelay(TimeUnit.MILLISECONDS) - delayed.getDelay(TimeUnit.MILLISECONDS);
+            return diff == 0 ? 0 : (diff < 0 ? -1 : 1);
+        }
+
+        final PushSendRecord pushSendRecord = (PushSendRecord) delayed;
+
+        // Tie-breaker is the record sequence number.
         if (sendTstamp == pushSendRecord.getSendTstamp()){
-            return packet.getID().compareTo(pushSendRecord.getPacketId());
+            return seq == pushSendRecord.seq ? 0 : (seq < pushSendRecord.seq ? -1 : 1);
         }
 
         return sendTstamp < pushSendRecord.getSendTstamp() ? -1 : 1;
@@ -82,6 +139,12 @@ public class PushSendRecord implements Comparable<PushSendRecord> {
             throw new RuntimeException("Null message encountered");
         }
 
+        // Records are merged only for the same destination (full JID), each resource has its own record.
+        final JID dest = getDestination();
+        if (dest == null || !dest.equals(rec.getDestination())){
+            return false;
+        }
+
         return pushMsg.canMergeWithMessage(rec.getPushMsg());
     }
 
@@ -103,7 +166,7 @@ public class PushSendRecord implements Comparable<PushSendRecord> {
             return false;
         }
 
-        // Regenerate new PushIq packet so it contains fresh payload.
+        // Mark PushIq packet for regeneration so it contains fresh payload when sent.
         rebuildPacket(true);
         resendAttempt = 0;
         if (sendTstamp > rec.getSendTstamp()){
@@ -114,23 +177,40 @@ public class PushSendRecord implements Comparable<PushSendRecord> {
     }
 
     /**
-     * Rebuilds IQ packet from pushMessage. Used if pushMessage has been changed and packet needs to be rebuilt to be up to date.
+     * Marks IQ packet for rebuild from pushMessage. Used if pushMessage has been changed and packet needs to be rebuilt to be up to date.
      * This is used in queue mechanism, if newer push request in enqueued, it cancels all previous push requests of the
      * same type. These parts are removed from push message.
+     * Packet is actually rebuilt in buildPacket(), right before sending, so repeated merges do not serialize payload.
      * @param newId
      */
-    public void rebuildPacket(boolean newId) throws JSONException {
+    public void rebuildPacket(boolean newId) {
+        packetDirty = true;
+        packetNewId |= newId;
+    }
+
+    /**
+     * Builds IQ packet payload from pushMessage if it was changed since the last build.
+     * Called by sender right before routing the packet.
+     * @throws JSONException
+     */
+    public void buildPacket() throws JSONException {
+        if (!packetDirty){
+            return;
+        }
+
         final PushIq newPacket = new PushIq();
         newPacket.setTo(packet.getTo());
         newPacket.setFrom(packet.getFrom());
         newPacket.setType(packet.getType());
-        if (!newId){
+        if (!packetNewId){
             newPacket.setID(packet.getID());
         }
 
-        // Set new content - builds child element.
+        // Set new content - builds child element. Serialized JSON is cached in the message.
         newPacket.setContent(pushMsg);
         packet = newPacket;
+        packetDirty = false;
+        packetNewId = false;
     }
 
     @Override
@@ -138,11 +218,15 @@ public class PushSendRecord implements Comparable<PushSendRecord> {
         return "PushSendRecord{" +
                 "sendTstamp=" + sendTstamp +
                 ", lastSendTstamp=" + lastSendTstamp +
+                ", enqueueTstamp=" + enqueueTstamp +
+                ", firstRouteTstamp=" + firstRouteTstamp +
+                ", ackTstamp=" + ackTstamp +
                 ", resendAttempt=" + resendAttempt +
                 ", pushMsg=" + pushMsg +
                 ", packet=" + packet +
                 ", forceResend=" + forceResend +
                 ", ackWaitPacketId='" + ackWaitPacketId + '\'' +
+                ", finished=" + finished +
                 '}';
     }
 
@@ -166,6 +250,30 @@ public class PushSendRecord implements Comparable<PushSendRecord> {
         this.lastSendTstamp = lastSendTstamp;
     }
 
+    public long getEnqueueTstamp() {
+        return enqueueTstamp;
+    }
+
+    public void setEnqueueTstamp(long enqueueTstamp) {
+        this.enqueueTstamp = enqueueTstamp;
+    }
+
+    public long getFirstRouteTstamp() {
+        return firstRouteTstamp;
+    }
+
+    public void setFirstRouteTstamp(long firstRouteTstamp) {
+        this.firstRouteTstamp = firstRouteTstamp;
+    }
+
+    public long getAckTstamp() {
+        return ackTstamp;
+    }
+
+    public void setAckTstamp(long ackTstamp) {
+        this.ackTstamp = ackTstamp;
+    }
+
     public int getResendAttempt() {
         return resendAttempt;
     }
@@ -190,8 +298,13 @@ public class PushSendRecord implements Comparable<PushSendRecord> {
         return packet;
     }
 
+    /**
+     * Sets packet used for addressing. Payload is built from pushMsg by buildPacket().
+     * @param packet
+     */
     public void setPacket(PushIq packet) {
         this.packet = packet;
+        this.packetDirty = true;
     }
 
     public boolean isForceResend() {
@@ -209,4 +322,12 @@ public class PushSendRecord implements Comparable<PushSendRecord> {
     public void setAckWaitPacketId(String ackWaitPacketId) {
         this.ackWaitPacketId = ackWaitPacketId;
     }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    public void setFinished(boolean finished) {
+        this.finished = finished;
+    }
 }
@@ -6,7 +6,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.lang.ref.WeakReference;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Packet sender worker.
@@ -16,21 +17,30 @@ import java.util.concurrent.PriorityBlockingQueue;
 public class PushSender extends Thread {
     private static final Logger log = LoggerFactory.getLogger(PushSender.class);
 
+    /**
+     * Maximum time to block on the send queue, in milliseconds.
+     */
+    private static final long POLL_TIMEOUT = 1000;
+
     private final WeakReference<PushService> svcRef;
+    private final PushSendLane lane;
     private volatile boolean senderWorking = true;
 
     /**
      * Default constructor.
      * @param svc
+     * @param lane lane this sender serves
      */
-    public PushSender(PushService svc) {
+    public PushSender(PushService svc, PushSendLane lane) {
         this.svcRef = new WeakReference<PushService>(svc);
-        this.setName("PushSender");
+        this.lane = lane;
+        this.setName("PushSender-" + lane.getLaneIdx());
     }
 
     public void deinit(){
         log.info("Deinitializing sender thread");
         senderWorking = false;
+        this.interrupt();
     }
 
     public void run(){
@@ -46,68 +56,91 @@ public class PushSender extends Thread {
                 break;
             }
 
-            // Iterate send queue and process all records.
-            final PriorityBlockingQueue<PushSendRecord> sndQueue = svc.getSndQueue();
-            while(!sndQueue.isEmpty() && senderWorking){
-                PushSendRecord sndRec = sndQueue.poll();
-                if (sndRec == null){
-                    continue;
-                }
-
-                final long curTime = System.currentTimeMillis();
-
-                // Compare time of sending with current time. If we have some time, take some nap.
-                if ((curTime - sndRec.getSendTstamp()) < 0){
-                    // Add back to queue and take a short nap.
-                    svc.addSendRecord(sndRec, false);
-                    break;
-                }
-
-                // If sending counter is too high, drop off from the queue.
-                if (sndRec.getResendAttempt() > 30){
-                    log.info(String.format("Send counter too high for packet %s to %s, dropping", sndRec.getPacketId(), sndRec.getDestination()));
-
-                    // Store delivery result to database so it is not tried to deliver again.
-                    svc.persistAck(sndRec, PushService.ACK_STATUS_FAIL);
-                    continue;
-                }
-
-                // Send
-                try {
-                    // Is there still valid route to given destination?
-                    boolean hasClientRoute = svc.getPlugin().getRoutingTable().hasClientRoute(sndRec.getDestination());
-                    if (!hasClientRoute){
-                        log.info(String.format("Client route disappeared meanwhile. Dropping request for id %s user %s", sndRec.getPacketId(), sndRec.getDestination()));
-                        continue;
-                    }
-
-                    sndRec.incSendCtr();
-                    iqRouter.addIQResultListener(sndRec.getPacketId(), svc, 1000 * 30);
-                    iqRouter.route(sndRec.getPacket());
-                    sndRec.setLastSendTstamp(curTime);
-
-                    // Store this record to the waiting map where it waits for ack or for timeout.
-                    final String packetId = sndRec.getPacketId();
-                    sndRec.setAckWaitPacketId(packetId);
-                    svc.getAckWait().put(packetId, sndRec);
-
-                    // Do real sending after packet ACK record was set.
-                    log.info(String.format("Routing packet to: %s, packetId=%s", sndRec.getDestination(), sndRec.getPacketId()));
-                    svc.getPlugin().getRoutingTable().routePacket(sndRec.getDestination(), sndRec.getPacket(), true);
-                    log.info(String.format("Packet sent, ackWaitSize: %d, packet id: %s", svc.getAckWait().size(), packetId));
-                } catch(Exception ex){
-                    log.error("Error during sending a packet", ex);
-                }
-            }
-
+            // Block until the earliest record is due. Delay queue wakes us up also if a new record
+            // with an earlier deadline is enqueued meanwhile. Timeout only to check the service is still alive.
+            final DelayQueue<PushSendRecord> sndQueue = lane.getSndQueue();
+            PushSendRecord sndRec = null;
             try {
-                Thread.sleep(150);
-            } catch (Exception e) {
-                log.error("Sleep interrupted", e);
+                sndRec = sndQueue.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                log.info("Sender interrupted");
                 break;
             }
+
+            if (sndRec == null){
+                continue;
+            }
+
+            // Synchronize on record so it is not merged with a new message while being sent.
+            synchronized (sndRec.lock) {
+                sendRecord(svc, iqRouter, sndRec);
+            }
         }
 
         log.info("Sender thread finishing.");
     }
+
+    /**
+     * Sends the record which is due and moves it to the ackWait.
+     * Has to be called with sndRec.lock held.
+     *
+     * @param svc
+     * @param iqRouter
+     * @param sndRec
+     */
+    private void sendRecord(PushService svc, IQRouter iqRouter, PushSendRecord sndRec){
+        final long curTime = System.currentTimeMillis();
+
+        // If sending counter is too high, drop off from the queue.
+        if (sndRec.getResendAttempt() > 30){
+            log.info(String.format("Send counter too high for packet %s to %s, dropping", sndRec.getPacketId(), sndRec.getDestination()));
+
+            // Store delivery result to database so it is not tried to deliver again.
+            svc.getStats().onDropped(sndRec);
+            lane.finishSendRecord(sndRec);
+            svc.persistAck(sndRec, PushService.ACK_STATUS_FAIL);
+            return;
+        }
+
+        // Send
+        try {
+            // Is there still valid route to given destination?
+            boolean hasClientRoute = svc.getPlugin().getRoutingTable().hasClientRoute(sndRec.getDestination());
+            if (!hasClientRoute){
+                log.info(String.format("Client route disappeared meanwhile. Dropping request for id %s user %s", sndRec.getPacketId(), sndRec.getDestination()));
+                svc.getStats().onRouteLost();
+                lane.finishSendRecord(sndRec);
+                lane.getRttCache().remove(sndRec.getDestination());
+                return;
+            }
+
+            // Materialize packet payload, only now when it is really sent.
+            sndRec.buildPacket();
+
+            sndRec.incSendCtr();
+            // ACK timeout adapts to the measured round trip time of the destination.
+            final long ackTimeout = lane.getRttEstimator(sndRec.getDestination()).getRto();
+            iqRouter.addIQResultListener(sndRec.getPacketId(), lane, ackTimeout);
+            iqRouter.route(sndRec.getPacket());
+            sndRec.setLastSendTstamp(curTime);
+            svc.getStats().onRouted(sndRec);
+
+            // Store this record to the waiting map where it waits for ack or for timeout.
+            final String packetId = sndRec.getPacketId();
+            sndRec.setAckWaitPacketId(packetId);
+            lane.getAckWait().put(packetId, sndRec);
+
+            // Do real sending after packet ACK record was set.
+            svc.getPlugin().getRoutingTable().routePacket(sndRec.getDestination(), sndRec.getPacket(), true);
+            svc.getPlugin().getTracer().trace(log, "push.route", sndRec.getDestination(), "Packet routed to: %s, packetId=%s, delay=%d, ackWaitSize: %d",
+                    sndRec.getDestination(), packetId, curTime - sndRec.getSendTstamp(), lane.getAckWait().size());
+        } catch(Exception ex){
+            log.error("Error during sending a packet", ex);
+
+            // Record is lost if it did not make it to the ackWait, free its destination slot.
+            if (lane.getAckWait().get(sndRec.getPacketId()) != sndRec){
+                lane.finishSendRecord(sndRec);
+            }
+        }
+    }
 }
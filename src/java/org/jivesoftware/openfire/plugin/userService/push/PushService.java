@@ -8,8 +8,10 @@ import org.jivesoftware.openfire.auth.UnauthorizedException;
 import org.jivesoftware.openfire.disco.ServerFeaturesProvider;
 import org.jivesoftware.openfire.handler.IQHandler;
 import org.jivesoftware.openfire.plugin.UserServicePlugin;
+import org.jivesoftware.openfire.plugin.userService.CoalescingJobRunnable;
 import org.jivesoftware.openfire.plugin.userService.Job;
 import org.jivesoftware.openfire.plugin.userService.JobRunnable;
+import org.jivesoftware.openfire.plugin.userService.TaskExecutor;
 import org.jivesoftware.openfire.plugin.userService.db.DbEntityManager;
 import org.jivesoftware.openfire.plugin.userService.db.DbPushDelivery;
 import org.jivesoftware.openfire.plugin.userService.db.DbPushMessage;
@@ -22,32 +24,46 @@ import org.jivesoftware.openfire.plugin.userService.push.messages.SimplePushPart
 import org.jivesoftware.openfire.plugin.userService.utils.MiscUtils;
 import org.jivesoftware.openfire.roster.Roster;
 import org.jivesoftware.openfire.roster.RosterItem;
+import org.jivesoftware.util.JiveGlobals;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.xmpp.component.IQResultListener;
 import org.xmpp.packet.IQ;
 import org.xmpp.packet.JID;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.PriorityBlockingQueue;
 
 /**
  * Push service taking care of the push notifications acknowledged delivery.
  * Created by dusanklinec on 11.03.15.
  */
-public class PushService extends IQHandler implements IQResultListener, ServerFeaturesProvider {
+public class PushService extends IQHandler implements ServerFeaturesProvider {
     private static final Logger log = LoggerFactory.getLogger(PushService.class);
     public static final int ACK_STATUS_OK   =  1;
     public static final int ACK_STATUS_ERR  = -1;
     public static final int ACK_STATUS_FAIL = -2;
 
-    private        final PriorityBlockingQueue<PushSendRecord> sndQueue = new PriorityBlockingQueue<PushSendRecord>();
-    private        final ConcurrentHashMap<String, PushSendRecord> ackWait = new ConcurrentHashMap<String, PushSendRecord>();
-    private        PushSender sender;
+    /**
+     * Number of push sending lanes, read on service start.
+     */
+    public static final String PROP_SEND_LANES = "phonex.push.sendLanes";
+    public static final int DEFAULT_SEND_LANES = 4;
+
+    /**
+     * Maximum number of pending records (send queue + ackWait) per lane.
+     */
+    public static final String PROP_LANE_CAPACITY = "phonex.push.laneCapacity";
+    public static final int DEFAULT_LANE_CAPACITY = 10000;
+
+    private        PushSendLane[] lanes;
+    private        PushAckWriter ackWriter;
+    private final  PushStats stats = new PushStats();
+    private final  PushActionRegistry actions = PushActionRegistry.createDefault();
     private        PushExecutor executor;
 
     private UserServicePlugin plugin;
@@ -73,9 +89,31 @@ public class PushService extends IQHandler implements IQResultListener, ServerFe
         presenceQueryHandler.setSvc(this);
         presenceQueryHandler.init();
 
-        // Sender thread.
-        sender = new PushSender(this);
-        sender.start();
+        // ACK write-behind thread.
+        ackWriter = new PushAckWriter();
+        ackWriter.start();
+
+        // Sender lanes, each with its own thread.
+        final int laneCount = Math.max(1, JiveGlobals.getIntProperty(PROP_SEND_LANES, DEFAULT_SEND_LANES));
+        final int laneCapacity = Math.max(16, JiveGlobals.getIntProperty(PROP_LANE_CAPACITY, DEFAULT_LANE_CAPACITY));
+        lanes = new PushSendLane[laneCount];
+        for(int i = 0; i < laneCount; i++){
+            lanes[i] = new PushSendLane(this, i, laneCapacity);
+            lanes[i].init();
+        }
+
+        log.info(String.format("Push sender started with %d lanes, capacity %d", laneCount, laneCapacity));
+
+        // Delivery statistics are exported via JMX.
+        try {
+            final MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(PushStats.OBJECT_NAME);
+            if (!mbs.isRegistered(name)){
+                mbs.registerMBean(stats, name);
+            }
+        } catch (Exception ex) {
+            log.error("Could not register push statistics MBean", ex);
+        }
 
         // Executor thread.
         executor = new PushExecutor(this);
@@ -83,9 +121,27 @@ public class PushService extends IQHandler implements IQResultListener, ServerFe
     }
 
     public void deinit(){
-        sender.deinit();
+        for (PushSendLane lane : lanes) {
+            lane.deinit();
+        }
+
+        // Flushes all pending ACKs.
+        ackWriter.deinit();
+
         executor.deinit();
         pushQueryHandler.deinit();
+        log.info(String.format("Push statistics: %s", stats));
+
+        try {
+            final MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(PushStats.OBJECT_NAME);
+            if (mbs.isRegistered(name)){
+                mbs.unregisterMBean(name);
+            }
+        } catch (Exception ex) {
+            log.error("Could not unregister push statistics MBean", ex);
+        }
+
         presenceQueryHandler.deinit();
 
         // Remove this as IQ listener.
@@ -100,8 +156,9 @@ public class PushService extends IQHandler implements IQResultListener, ServerFe
     /**
      * Entry point for new incoming push message sent to XMPP queue.
      * @param obj
+     * @param recvTstamp time the message was received from the queue
      */
-    public void handlePushRequestFromQueue(JSONObject obj) {
+    public void handlePushRequestFromQueue(JSONObject obj, long recvTstamp) {
         String userName = "";
         try {
             userName = obj.getString("user");
@@ -110,55 +167,15 @@ public class PushService extends IQHandler implements IQResultListener, ServerFe
             for(int i=0; i < msgsCnt; i++){
                 JSONObject msg = msgs.getJSONObject(i);
                 final String pushAction = msg.getString("push");
-                log.info("Push notification for: " + userName + "; msg=" + pushAction + ";");
-
-                if (ClistSyncEventMessage.PUSH.equalsIgnoreCase(pushAction)) {
-                    log.info("ClistSync request for user: " + userName);
-                    pushClistSync(userName, obj, msg);
-
-                } else if (NewCertEventMessage.PUSH.equalsIgnoreCase(pushAction)) {
-                    log.info("Login event registered for user: " + userName);
-                    pushNewCertEvent(userName, obj, msg);
+                plugin.getTracer().trace(log, "push.request", userName, "Push notification for: %s; msg=%s;", userName, pushAction);
 
-                } else if (DHKeyUsedEventMessage.PUSH.equalsIgnoreCase(pushAction)){
-                    log.info("DHKey used event for user: " + userName);
-                    pushDHKeyUsed(userName, obj, msg);
-
-                } else if (AuthCheckEventMessage.PUSH.equalsIgnoreCase(pushAction)){
-                    log.info("AuthCheck request event registered for user: " + userName);
-
-                } else if (ContactRequestEventMessage.PUSH.equalsIgnoreCase(pushAction)){
-                    log.info("Contact request event registered for user: " + userName);
-
-                } else if (LicenseCheckEventMessage.PUSH.equalsIgnoreCase(pushAction)){
-                    log.info("license check request event registered for user: " + userName);
-                    pushLicenseCheck(userName, obj, msg);
-
-                } else if (MissedCallEventMessage.PUSH.equalsIgnoreCase(pushAction)){
-                    log.info("missed call event registered for user: " + userName);
-
-                } else if (NewFileEventMessage.PUSH.equalsIgnoreCase(pushAction)){
-                    log.info("new file event registered for user: " + userName);
-
-                } else if (VersionCheckEventMessage.PUSH.equalsIgnoreCase(pushAction)) {
-                    log.info("new version event registered for user: " + userName);
-                    pushVersionCheck(userName, obj, msg);
-
-                } else if (ContactCertUpdateEventMessage.PUSH.equalsIgnoreCase(pushAction)) {
-                    log.info("contact certificate update event registered for user: " + userName);
-                    pushContactCertUpdate(userName, obj, msg);
-
-                } else if (PairingRequestCheckEventMessage.PUSH.equalsIgnoreCase(pushAction)){
-                    log.info("Pairing request event registered for user: " + userName);
-                    pushPairingRequestEvent(userName, obj, msg);
-
-                } else if (LogoutEventMessage.PUSH.equalsIgnoreCase(pushAction)){
-                    log.info("Logout event registered for user: " + userName);
-                    pushLogoutEvent(userName, obj, msg);
-
-                } else {
+                final PushAction action = actions.get(pushAction);
+                if (action == null) {
                     log.info(String.format("Unknown push event: %s", pushAction));
+                    continue;
                 }
+
+                action.handleRequest(this, userName, obj, msg, recvTstamp);
             }
         } catch(Exception e){
             log.error("Exception in push request from queue handling, user: " + userName, e);
@@ -179,6 +196,7 @@ public class PushService extends IQHandler implements IQResultListener, ServerFe
 
         Long id = DbEntityManager.persistDbMessage(dbMsg, true);
         evt.setMessageId(id);
+        msgx.setPersistTstamp(System.currentTimeMillis());
 
         msgx.addPart(evt);
         this.sendPush(to, msgx);
@@ -190,12 +208,13 @@ public class PushService extends IQHandler implements IQResultListener, ServerFe
      * @param user
      * @throws JSONException
      */
-    public void pushClistSync(String user, JSONObject obj, JSONObject msg) throws JSONException {
+    public void pushClistSync(String user, JSONObject obj, JSONObject msg, long recvTstamp) throws JSONException {
         final JID to = new JID(user);
         final Long tstamp = !msg.has("tstamp") ? System.currentTimeMillis() : MiscUtils.getAsLong(msg, "tstamp");
 
         // Build push action.
         SimplePushMessage msgx = new SimplePushMessage(to.toBareJID(), tstamp);
+        msgx.setRecvTstamp(recvTstamp);
         final ClistSyncEventMessage evt = new ClistSyncEventMessage(tstamp);
 
         pushGenericMessage(to, msgx, evt);
@@ -207,12 +226,13 @@ public class PushService extends IQHandler implements IQResultListener, ServerFe
      * @param user
      * @throws JSONException
      */
-    public void pushDHKeyUsed(String user, JSONObject obj, JSONObject msg) throws JSONException {
+    public void pushDHKeyUsed(String user, JSONObject obj, JSONObject msg, long recvTstamp) throws JSONException {
         final JID to = new JID(user);
         final Long tstamp = !msg.has("tstamp") ? System.currentTimeMillis() : MiscUtils.getAsLong(msg, "tstamp");
 
         // Build push action.
         SimplePushMessage msgx = new SimplePushMessage(to.toBareJID(), tstamp);
+        msgx.setRecvTstamp(recvTstamp);
         final DHKeyUsedEventMessage evt = new DHKeyUsedEventMessage(tstamp);
 
         pushGenericMessage(to, msgx, evt);
@@ -224,12 +244,13 @@ public class PushService extends IQHandler implements IQResultListener, ServerFe
      * @param user
      * @throws JSONException
      */
-    public void pushVersionCheck(String user, JSONObject obj, JSONObject msg) throws JSONException {
+    public void pushVersionCheck(String user, JSONObject obj, JSONObject msg, long recvTstamp) throws JSONException {
         final JID to = new JID(user);
         final Long tstamp = !msg.has("tstamp") ? System.currentTimeMillis() : MiscUtils.getAsLong(msg, "tstamp");
 
         // Build push action.
         SimplePushMessage msgx = new SimplePushMessage(to.toBareJID(), tstamp);
+        msgx.setRecvTstamp(recvTstamp);
         final VersionCheckEventMessage evt = new VersionCheckEventMessage(tstamp);
 
         pushGenericMessage(to, msgx, evt);
@@ -241,12 +262,13 @@ public class PushService extends IQHandler implements IQResultListener, ServerFe
      * @param user
      * @throws JSONException
      */
-    public void pushContactCertUpdate(String user, JSONObject obj, JSONObject msg) throws JSONException {
+    public void pushContactCertUpdate(String user, JSONObject obj, JSONObject msg, long recvTstamp) throws JSONException {
         final JID to = new JID(user);
         final Long tstamp = !msg.has("tstamp") ? System.currentTimeMillis() : MiscUtils.getAsLong(msg, "tstamp");
 
         // Build push action.
         SimplePushMessage msgx = new SimplePushMessage(to.toBareJID(), tstamp);
+        msgx.setRecvTstamp(recvTstamp);
         final ContactCertUpdateEventMessage evt = new ContactCertUpdateEventMessage(tstamp);
 
         pushGenericMessage(to, msgx, evt);
@@ -258,12 +280,13 @@ public class PushService extends IQHandler implements IQResultListener, ServerFe
      * @param user
      * @throws JSONException
      */
-    public void pushLicenseCheck(String user, JSONObject obj, JSONObject msg) throws JSONException {
+    public void pushLicenseCheck(String user, JSONObject obj, JSONObject msg, long recvTstamp) throws JSONException {
         final JID to = new JID(user);
         final Long tstamp = !msg.has("tstamp") ? System.currentTimeMillis() : MiscUtils.getAsLong(msg, "tstamp");
 
         // Build push action.
         SimplePushMessage msgx = new SimplePushMessage(to.toBareJID(), tstamp);
+        msgx.setRecvTstamp(recvTstamp);
         final LicenseCheckEventMessage evt = new LicenseCheckEventMessage(tstamp);
 
         pushGenericMessage(to, msgx, evt);
@@ -275,12 +298,13 @@ public class PushService extends IQHandler implements IQResultListener, ServerFe
      * @param user
      * @throws JSONException
      */
-    public void pushLogoutEvent(String user, JSONObject obj, JSONObject msg) throws JSONException {
+    public void pushLogoutEvent(String user, JSONObject obj, JSONObject msg, long recvTstamp) throws JSONException {
         final JID to = new JID(user);
         final Long tstamp = !msg.has("tstamp") ? System.currentTimeMillis() : MiscUtils.getAsLong(msg, "tstamp");
 
         // Build push action.
         SimplePushMessage msgx = new SimplePushMessage(to.toBareJID(), tstamp);
+        msgx.setRecvTstamp(recvTstamp);
         final LogoutEventMessage evt = new LogoutEventMessage(tstamp);
 
         pushGenericMessage(to, msgx, evt);
@@ -291,7 +315,7 @@ public class PushService extends IQHandler implements IQResultListener, ServerFe
      * to designated user.
      * @param obj
      */
-    public void pushNewCertEvent(String user, JSONObject obj, JSONObject msg) throws JSONException {
+    public void pushNewCertEvent(String user, JSONObject obj, JSONObject msg, long recvTstamp) throws JSONException {
         final JID to = new JID(user);
         final Long tstamp = !msg.has("tstamp") ? System.currentTimeMillis() : MiscUtils.getAsLong(msg, "tstamp");
         if (!msg.has("data")){
@@ -307,10 +331,11 @@ public class PushService extends IQHandler implements IQResultListener, ServerFe
 
         final long certNotBefore = MiscUtils.getAsLong(data, NewCertEventMessage.FIELD_NOT_BEFORE);
         final String certHasPrefix = data.has(NewCertEventMessage.FIELD_CERT_HASH_PREFIX) ? data.getString(NewCertEventMessage.FIELD_CERT_HASH_PREFIX) : null;
-        log.info("new cert push detected: " + obj.toString());
+        plugin.getTracer().trace(log, "push.newCert", to, "New cert push detected: %s", obj);
 
         NewCertEventMessage evt = new NewCertEventMessage(tstamp, certNotBefore, certHasPrefix);
         SimplePushMessage msgx = new SimplePushMessage(to.toBareJID(), tstamp);
+        msgx.setRecvTstamp(recvTstamp);
 
         // Check database for newest certificate record.
         // If newest is present in database, this one we drop.
@@ -356,6 +381,7 @@ public class PushService extends IQHandler implements IQResultListener, ServerFe
         final Long id = DbEntityManager.persistDbMessage(dbMsg, false);
 
         evt.setMessageId(id);
+        msgx.setPersistTstamp(System.currentTimeMillis());
         msgx.addPart(evt);
 
         // Send to currently logged in users.
@@ -367,12 +393,13 @@ public class PushService extends IQHandler implements IQResultListener, ServerFe
      * @param user
      * @throws JSONException
      */
-    public void pushPairingRequestEvent(String user, JSONObject obj, JSONObject msg) throws JSONException {
+    public void pushPairingRequestEvent(String user, JSONObject obj, JSONObject msg, long recvTstamp) throws JSONException {
         final JID to = new JID(user);
         final Long tstamp = !msg.has("tstamp") ? System.currentTimeMillis() : MiscUtils.getAsLong(msg, "tstamp");
 
         // Build push action.
         SimplePushMessage msgx = new SimplePushMessage(to.toBareJID(), tstamp);
+        msgx.setRecvTstamp(recvTstamp);
         final PairingRequestCheckEventMessage evt = new PairingRequestCheckEventMessage(tstamp);
 
         pushGenericMessage(to, msgx, evt);
@@ -381,16 +408,14 @@ public class PushService extends IQHandler implements IQResultListener, ServerFe
     /**
      * Builds wrapping IQ packet for push message.
      * @param to
-     * @param msg
      * @return
-     * @throws JSONException
      */
-    private PushIq buildPushNotification(JID to, SimplePushMessage msg) throws JSONException {
+    private PushIq buildPushNotification(JID to) {
         final PushIq pushNotif = new PushIq();
         pushNotif.setFrom(plugin.getServer().getServerInfo().getXMPPDomain());
         pushNotif.setTo(to);
-        pushNotif.setContent(msg);
 
+        // Payload is set by the sender, when the packet is really sent.
         return pushNotif;
     }
 
@@ -409,20 +434,25 @@ public class PushService extends IQHandler implements IQResultListener, ServerFe
             // The user sent a directed presence to an entity
             // Broadcast it to all connected resources
             int sendCtr = 0;
+
+            // Serialize payload once, message copies for particular routes share it until they are modified.
+            msg.getJsonString();
             for (JID jid : plugin.getRoutingTable().getRoutes(to.asBareJID(), new JID(domain))) {
                 // Store send requests to the sending queue so it handles re-sends and acknowledgement.
-                final PushIq pushNotif = buildPushNotification(jid, msg);
+                // Each destination has its own message copy as it gets merged independently.
+                final SimplePushMessage destMsg = new SimplePushMessage(msg);
+                final PushIq pushNotif = buildPushNotification(jid);
                 PushSendRecord sndRec = new PushSendRecord();
                 sndRec.setSendTstamp(curTstamp);
                 sndRec.setPacket(pushNotif);
-                sndRec.setPushMsg(msg);
+                sndRec.setPushMsg(destMsg);
 
                 // Add record to the queue, possibly removing old ones if desired.
                 addSendRecord(sndRec, true);
                 sendCtr += 1;
             }
 
-            log.info(String.format("Sending to: %s, number of routes: %d", to, sendCtr));
+            plugin.getTracer().trace(log, "push.send", to, "Sending to: %s, number of routes: %d", to, sendCtr);
         } catch (Exception e) {
             // Well we just don't care then.
             log.error("Exception in routingTable send", e);
@@ -432,7 +462,6 @@ public class PushService extends IQHandler implements IQResultListener, ServerFe
     @Override
     public IQ handleIQ(IQ packet) throws UnauthorizedException {
         final IQ.Type iqType = packet.getType();
-        log.info(String.format("Handle IQ packet_type: %s", iqType));
         if (IQ.Type.result.equals(iqType)) {
             return null;
         }
@@ -444,7 +473,7 @@ public class PushService extends IQHandler implements IQResultListener, ServerFe
 
         final String tagName = elem.getName();
         if (PushIq.ELEMENT_NAME.equals(tagName)){
-            log.info("push tag");
+            plugin.getTracer().tracePacket(log, "iq.push", packet);
         } else if (PushQueryIq.ELEMENT_NAME.equals(tagName)){
             return pushQueryHandler.handleIQ(packet);
         } else if (PresenceQueryIq.ELEMENT_NAME.equals(tagName)){
@@ -465,149 +494,55 @@ public class PushService extends IQHandler implements IQResultListener, ServerFe
     }
 
     /**
-     * Check if given record that is to be added cannot be merged with some packet waiting in ackQueue.
-     *
-     * @param sndRec
+     * Returns sending lane for the given destination. Lane is determined by bare JID.
+     * @param dest
      * @return
      */
-    private AckMergeRecord addSendRecordCheckQueue(PushSendRecord sndRec) {
-        Enumeration<PushSendRecord> elems = ackWait.elements();
-        if (elems == null || !elems.hasMoreElements()){
-            return AckMergeRecord.NOT_MERGED;
-        }
-
-        while(elems.hasMoreElements()){
-            PushSendRecord curRec = elems.nextElement();
-            if (curRec == null){
-                continue;
-            }
-
-            synchronized (curRec.lock){
-                if (!curRec.canMergeWithRecord(sndRec)){
-                    continue;
-                }
-
-                // Can merge - do it.
-                AckMergeRecord mergeRec = new AckMergeRecord(true);
-                boolean hasChanged = false;
-                try {
-                    final String oldId = curRec.getPacket() != null ? curRec.getPacket().getID() : "";
-                    mergeRec.setOldPacketId(oldId);
-
-                    hasChanged = curRec.mergeWithRecord(sndRec);
-                    final String newId = curRec.getPacket() != null ? curRec.getPacket().getID() : "";
-
-                    mergeRec.setNewRecord(curRec);
-                    mergeRec.setHasChanged(hasChanged);
-
-                    log.info(String.format("Merged with ackWait item, changed=%s, curRecId=%s, time=%d, oldId=%s, newId=%s",
-                            hasChanged, curRec.getPacketId(), curRec.getSendTstamp(), oldId, newId));
-                    log.debug(String.format("Merged with ackWait item, changed=%s, curRecId=%s, time=%d, packet=%s",
-                            hasChanged, curRec.getPacketId(), curRec.getSendTstamp(), curRec.getPacket()));
-
-                } catch(Exception e){
-                    log.error("Exception in message merge", e);
+    public PushSendLane getLane(JID dest){
+        final String bareJid = dest == null ? "" : dest.toBareJID();
+        return lanes[MiscUtils.mod(bareJid.hashCode(), lanes.length)];
+    }
 
-                    // Cannot proceed, add as a separate message
-                    return AckMergeRecord.NOT_MERGED;
-                }
+    /**
+     * Returns ACK round trip time statistics for the given resource, null if nothing was measured yet.
+     * @param dest full JID
+     * @return
+     */
+    public PushRttEstimator getRttEstimator(JID dest){
+        return getLane(dest).findRttEstimator(dest);
+    }
 
-                // if element has not been changed, ignore this message.
-                if (!hasChanged){
-                    return mergeRec;
-                }
+    /**
+     * Returns true if any of the sending lanes is overloaded and sheds low priority records.
+     * @return
+     */
+    public boolean isOverloaded(){
+        if (lanes == null){
+            return false;
+        }
 
-                // Element has been changed, set to force re-send.
-                curRec.setForceResend(true);
-                return mergeRec;
+        for (PushSendLane lane : lanes) {
+            if (lane.isOverloaded()){
+                return true;
             }
         }
 
-        // Default case - no match, add to send queue then.
-        return AckMergeRecord.NOT_MERGED;
+        return false;
     }
 
     /**
      * Main entry to submit new push notifications to the queue.
-     * Try to merge with existing waiting message to save space / messages / bandwidth.
+     * Record is passed to the lane of its destination, which merges it with pending record if possible.
+     *
      * @param sndRec
      * @param tryMerge
      */
     public void addSendRecord(PushSendRecord sndRec, boolean tryMerge) {
-        if (!tryMerge){
-            sndQueue.add(sndRec);
-            return;
-        }
-
-        log.info(String.format("Add sendRecord with merge, size: %d, ackSize: %d", sndQueue.size(), ackWait.size()));
-
-        // At first try to observe ack storage if there is some message this new one can be merged with in order not to
-        // send excessive amount of messages and to group them together.
-        final AckMergeRecord ackMergeRec = addSendRecordCheckQueue(sndRec);
-        // If newSndRec is not null, it means sndRec was merged to the newSndRec.
-        if (ackMergeRec.wasMerged()){
-            // If waiting packet has not been changed (no new content), ignore it.
-            if (!ackMergeRec.wasChanged() || ackMergeRec.getNewRecord() == null){
-                return;
-            }
-
-            // Packet was changed, make sure, that last send time is not too late (packet stuck in the queue).
-            // If so, this packet may be blocked in the queue, move it to the send queue.
-            final PushSendRecord newSndRec = ackMergeRec.getNewRecord();
-            if ((System.currentTimeMillis() - newSndRec.getLastSendTstamp()) > 1000*60*60){
-                log.warn(String.format("Message in ackWait queue for too long, record: %s", newSndRec));
-
-                final String lastAckId = newSndRec.getAckWaitPacketId();
-                if (lastAckId != null) {
-                    ackWait.remove(lastAckId);
-                }
-
-                sndRec = newSndRec;
-            } else {
-                // Merged and OK, return.
-                return;
-            }
-        }
-
-        // Record to be added to the queue. Either given one or merged one that has been removed before merge.
-        PushSendRecord recordToAdd = sndRec;
-        Iterator<PushSendRecord> iterator = sndQueue.iterator();
-        while(iterator.hasNext()){
-            PushSendRecord curRec = iterator.next();
-            if (curRec == null){
-                continue;
-            }
-
-            // If message cannot be merged to the queue, skip it.
-            if (!curRec.canMergeWithRecord(sndRec)){
-                continue;
-            }
-
-            // Remove
-            iterator.remove();
-            recordToAdd = curRec;
-
-            // Merge curMsg with myMsq,
-            boolean wasChanged = false;
-            try {
-                wasChanged = curRec.mergeWithRecord(sndRec);
-                log.info(String.format("MessageMerge, changed=%s", wasChanged));
-            } catch(Exception e){
-                log.info("Exception in merging objects", e);
-                break; // Will be added separately.
-            }
-
-            break;
-        }
-
-        // Either given record (if it was not possible to merge it with any other record in queue) or new merged record
-        // is inserted here.
-        sndQueue.add(recordToAdd);
-        log.info(String.format("Message enqueued, size=%d", sndQueue.size()));
+        getLane(sndRec.getDestination()).addSendRecord(sndRec, tryMerge);
     }
 
     /**
-     * Stores pushDelivery entity.
+     * Stores pushDelivery entity. Entity is written to the database asynchronously by the ACK writer.
      *
      * @param sndRec
      * @param statusCode
@@ -633,7 +568,7 @@ public class PushService extends IQHandler implements IQResultListener, ServerFe
             dbAck.setUser(sndRec.getDestination().toBareJID());
             dbAck.setResource(sndRec.getDestination().getResource());
             dbAck.setStatus(statusCode);
-            DbEntityManager.persistDbAck(dbAck);
+            ackWriter.add(dbAck);
         }
     }
 
@@ -679,110 +614,42 @@ public class PushService extends IQHandler implements IQResultListener, ServerFe
 
         int added = 0;
         for (DbPushMessage msg : msgs) {
-            final String action = msg.getAction();
-            if (AuthCheckEventMessage.PUSH.equals(action)){
-                final AuthCheckEventMessage evt = new AuthCheckEventMessage(msg.getTstamp());
-                evt.setMessageId(msg.getId());
-
-                msgx.addPart(evt);
-                added += 1;
-
-            } else if (ClistSyncEventMessage.PUSH.equals(action)){
-                final ClistSyncEventMessage evt = new ClistSyncEventMessage(msg.getTstamp());
-                evt.setMessageId(msg.getId());
-
-                msgx.addPart(evt);
-                added += 1;
-
-            } else if (ContactCertUpdateEventMessage.PUSH.equals(action)) {
-                final ContactCertUpdateEventMessage evt = new ContactCertUpdateEventMessage(msg.getTstamp());
-                evt.setMessageId(msg.getId());
-
-                msgx.addPart(evt);
-                added += 1;
-
-            } else if (ContactRequestEventMessage.PUSH.equals(action)){
-                final ContactRequestEventMessage evt = new ContactRequestEventMessage(msg.getTstamp());
-                evt.setMessageId(msg.getId());
-
-                msgx.addPart(evt);
-                added += 1;
-
-            } else if (DHKeyUsedEventMessage.PUSH.equals(action)) {
-                final DHKeyUsedEventMessage evt = new DHKeyUsedEventMessage(msg.getTstamp());
-                evt.setMessageId(msg.getId());
-
-                msgx.addPart(evt);
-                added += 1;
-
-            } else if (LicenseCheckEventMessage.PUSH.equals(action)) {
-                final LicenseCheckEventMessage evt = new LicenseCheckEventMessage(msg.getTstamp());
-                evt.setMessageId(msg.getId());
-
-                msgx.addPart(evt);
-                added += 1;
-
-            } else if (MissedCallEventMessage.PUSH.equals(action)){
-                final MissedCallEventMessage evt = new MissedCallEventMessage(msg.getTstamp());
-                evt.setMessageId(msg.getId());
-
-                msgx.addPart(evt);
-                added += 1;
-
-            } else if (NewCertEventMessage.PUSH.equals(action)) {
-                final NewCertEventMessage evt = new NewCertEventMessage(msg.getTstamp(), Long.parseLong(msg.getAux1()), msg.getAux2());
-                evt.setMessageId(msg.getId());
-
-                msgx.addPart(evt);
-                added += 1;
-
-            } else if (NewFileEventMessage.PUSH.equals(action)){
-                final NewFileEventMessage evt = new NewFileEventMessage(msg.getTstamp());
-                evt.setMessageId(msg.getId());
-
-                msgx.addPart(evt);
-                added += 1;
-
-            } else if (VersionCheckEventMessage.PUSH.equals(action)){
-                final VersionCheckEventMessage evt = new VersionCheckEventMessage(msg.getTstamp());
-                evt.setMessageId(msg.getId());
-
-                msgx.addPart(evt);
-                added += 1;
-            } else if (PairingRequestCheckEventMessage.PUSH.equals(action)){
-                final PairingRequestCheckEventMessage evt = new PairingRequestCheckEventMessage(msg.getTstamp());
-                evt.setMessageId(msg.getId());
+            final PushAction action = actions.get(msg.getAction());
+            if (action == null){
+                log.error(String.format("Unknown DB message action %s", msg.getAction()));
+                continue;
+            }
 
-                msgx.addPart(evt);
-                added += 1;
-            } else if (LogoutEventMessage.PUSH.equals(action)){
-                final LogoutEventMessage evt = new LogoutEventMessage(msg.getTstamp());
+            try {
+                final SimplePushPart evt = action.fromDb(msg);
                 evt.setMessageId(msg.getId());
 
                 msgx.addPart(evt);
                 added += 1;
-            }
-
-            else {
-                log.error(String.format("Unknown DB message action %s", action));
+            } catch(Exception e){
+                log.error(String.format("Cannot build push part from DB message %d", msg.getId()), e);
             }
         }
 
-        if (added == 0){
-            log.info(String.format("Nothing from send for JID: %s", from));
-        }
-
         // Send from all connected devices/resources.
-        log.info(String.format("Sending push package from %s size %d", from, added));
+        plugin.getTracer().trace(log, added == 0 ? "push.recentEmpty" : "push.recent", from,
+                "Sending push package from %s size %d", from, added);
         sendPush(from.asBareJID(), msgx);
     }
 
     public void sendPresenceInfoInTaskExecutor(final JID from) {
-        getPlugin().submit("presenceInfo", new JobRunnable() {
+        // Presence refresh reads rosters, serialized with roster sync jobs.
+        // Repeated requests for the same destination are merged while waiting.
+        getPlugin().submitCoalescing("presenceInfo", TaskExecutor.KEY_ROSTER, "presenceInfo|" + from, new CoalescingJobRunnable() {
             @Override
             public void run(UserServicePlugin plugin, Job job) {
                 plugin.getPushSvc().sendPresenceInfo(from);
             }
+
+            @Override
+            public boolean mergeWith(JobRunnable job) {
+                return true;
+            }
         });
     }
 
@@ -811,7 +678,7 @@ public class PushService extends IQHandler implements IQResultListener, ServerFe
         }
 
         try {
-            log.info(String.format("Going to send presence for roster for: %s, node: %s", from, from.getNode()));
+            plugin.getTracer().trace(log, "presence.refresh", from, "Going to send presence for roster for: %s, node: %s", from, from.getNode());
 
             final List<JID> rosterJIDs = new LinkedList<JID>();
             final Roster roster = plugin.getRosterManager().getRoster(from.getNode());
@@ -820,10 +687,10 @@ public class PushService extends IQHandler implements IQResultListener, ServerFe
             }
 
             if (rosterJIDs.isEmpty()){
-                log.info("No presence refresh, empty roster for user: " + from);
+                plugin.getTracer().trace(log, "presence.emptyRoster", from, "No presence refresh, empty roster for user: %s", from);
                 return;
             } else {
-                log.info(String.format("Presence refresh for user %s, entries: %d", from, rosterJIDs.size()));
+                plugin.getTracer().trace(log, "presence.entries", from, "Presence refresh for user %s, entries: %d", from, rosterJIDs.size());
                 plugin.refreshPresenceInfo(from, rosterJIDs, null);
             }
         } catch (Exception e) {
@@ -831,80 +698,6 @@ public class PushService extends IQHandler implements IQResultListener, ServerFe
         }
     }
 
-    /**
-     * Process IQ result/error for sent packet.
-     *
-     * @param packet
-     */
-    @Override
-    public void receivedAnswer(IQ packet) {
-        final String packetId = packet.getID();
-        final JID from = packet.getFrom();
-        final IQ.Type type = packet.getType();
-        log.info(String.format("Packet received: id=%s, from=%s, packet=%s", packetId, from, packet));
-
-        boolean success = !IQ.Type.error.equals(type);
-        PushSendRecord sndRec = ackWait.get(packetId);
-        if (sndRec == null){
-            log.info(String.format("Unknown packet received, id=%s, from=%s", packetId, from));
-            return;
-        }
-
-        // Synchronize on sendRecord so it can be updated while siting in ackWait with new incoming message to re-transmit.
-        synchronized (sndRec.lock) {
-            // Remove from ack remove.
-            ackWait.remove(packetId);
-            log.info(String.format("Packet acknowledged, success=%s, storing to db, packetId=%s, from=%s", success, packetId, from));
-
-            // If was updated while waiting in ackQueue, resend again. We cannot persis ACK since this entry
-            // passed via merge.
-            if (success && sndRec.isForceResend()){
-                log.info("Message updated while in ackWait, re-send");
-                sndRec.setForceResend(false);
-                addSendRecord(sndRec, true);
-            } else {
-                // Mark this record as finished in database. If success == false, this feature is not yet supported. Store it...
-                persistAck(sndRec, success ? ACK_STATUS_OK : ACK_STATUS_ERR);
-            }
-        }
-    }
-
-    /**
-     * IQ packet sent by us has timed out.
-     * @param packetId
-     */
-    @Override
-    public void answerTimeout(String packetId) {
-        PushSendRecord sndRec = ackWait.get(packetId);
-
-        log.info(String.format("Packet timed out: id=%s, sndRec=%s", packetId, sndRec));
-        if (sndRec == null) {
-            log.info(String.format("Unknown packet received, id=%s, size=%d", packetId, ackWait.size()));
-            return;
-        }
-
-        // Synchronize on sendRecord so it can be updated while siting in ackWait with new incoming message to re-transmit.
-        synchronized (sndRec.lock) {
-            // Remove from waiting map.
-            ackWait.remove(packetId);
-
-            // Re-schedule sending of this packet.
-            // If there is no client session anymore (client offline) this is not reached thus give some
-            // reasonable resend boundary, e.g. 10 attempts.
-            final int resendAttempts = sndRec.getResendAttempt();
-            long timeOffset = 1000;
-            if (resendAttempts > 10 && resendAttempts < 20) {
-                timeOffset = 5000;
-            } else if (resendAttempts > 20) {
-                timeOffset = 15000;
-            }
-
-            sndRec.setSendTstamp(System.currentTimeMillis() + timeOffset);
-            addSendRecord(sndRec, true);
-            log.info(String.format("Packet %s re-scheduled with offset %d to %s. ResendAttempt %d", packetId, timeOffset, sndRec.getDestination(), resendAttempts));
-        }
-    }
-
     public UserServicePlugin getPlugin() {
         return plugin;
     }
@@ -913,12 +706,20 @@ public class PushService extends IQHandler implements IQResultListener, ServerFe
         this.plugin = plugin;
     }
 
-    public ConcurrentHashMap<String, PushSendRecord> getAckWait() {
-        return ackWait;
+    public PushSendLane[] getLanes() {
+        return lanes;
+    }
+
+    public PushAckWriter getAckWriter() {
+        return ackWriter;
+    }
+
+    public PushStats getStats() {
+        return stats;
     }
 
-    public PriorityBlockingQueue<PushSendRecord> getSndQueue() {
-        return sndQueue;
+    public PushActionRegistry getActions() {
+        return actions;
     }
 
 }
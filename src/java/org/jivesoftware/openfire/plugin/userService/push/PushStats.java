@@ -0,0 +1,262 @@
+package org.jivesoftware.openfire.plugin.userService.push;
+
+import org.jivesoftware.openfire.plugin.userService.push.messages.SimplePushMessage;
+import org.jivesoftware.openfire.plugin.userService.utils.LatencyHistogram;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Push delivery statistics collected from the send record trace stamps.
+ * Stages: request received -> persisted to DB -> enqueued -> routed -> acknowledged.
+ *
+ * Created by dusanklinec on 18.10.16.
+ */
+public class PushStats implements PushStatsMBean {
+    public static final String OBJECT_NAME = "org.jivesoftware.openfire.plugin.userService:type=PushStats";
+
+    private final LatencyHistogram persistLatency = new LatencyHistogram("persist");
+    private final LatencyHistogram queueWait = new LatencyHistogram("queueWait");
+    private final LatencyHistogram ackRtt = new LatencyHistogram("ackRtt");
+    private final LatencyHistogram endToEnd = new LatencyHistogram("endToEnd");
+    private final LatencyHistogram attempts = new LatencyHistogram("attempts");
+
+    private final AtomicLong enqueued = new AtomicLong(0);
+    private final AtomicLong merged = new AtomicLong(0);
+    private final AtomicLong delivered = new AtomicLong(0);
+    private final AtomicLong errors = new AtomicLong(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+    private final AtomicLong routeLost = new AtomicLong(0);
+    private final AtomicLong shed = new AtomicLong(0);
+
+    /**
+     * New record was added to the send queue.
+     * @param sndRec
+     */
+    public void onEnqueued(PushSendRecord sndRec){
+        enqueued.incrementAndGet();
+
+        final SimplePushMessage msg = sndRec.getPushMsg();
+        if (msg != null && msg.getRecvTstamp() > 0 && msg.getPersistTstamp() > 0){
+            persistLatency.record(msg.getPersistTstamp() - msg.getRecvTstamp());
+        }
+    }
+
+    /**
+     * New record was merged to a pending one.
+     */
+    public void onMerged(){
+        merged.incrementAndGet();
+    }
+
+    /**
+     * Record was routed to the destination. Queue wait is measured only for the first routing.
+     * Has to be called with sndRec.lock held.
+     * @param sndRec
+     */
+    public void onRouted(PushSendRecord sndRec){
+        if (sndRec.getFirstRouteTstamp() != 0){
+            return;
+        }
+
+        sndRec.setFirstRouteTstamp(sndRec.getLastSendTstamp());
+        if (sndRec.getEnqueueTstamp() > 0){
+            queueWait.record(sndRec.getFirstRouteTstamp() - sndRec.getEnqueueTstamp());
+        }
+    }
+
+    /**
+     * ACK or error response for the record was received.
+     * @param sndRec
+     * @param success
+     * @param finished true if this was the final answer, record is not re-sent.
+     */
+    public void onAnswer(PushSendRecord sndRec, boolean success, boolean finished){
+        final long now = sndRec.getAckTstamp();
+        ackRtt.record(now - sndRec.getLastSendTstamp());
+        if (!finished){
+            return;
+        }
+
+        if (success){
+            delivered.incrementAndGet();
+        } else {
+            errors.incrementAndGet();
+        }
+
+        attempts.record(sndRec.getResendAttempt());
+        final SimplePushMessage msg = sndRec.getPushMsg();
+        if (msg != null && msg.getRecvTstamp() > 0){
+            endToEnd.record(now - msg.getRecvTstamp());
+        }
+    }
+
+    /**
+     * Record was dropped with ACK_STATUS_FAIL after too many attempts.
+     * @param sndRec
+     */
+    public void onDropped(PushSendRecord sndRec){
+        dropped.incrementAndGet();
+        attempts.record(sndRec.getResendAttempt());
+    }
+
+    /**
+     * Record was dropped because destination went offline.
+     */
+    public void onRouteLost(){
+        routeLost.incrementAndGet();
+    }
+
+    /**
+     * New record was rejected because the lane was full.
+     */
+    public void onShed(){
+        shed.incrementAndGet();
+    }
+
+    @Override
+    public void reset(){
+        persistLatency.reset();
+        queueWait.reset();
+        ackRtt.reset();
+        endToEnd.reset();
+        attempts.reset();
+
+        enqueued.set(0);
+        merged.set(0);
+        delivered.set(0);
+        errors.set(0);
+        dropped.set(0);
+        routeLost.set(0);
+        shed.set(0);
+    }
+
+    @Override
+    public long getEnqueued() {
+        return enqueued.get();
+    }
+
+    @Override
+    public long getMerged() {
+        return merged.get();
+    }
+
+    @Override
+    public double getMergeRatio() {
+        final long mrg = merged.get();
+        final long total = mrg + enqueued.get();
+        return total == 0 ? 0 : (double) mrg / total;
+    }
+
+    @Override
+    public long getDelivered() {
+        return delivered.get();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.get();
+    }
+
+    @Override
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public long getRouteLost() {
+        return routeLost.get();
+    }
+
+    @Override
+    public long getShed() {
+        return shed.get();
+    }
+
+    @Override
+    public long getPersistLatencyP50() {
+        return persistLatency.getPercentile(50);
+    }
+
+    @Override
+    public long getPersistLatencyP99() {
+        return persistLatency.getPercentile(99);
+    }
+
+    @Override
+    public long getQueueWaitP50() {
+        return queueWait.getPercentile(50);
+    }
+
+    @Override
+    public long getQueueWaitP99() {
+        return queueWait.getPercentile(99);
+    }
+
+    @Override
+    public long getAckRttP50() {
+        return ackRtt.getPercentile(50);
+    }
+
+    @Override
+    public long getAckRttP99() {
+        return ackRtt.getPercentile(99);
+    }
+
+    @Override
+    public long getEndToEndP50() {
+        return endToEnd.getPercentile(50);
+    }
+
+    @Override
+    public long getEndToEndP99() {
+        return endToEnd.getPercentile(99);
+    }
+
+    @Override
+    public long getAttemptsP50() {
+        return attempts.getPercentile(50);
+    }
+
+    @Override
+    public long getAttemptsP99() {
+        return attempts.getPercentile(99);
+    }
+
+    public LatencyHistogram getPersistLatency() {
+        return persistLatency;
+    }
+
+    public LatencyHistogram getQueueWait() {
+        return queueWait;
+    }
+
+    public LatencyHistogram getAckRtt() {
+        return ackRtt;
+    }
+
+    public LatencyHistogram getEndToEnd() {
+        return endToEnd;
+    }
+
+    public LatencyHistogram getAttempts() {
+        return attempts;
+    }
+
+    @Override
+    public String toString() {
+        return "PushStats{" +
+                "enqueued=" + enqueued +
+                ", merged=" + merged +
+                ", delivered=" + delivered +
+                ", errors=" + errors +
+                ", dropped=" + dropped +
+                ", routeLost=" + routeLost +
+                ", shed=" + shed +
+                ", " + persistLatency +
+                ", " + queueWait +
+                ", " + ackRtt +
+                ", " + endToEnd +
+                ", " + attempts +
+                '}';
+    }
+}
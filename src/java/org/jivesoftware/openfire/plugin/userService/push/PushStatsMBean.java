@@ -0,0 +1,31 @@
+package org.jivesoftware.openfire.plugin.userService.push;
+
+/**
+ * JMX view of the XMPP push delivery statistics.
+ * All latencies are in milliseconds.
+ *
+ * Created by dusanklinec on 18.10.16.
+ */
+public interface PushStatsMBean {
+    long getEnqueued();
+    long getMerged();
+    double getMergeRatio();
+    long getDelivered();
+    long getErrors();
+    long getDropped();
+    long getRouteLost();
+    long getShed();
+
+    long getPersistLatencyP50();
+    long getPersistLatencyP99();
+    long getQueueWaitP50();
+    long getQueueWaitP99();
+    long getAckRttP50();
+    long getAckRttP99();
+    long getEndToEndP50();
+    long getEndToEndP99();
+    long getAttemptsP50();
+    long getAttemptsP99();
+
+    void reset();
+}
@@ -13,10 +13,12 @@ public class AuthCheckEventMessage extends SimplePushPart {
     public AuthCheckEventMessage() {
         this.setAction(PUSH);
         this.setUnique(true);
+        this.setPriority(PRIORITY_HIGH);
     }
 
     public AuthCheckEventMessage(long tstamp) {
         super(PUSH, tstamp);
         this.setUnique(true);
+        this.setPriority(PRIORITY_HIGH);
     }
 }
@@ -13,10 +13,12 @@ public class ClistSyncEventMessage extends SimplePushPart {
     public ClistSyncEventMessage() {
         this.setAction(PUSH);
         this.setUnique(true);
+        this.setPriority(PRIORITY_LOW);
     }
 
     public ClistSyncEventMessage(long tstamp) {
         super(PUSH, tstamp);
         this.setUnique(true);
+        this.setPriority(PRIORITY_LOW);
     }
 }
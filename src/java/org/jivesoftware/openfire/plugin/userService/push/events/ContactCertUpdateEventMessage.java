@@ -13,10 +13,12 @@ public class ContactCertUpdateEventMessage extends SimplePushPart {
     public ContactCertUpdateEventMessage() {
         this.setAction(PUSH);
         this.setUnique(true);
+        this.setPriority(PRIORITY_NORMAL);
     }
 
     public ContactCertUpdateEventMessage(long tstamp) {
         super(PUSH, tstamp);
         this.setUnique(true);
+        this.setPriority(PRIORITY_NORMAL);
     }
 }
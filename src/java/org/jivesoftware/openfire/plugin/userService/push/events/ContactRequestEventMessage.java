@@ -13,10 +13,12 @@ public class ContactRequestEventMessage extends SimplePushPart {
     public ContactRequestEventMessage() {
         this.setAction(PUSH);
         this.setUnique(true);
+        this.setPriority(PRIORITY_NORMAL);
     }
 
     public ContactRequestEventMessage(long tstamp) {
         super(PUSH, tstamp);
         this.setUnique(true);
+        this.setPriority(PRIORITY_NORMAL);
     }
 }
@@ -12,11 +12,13 @@ public class DHKeyUsedEventMessage extends SimplePushPart {
     public DHKeyUsedEventMessage() {
         this.setAction(PUSH);
         this.setUnique(true);
+        this.setPriority(PRIORITY_LOW);
     }
 
     public DHKeyUsedEventMessage(long tstamp) {
         super(PUSH, tstamp);
         this.setUnique(true);
+        this.setPriority(PRIORITY_LOW);
     }
 }
 
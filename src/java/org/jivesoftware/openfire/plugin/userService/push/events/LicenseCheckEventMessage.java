@@ -13,10 +13,12 @@ public class LicenseCheckEventMessage extends SimplePushPart {
     public LicenseCheckEventMessage() {
         this.setAction(PUSH);
         this.setUnique(true);
+        this.setPriority(PRIORITY_LOW);
     }
 
     public LicenseCheckEventMessage(long tstamp) {
         super(PUSH, tstamp);
         this.setUnique(true);
+        this.setPriority(PRIORITY_LOW);
     }
 }
@@ -13,10 +13,12 @@ public class LogoutEventMessage extends SimplePushPart {
     public LogoutEventMessage() {
         this.setAction(PUSH);
         this.setUnique(true);
+        this.setPriority(PRIORITY_HIGH);
     }
 
     public LogoutEventMessage(long tstamp) {
         super(PUSH, tstamp);
         this.setUnique(true);
+        this.setPriority(PRIORITY_HIGH);
     }
 }
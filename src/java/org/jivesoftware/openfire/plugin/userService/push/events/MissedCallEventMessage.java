@@ -13,10 +13,12 @@ public class MissedCallEventMessage extends SimplePushPart {
     public MissedCallEventMessage() {
         this.setAction(PUSH);
         this.setUnique(true);
+        this.setPriority(PRIORITY_NORMAL);
     }
 
     public MissedCallEventMessage(long tstamp) {
         super(PUSH, tstamp);
         this.setUnique(true);
+        this.setPriority(PRIORITY_NORMAL);
     }
 }
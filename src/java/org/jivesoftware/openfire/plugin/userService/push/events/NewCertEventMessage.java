@@ -22,12 +22,14 @@ public class NewCertEventMessage extends SimplePushPart {
     public NewCertEventMessage() {
         setAction(PUSH);
         this.setUnique(true);
+        this.setPriority(PRIORITY_HIGH);
     }
 
     public NewCertEventMessage(long tstamp, long certNotBefore) {
         super(PUSH, tstamp);
         this.certNotBefore = certNotBefore;
         this.setUnique(true);
+        this.setPriority(PRIORITY_HIGH);
     }
 
     public NewCertEventMessage(long tstamp, long certNotBefore, String certHashPrefix) {
@@ -35,6 +37,7 @@ public class NewCertEventMessage extends SimplePushPart {
         this.certNotBefore = certNotBefore;
         this.certHashPrefix = certHashPrefix;
         this.setUnique(true);
+        this.setPriority(PRIORITY_HIGH);
     }
 
     public JSONObject getDataJson() throws JSONException{
@@ -62,6 +65,10 @@ public class NewCertEventMessage extends SimplePushPart {
      */
     @Override
     public boolean mergeWith(SimplePushPart part) {
+        if (part == this){
+            return false;
+        }
+
         if (!canMergeWith(part)){
             throw new RuntimeException("Cannot merge with given one");
         }
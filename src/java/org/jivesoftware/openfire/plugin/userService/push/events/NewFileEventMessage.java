@@ -13,10 +13,12 @@ public class NewFileEventMessage extends SimplePushPart {
     public NewFileEventMessage() {
         this.setAction(PUSH);
         this.setUnique(true);
+        this.setPriority(PRIORITY_NORMAL);
     }
 
     public NewFileEventMessage(long tstamp) {
         super(PUSH, tstamp);
         this.setUnique(true);
+        this.setPriority(PRIORITY_NORMAL);
     }
 }
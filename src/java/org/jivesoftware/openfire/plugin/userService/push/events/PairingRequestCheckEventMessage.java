@@ -12,10 +12,12 @@ public class PairingRequestCheckEventMessage extends SimplePushPart {
     public PairingRequestCheckEventMessage() {
         this.setAction(PUSH);
         this.setUnique(true);
+        this.setPriority(PRIORITY_NORMAL);
     }
 
     public PairingRequestCheckEventMessage(long tstamp) {
         super(PUSH, tstamp);
         this.setUnique(true);
+        this.setPriority(PRIORITY_NORMAL);
     }
 }
@@ -13,10 +13,12 @@ public class VersionCheckEventMessage extends SimplePushPart {
     public VersionCheckEventMessage() {
         this.setAction(PUSH);
         this.setUnique(true);
+        this.setPriority(PRIORITY_LOW);
     }
 
     public VersionCheckEventMessage(long tstamp) {
         super(PUSH, tstamp);
         this.setUnique(true);
+        this.setPriority(PRIORITY_LOW);
     }
 }
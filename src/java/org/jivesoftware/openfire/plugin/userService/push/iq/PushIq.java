@@ -30,10 +30,18 @@ public class PushIq extends IQ {
      * @param msg
      */
     public void setContent(SimplePushMessage msg) throws JSONException{
+        setContent(msg.getJsonString());
+    }
+
+    /**
+     * Update content with already serialized push message.
+     * @param json
+     */
+    public void setContent(String json) {
         Element pushElem = this.setChildElement(ELEMENT_NAME, NAMESPACE);
         pushElem.addAttribute(FIELD_VERSION, "1");
 
         Element jsonElement = pushElem.addElement(FIELD_JSON);
-        jsonElement.addCDATA(msg.getJson().toString());
+        jsonElement.addCDATA(json);
     }
 }
@@ -36,6 +36,22 @@ public class SimplePushMessage implements PushMessage {
      */
     protected long tstamp;
 
+    /**
+     * Cached serialized JSON of this message, null if message was changed since last serialization.
+     * Not thread safe, message is accessed under its send record lock.
+     */
+    protected String jsonCache;
+
+    /**
+     * Trace stamp: time the push request was received from AMQP, 0 if not received from AMQP. Not serialized.
+     */
+    protected long recvTstamp;
+
+    /**
+     * Trace stamp: time the message parts were persisted to the database, 0 if not persisted. Not serialized.
+     */
+    protected long persistTstamp;
+
     @Override
     public JSONObject getJson() throws JSONException {
         JSONObject obj = new JSONObject();
@@ -59,8 +75,27 @@ public class SimplePushMessage implements PushMessage {
         return obj;
     }
 
-    public SimplePushMessage() {
+    /**
+     * Returns serialized JSON of this message. Serialization is cached until the message is changed.
+     * @return
+     * @throws JSONException
+     */
+    public String getJsonString() throws JSONException {
+        if (jsonCache == null){
+            jsonCache = getJson().toString();
+        }
+
+        return jsonCache;
+    }
 
+    /**
+     * Drops cached serialized JSON. Has to be called if parts are modified directly.
+     */
+    public void invalidateJson(){
+        jsonCache = null;
+    }
+
+    public SimplePushMessage() {
     }
 
     public SimplePushMessage(String user, long tstamp) {
@@ -68,6 +103,22 @@ public class SimplePushMessage implements PushMessage {
         this.tstamp = tstamp;
     }
 
+    /**
+     * Creates a shallow copy of the given message, parts are shared, part list is not.
+     * Each destination needs its own message envelope as merging modifies the part list.
+     * Serialized JSON is shared with the original until one of them is changed.
+     *
+     * @param msg
+     */
+    public SimplePushMessage(SimplePushMessage msg) {
+        this.user = msg.getUser();
+        this.tstamp = msg.getTstamp();
+        this.parts.addAll(msg.getParts());
+        this.jsonCache = msg.jsonCache;
+        this.recvTstamp = msg.recvTstamp;
+        this.persistTstamp = msg.persistTstamp;
+    }
+
     /**
      * Returns TRUE if this message can be merged with given message.
      * Essentially it checks whether username matches (bare JID).
@@ -80,6 +131,11 @@ public class SimplePushMessage implements PushMessage {
             throw new RuntimeException("Null sip message encountered");
         }
 
+        // Fast path, users are usually already normalized bare JIDs.
+        if (user != null && user.equals(msg.getUser())){
+            return true;
+        }
+
         JID myJid  = new JID(user);
         JID hisJid = new JID(msg.getUser());
         return myJid.compareTo(hisJid) == 0;
@@ -104,6 +160,7 @@ public class SimplePushMessage implements PushMessage {
         boolean wasModified = myRegister.mergeWithRegister(foRegister);
         if (wasModified){
             myRegister.buildParts(parts);
+            invalidateJson();
             return true;
         }
 
@@ -112,10 +169,12 @@ public class SimplePushMessage implements PushMessage {
 
     public void addPart(SimplePushPart part){
         parts.add(part);
+        invalidateJson();
     }
 
     public void clearParts(){
         parts.clear();
+        invalidateJson();
     }
 
     public List<SimplePushPart> getParts() {
@@ -128,6 +187,7 @@ public class SimplePushMessage implements PushMessage {
 
     public void setUser(String user) {
         this.user = user;
+        invalidateJson();
     }
 
     public long getTstamp() {
@@ -136,6 +196,7 @@ public class SimplePushMessage implements PushMessage {
 
     public void setTstamp(long tstamp) {
         this.tstamp = tstamp;
+        invalidateJson();
     }
 
     @Override
@@ -168,4 +229,33 @@ public class SimplePushMessage implements PushMessage {
                 ", tstamp=" + tstamp +
                 '}';
     }
+
+    /**
+     * Returns overload priority of this message, i.e., the highest priority of its parts.
+     * @return
+     */
+    public int getPriority(){
+        int priority = SimplePushPart.PRIORITY_LOW;
+        for (SimplePushPart part : parts) {
+            priority = Math.max(priority, part.getPriority());
+        }
+
+        return priority;
+    }
+
+    public long getRecvTstamp() {
+        return recvTstamp;
+    }
+
+    public void setRecvTstamp(long recvTstamp) {
+        this.recvTstamp = recvTstamp;
+    }
+
+    public long getPersistTstamp() {
+        return persistTstamp;
+    }
+
+    public void setPersistTstamp(long persistTstamp) {
+        this.persistTstamp = persistTstamp;
+    }
 }
@@ -14,6 +14,13 @@ public abstract class SimplePushPart implements PushMessage {
     public static final String FIELD_TIME_STAMP = "tstamp";
     public static final String FIELD_DATA = "data";
 
+    /**
+     * Priority of the push part under overload. Low priority parts are shed first when send queues are full.
+     */
+    public static final int PRIORITY_LOW    = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_HIGH   = 2;
+
     /**
      * Push action.
      */
@@ -35,6 +42,11 @@ public abstract class SimplePushPart implements PushMessage {
      */
     protected boolean unique = true;
 
+    /**
+     * Overload priority of this push part, not serialized.
+     */
+    protected int priority = PRIORITY_NORMAL;
+
     /**
      * Id of the corresponding database push message.
      */
@@ -98,6 +110,11 @@ public abstract class SimplePushPart implements PushMessage {
      * @return
      */
     public boolean mergeWith(SimplePushPart part){
+        // Fast path, parts are shared among messages of the same push request.
+        if (part == this){
+            return false;
+        }
+
         if (!canMergeWith(part)){
             throw new RuntimeException("This part cannot be merged with given one");
         }
@@ -135,6 +152,14 @@ public abstract class SimplePushPart implements PushMessage {
         this.unique = unique;
     }
 
+    public int getPriority() {
+        return priority;
+    }
+
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
     public JSONObject getAuxData() {
         return auxData;
     }
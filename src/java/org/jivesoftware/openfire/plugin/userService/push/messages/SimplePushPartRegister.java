@@ -92,13 +92,16 @@ public class SimplePushPartRegister {
 
             // Can merge be done on these?
             if (myPart.isUnique()){
-                // Let message parts do the join.
+                // Let message parts do the join, part decides whether the given one is newer.
                 boolean partChanged = myPart.mergeWith(foPart);
                 if (partChanged){
                     lst.clear();
                     lst.add(foPart);
                     wasModified |= true;
                 }
+
+                // Decided, his part must not be added back below.
+                foRegister.remove(key);
             } else {
                 // Union parts, joint them.
                 lst.addAll(foLst);
@@ -0,0 +1,107 @@
+package org.jivesoftware.openfire.plugin.userService.strings;
+
+import org.jivesoftware.openfire.plugin.userService.db.DbStrings;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable in-memory snapshot of the whole localization table.
+ * key -> plural form -> language -> string.
+ *
+ * Created by dusanklinec on 18.10.16.
+ */
+public class StringsIndex {
+    private final Map<String, Map<String, Map<String, DbStrings>>> index;
+    private final StringsVersion version;
+    private final int size;
+    private final long loadedTstamp;
+
+    public StringsIndex(Collection<DbStrings> strings, StringsVersion version) {
+        final Map<String, Map<String, Map<String, DbStrings>>> tmpIndex = new HashMap<String, Map<String, Map<String, DbStrings>>>();
+        int tmpSize = 0;
+        for (DbStrings str : strings) {
+            if (str == null || str.getKey() == null || str.getPlural() == null || str.getLocale() == null){
+                continue;
+            }
+
+            Map<String, Map<String, DbStrings>> plurals = tmpIndex.get(str.getKey());
+            if (plurals == null){
+                plurals = new HashMap<String, Map<String, DbStrings>>();
+                tmpIndex.put(str.getKey(), plurals);
+            }
+
+            Map<String, DbStrings> locales = plurals.get(str.getPlural());
+            if (locales == null){
+                locales = new HashMap<String, DbStrings>();
+                plurals.put(str.getPlural(), locales);
+            }
+
+            if (locales.put(str.getLocale(), str) == null){
+                tmpSize += 1;
+            }
+        }
+
+        // Freeze.
+        for (Map.Entry<String, Map<String, Map<String, DbStrings>>> e : tmpIndex.entrySet()) {
+            final Map<String, Map<String, DbStrings>> plurals = e.getValue();
+            for (Map.Entry<String, Map<String, DbStrings>> pe : plurals.entrySet()) {
+                pe.setValue(Collections.unmodifiableMap(pe.getValue()));
+            }
+
+            e.setValue(Collections.unmodifiableMap(plurals));
+        }
+
+        this.index = Collections.unmodifiableMap(tmpIndex);
+        this.version = version;
+        this.size = tmpSize;
+        this.loadedTstamp = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns string in the first language of the fallback chain that has a translation.
+     * @param key
+     * @param pluralForm
+     * @param languages fallback chain.
+     * @return
+     */
+    public DbStrings lookup(String key, String pluralForm, List<String> languages){
+        final Map<String, Map<String, DbStrings>> plurals = index.get(key);
+        if (plurals == null){
+            return null;
+        }
+
+        final Map<String, DbStrings> locales = plurals.get(pluralForm);
+        if (locales == null){
+            return null;
+        }
+
+        for (String language : languages) {
+            final DbStrings str = locales.get(language);
+            if (str != null){
+                return str;
+            }
+        }
+
+        return null;
+    }
+
+    public StringsVersion getVersion() {
+        return version;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getKeys() {
+        return index.size();
+    }
+
+    public long getLoadedTstamp() {
+        return loadedTstamp;
+    }
+}
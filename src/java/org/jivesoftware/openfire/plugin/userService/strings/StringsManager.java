@@ -14,11 +14,17 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Loading localized strings from database.
  *
+ * The whole table is kept in memory as an immutable index, swapped atomically on reload. Cached lookups
+ * use the index without SQL and locks. LRU cache with TTL is used only while the index is not loaded.
+ *
  * Created by dusanklinec on 05.01.16.
  */
 public class StringsManager {
@@ -33,6 +39,14 @@ public class StringsManager {
             DbStrings.FIELD_KEY,
             DbStrings.FIELD_PLURAL_TYPE,
             DbStrings.FIELD_LOCALE);
+    private static final String SQL_FETCH_ALL_STRINGS = String.format("SELECT * FROM `%s`", DbStrings.TABLE_NAME);
+    private static final String SQL_FETCH_VERSION = String.format("SELECT COUNT(*), MAX(%s) FROM `%s`",
+            DbStrings.FIELD_DATE_CREATED, DbStrings.TABLE_NAME);
+
+    /**
+     * Maximum number of cached locale fallback chains.
+     */
+    private static final int MAX_CHAINS = 1024;
 
     /**
      * String cache holding all recently loaded records.
@@ -40,14 +54,36 @@ public class StringsManager {
     private final LRUCache<StringCacheKey, StringCacheValue> stringCache = new LRUCache<StringCacheKey, StringCacheValue>(1024);
 
     /**
-     * Loads string translation from DB, using local cache for better performance udner heavy load.
-     * Cache entry has TTL 10 seconds.
+     * Whole localization table, null if not loaded.
+     */
+    private volatile StringsIndex index;
+
+    /**
+     * Locale fallback chains: language list -> languages in lookup order, with default.
+     */
+    private final ConcurrentHashMap<String, List<String>> chains = new ConcurrentHashMap<String, List<String>>();
+
+    private StringsReloader reloader;
+    private final AtomicLong reloads = new AtomicLong(0);
+    private final AtomicLong indexLookups = new AtomicLong(0);
+    private final AtomicLong dbLookups = new AtomicLong(0);
+
+    /**
+     * Loads string translation from the in-memory index.
+     * If index is not loaded, loads from DB using local cache with TTL 10 seconds.
      * @param key
      * @param locales
      * @param pluralForm
      * @return
      */
     public DbStrings loadStringCached(String key, List<Locale> locales, PluralFormsEnum pluralForm){
+        final StringsIndex curIndex = index;
+        if (curIndex != null){
+            indexLookups.incrementAndGet();
+            return curIndex.lookup(key, pluralForm.toString(), getChain(locales));
+        }
+
+        dbLookups.incrementAndGet();
         final StringCacheKey cKey = new StringCacheKey(key, locales, pluralForm);
         final StringCacheValue cVal = stringCache.get(cKey);
         final long now = System.currentTimeMillis();
@@ -279,12 +315,175 @@ public class StringsManager {
         return dstLocale;
     }
 
+    /**
+     * Returns language fallback chain for the locale list, computed once per distinct list.
+     * @param locales
+     * @return
+     */
+    protected List<String> getChain(List<Locale> locales){
+        final StringBuilder sb = new StringBuilder();
+        if (locales != null){
+            for(Locale lcl : locales){
+                sb.append(lcl.getLanguage()).append(";");
+            }
+        }
+
+        final String chainKey = sb.toString();
+        final List<String> chain = chains.get(chainKey);
+        if (chain != null){
+            return chain;
+        }
+
+        final List<Locale> realLocales = fixupLocales(locales, true);
+        final List<String> languages = new ArrayList<String>(realLocales.size());
+        for (Locale l : realLocales){
+            if (!languages.contains(l.getLanguage())){
+                languages.add(l.getLanguage());
+            }
+        }
+
+        if (chains.size() >= MAX_CHAINS){
+            chains.clear();
+        }
+
+        final List<String> newChain = Collections.unmodifiableList(languages);
+        chains.put(chainKey, newChain);
+        return newChain;
+    }
+
+    /**
+     * Reloads the index if the table changed since the last load.
+     * @return true if index was reloaded.
+     */
+    public boolean reloadIfChanged(){
+        final StringsVersion version = loadVersion();
+        if (version == null){
+            return false;
+        }
+
+        final StringsIndex curIndex = index;
+        if (curIndex != null && version.equals(curIndex.getVersion())){
+            return false;
+        }
+
+        return reload(version);
+    }
+
+    /**
+     * Loads the whole table and swaps the index.
+     * @return true if index was reloaded.
+     */
+    public boolean reload(){
+        final StringsVersion version = loadVersion();
+        return version != null && reload(version);
+    }
+
+    private boolean reload(StringsVersion version){
+        final List<DbStrings> strings = loadAllStrings();
+        if (strings == null){
+            return false;
+        }
+
+        final StringsIndex newIndex = new StringsIndex(strings, version);
+        index = newIndex;
+        reloads.incrementAndGet();
+        log.info(String.format("Strings index loaded, strings: %d, keys: %d, version: %s",
+                newIndex.getSize(), newIndex.getKeys(), version));
+        return true;
+    }
+
+    /**
+     * Loads change marker of the table.
+     * @return null on error.
+     */
+    private StringsVersion loadVersion(){
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            con = DbConnectionManager.getConnection();
+            pstmt = con.prepareStatement(SQL_FETCH_VERSION);
+            rs = pstmt.executeQuery();
+            if (!rs.next()){
+                return null;
+            }
+
+            final Timestamp maxCreated = rs.getTimestamp(2);
+            return new StringsVersion(rs.getLong(1), maxCreated == null ? 0 : maxCreated.getTime());
+        }
+        catch (SQLException e) {
+            log.error("Exception in loading strings version", e);
+        }
+        finally {
+            DbConnectionManager.closeConnection(rs, pstmt, con);
+        }
+
+        return null;
+    }
+
+    /**
+     * Loads the whole localization table.
+     * @return null on error.
+     */
+    private List<DbStrings> loadAllStrings(){
+        final List<DbStrings> strings = new ArrayList<DbStrings>();
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            con = DbConnectionManager.getConnection();
+            pstmt = con.prepareStatement(SQL_FETCH_ALL_STRINGS);
+            rs = pstmt.executeQuery();
+            while (rs.next()) {
+                final DbStrings curStr = DbStrings.fromRes(rs);
+                if (curStr != null){
+                    strings.add(curStr);
+                }
+            }
+        }
+        catch (SQLException e) {
+            log.error("Exception in loading strings", e);
+            return null;
+        }
+        finally {
+            DbConnectionManager.closeConnection(rs, pstmt, con);
+        }
+
+        return strings;
+    }
+
     public void init() {
+        try {
+            reloadIfChanged();
+        } catch(Exception e){
+            log.error("Exception in loading strings index", e);
+        }
 
+        reloader = new StringsReloader(this);
+        reloader.start();
     }
 
     public void deinit() {
+        if (reloader != null){
+            reloader.deinit();
+            reloader = null;
+        }
+    }
+
+    public StringsIndex getIndex() {
+        return index;
+    }
+
+    public long getReloads() {
+        return reloads.get();
+    }
+
+    public long getIndexLookups() {
+        return indexLookups.get();
+    }
 
+    public long getDbLookups() {
+        return dbLookups.get();
     }
 
     /**
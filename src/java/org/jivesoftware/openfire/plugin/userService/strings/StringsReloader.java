@@ -0,0 +1,73 @@
+package org.jivesoftware.openfire.plugin.userService.strings;
+
+import org.jivesoftware.util.JiveGlobals;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * Periodically checks the localization table for changes and reloads the strings index when it changed.
+ *
+ * Created by dusanklinec on 18.10.16.
+ */
+public class StringsReloader extends Thread {
+    private static final Logger log = LoggerFactory.getLogger(StringsReloader.class);
+
+    /**
+     * Interval between change checks, in milliseconds.
+     */
+    public static final String PROP_CHECK_INTERVAL = "phonex.strings.checkInterval";
+    public static final long DEFAULT_CHECK_INTERVAL = 1000*60;
+    private static final long RETRY_INTERVAL = 1000*10;
+
+    private final WeakReference<StringsManager> mgrRef;
+    private volatile boolean working = true;
+
+    public StringsReloader(StringsManager mgr) {
+        this.mgrRef = new WeakReference<StringsManager>(mgr);
+        this.setName("StringsReloader");
+        this.setDaemon(true);
+    }
+
+    public void deinit(){
+        log.info("Deinitializing StringsReloader thread");
+        working = false;
+    }
+
+    public void run(){
+        log.info("StringsReloader thread started.");
+        long lastCheck = System.currentTimeMillis();
+
+        while(working){
+            final StringsManager mgr = mgrRef.get();
+            if (mgr == null){
+                working = false;
+                log.info("Manager disappeared");
+                break;
+            }
+
+            final long curTime = System.currentTimeMillis();
+            final long interval = Math.max(1000, JiveGlobals.getLongProperty(PROP_CHECK_INTERVAL, DEFAULT_CHECK_INTERVAL));
+            // Index failed to load, retry sooner.
+            final long curInterval = mgr.getIndex() == null ? Math.min(interval, RETRY_INTERVAL) : interval;
+            if (curTime - lastCheck > curInterval){
+                lastCheck = curTime;
+                try {
+                    mgr.reloadIfChanged();
+                } catch(Exception e){
+                    log.error("Exception in strings reload", e);
+                }
+            }
+
+            try {
+                Thread.sleep(500);
+            } catch (Exception e) {
+                log.error("Sleep interrupted", e);
+                break;
+            }
+        }
+
+        log.info("StringsReloader thread finishing.");
+    }
+}
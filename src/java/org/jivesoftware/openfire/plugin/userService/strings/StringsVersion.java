@@ -0,0 +1,50 @@
+package org.jivesoftware.openfire.plugin.userService.strings;
+
+/**
+ * Change marker of the localization table - number of rows and the most recent creation time.
+ *
+ * Created by dusanklinec on 18.10.16.
+ */
+public class StringsVersion {
+    private final long count;
+    private final long maxDateCreated;
+
+    public StringsVersion(long count, long maxDateCreated) {
+        this.count = count;
+        this.maxDateCreated = maxDateCreated;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMaxDateCreated() {
+        return maxDateCreated;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        StringsVersion that = (StringsVersion) o;
+
+        if (count != that.count) return false;
+        return maxDateCreated == that.maxDateCreated;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = (int) (count ^ (count >>> 32));
+        result = 31 * result + (int) (maxDateCreated ^ (maxDateCreated >>> 32));
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "StringsVersion{" +
+                "count=" + count +
+                ", maxDateCreated=" + maxDateCreated +
+                '}';
+    }
+}
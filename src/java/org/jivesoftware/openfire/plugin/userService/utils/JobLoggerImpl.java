@@ -1,15 +1,29 @@
 package org.jivesoftware.openfire.plugin.userService.utils;
 
-import java.util.ArrayList;
+import java.util.IllegalFormatException;
 
 /**
  * Job logger to trace job progress, for debugging purposes, trace log level to reveal cause of deadlocks for long running jobs.
+ *
+ * Messages are stored to a preallocated ring buffer unformatted - template and argument references only.
+ * Formatting is done in dumpMessages(), which is called rarely, on a deadlock report.
+ * Arguments should be immutable (strings, numbers), mutable ones are dumped in the state from the dump time.
+ *
  * Created by dusanklinec on 04.09.15.
  */
 public class JobLoggerImpl implements JobLogger {
 
     private static final int DEFAULT_MSG_LIMIT = 50;
-    private final ArrayList<String> messages = new ArrayList<String>(3);
+    private static final Object[] NO_ARGS = new Object[0];
+
+    // Ring buffer slots.
+    private int[] levels;
+    private long[] tstamps;
+    private long[] threadIds;
+    private String[] tags;
+    private String[] templates;
+    private Object[][] args;
+
     private int msgLimit = 3;
     private int lastOffset = -1;
     private int numMessages = 0;
@@ -20,12 +34,15 @@ public class JobLoggerImpl implements JobLogger {
 
     @Override
     public synchronized void setMessagesNumber(int msgNum) {
-        messages.ensureCapacity(msgNum);
-        messages.clear();
-        msgLimit = msgNum;
-        for(int i=0; i<msgNum; i++){
-            messages.add("");
-        }
+        msgLimit = Math.max(1, msgNum);
+        levels = new int[msgLimit];
+        tstamps = new long[msgLimit];
+        threadIds = new long[msgLimit];
+        tags = new String[msgLimit];
+        templates = new String[msgLimit];
+        args = new Object[msgLimit][];
+        lastOffset = -1;
+        numMessages = 0;
     }
 
     @Override
@@ -35,13 +52,15 @@ public class JobLoggerImpl implements JobLogger {
 
     @Override
     public synchronized void logMsg(int logLevel, String tag, String msg, Object... args) {
-        messages.ensureCapacity(msgLimit);
         lastOffset = (lastOffset + 1) % msgLimit;
 
-        final long threadId = Thread.currentThread().getId();
-        final String logmsg = String.format("[%s] #%s %s %s: %s", logLevel, threadId, System.currentTimeMillis(), tag, String.format(msg, args));
+        levels[lastOffset] = logLevel;
+        tstamps[lastOffset] = System.currentTimeMillis();
+        threadIds[lastOffset] = Thread.currentThread().getId();
+        tags[lastOffset] = tag;
+        templates[lastOffset] = msg;
+        this.args[lastOffset] = args == null ? NO_ARGS : args;
 
-        messages.set(lastOffset, logmsg);
         numMessages = numMessages >= msgLimit ? msgLimit : numMessages + 1;
     }
 
@@ -53,10 +72,29 @@ public class JobLoggerImpl implements JobLogger {
         int startOffset = MiscUtils.mod(MiscUtils.mod(lastOffset - numMessages, msgLimit) + 1, msgLimit);
         for(int i=0; i<numMessages; i++){
             final int curPos = (startOffset+i) % msgLimit;
-            sb.append(messages.get(curPos));
+            sb.append(String.format("[%s] #%s %s %s: %s",
+                    levels[curPos], threadIds[curPos], tstamps[curPos], tags[curPos], formatMessage(templates[curPos], args[curPos])));
             sb.append("\n");
         }
 
         return sb.toString();
     }
+
+    /**
+     * Formats stored message, broken template does not break the whole dump.
+     * @param msg
+     * @param args
+     * @return
+     */
+    private static String formatMessage(String msg, Object[] args){
+        if (msg == null){
+            return null;
+        }
+
+        try {
+            return String.format(msg, args);
+        } catch(IllegalFormatException ex){
+            return msg;
+        }
+    }
 }
@@ -0,0 +1,124 @@
+package org.jivesoftware.openfire.plugin.userService.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative long values (e.g., latencies in milliseconds).
+ * Values below 16 are counted exactly, larger values fall into log2 buckets split into 8 linear sub-buckets,
+ * so relative error of reported percentiles is at most 12.5 %.
+ *
+ * Created by dusanklinec on 18.10.16.
+ */
+public class LatencyHistogram {
+    private static final int EXACT = 16;
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = EXACT + (63 - 4) * SUB_BUCKETS;
+
+    private final String name;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong(0);
+    private final AtomicLong sum = new AtomicLong(0);
+    private final AtomicLong max = new AtomicLong(0);
+
+    public LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Records a value. Negative values are recorded as 0.
+     * @param value
+     */
+    public void record(long value){
+        final long v = value < 0 ? 0 : value;
+        counts.incrementAndGet(bucketIndex(v));
+        count.incrementAndGet();
+        sum.addAndGet(v);
+
+        long curMax = max.get();
+        while(v > curMax && !max.compareAndSet(curMax, v)){
+            curMax = max.get();
+        }
+    }
+
+    /**
+     * Returns value at given percentile (0-100). Reported value is the upper bound of the bucket.
+     * @param percentile
+     * @return
+     */
+    public long getPercentile(double percentile){
+        final long total = count.get();
+        if (total == 0){
+            return 0;
+        }
+
+        final long threshold = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long cumulative = 0;
+        for(int i = 0; i < BUCKETS; i++){
+            cumulative += counts.get(i);
+            if (cumulative >= threshold){
+                return Math.min(bucketUpperBound(i), max.get());
+            }
+        }
+
+        return max.get();
+    }
+
+    /**
+     * Resets all counters. Not atomic with respect to concurrent record().
+     */
+    public void reset(){
+        for(int i = 0; i < BUCKETS; i++){
+            counts.set(i, 0);
+        }
+
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    static int bucketIndex(long v){
+        if (v < EXACT){
+            return (int) v;
+        }
+
+        final int magnitude = 63 - Long.numberOfLeadingZeros(v);
+        final int sub = (int) ((v >>> (magnitude - SUB_BITS)) & (SUB_BUCKETS - 1));
+        return EXACT + (magnitude - 4) * SUB_BUCKETS + sub;
+    }
+
+    static long bucketUpperBound(int idx){
+        if (idx < EXACT){
+            return idx;
+        }
+
+        final int magnitude = (idx - EXACT) / SUB_BUCKETS + 4;
+        final int sub = (idx - EXACT) % SUB_BUCKETS;
+        final long width = 1L << (magnitude - SUB_BITS);
+        return (1L << magnitude) + (sub + 1) * width - 1;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        final long total = count.get();
+        return total == 0 ? 0 : (double) sum.get() / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s{count=%d, mean=%.1f, p50=%d, p90=%d, p99=%d, max=%d}",
+                name, getCount(), getMean(), getPercentile(50), getPercentile(90), getPercentile(99), getMax());
+    }
+}
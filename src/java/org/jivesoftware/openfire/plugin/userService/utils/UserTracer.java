@@ -0,0 +1,172 @@
+package org.jivesoftware.openfire.plugin.userService.utils;
+
+import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.StringUtils;
+import org.slf4j.Logger;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Packet;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-user tracing of hot paths.
+ * Verbose diagnostics (whole packets, AMQP messages) are logged only for users on the watch list,
+ * other events are only counted. Messages are formatted only if the user is traced.
+ *
+ * Watch list is a comma separated list of bare JIDs in the phonex.trace.users property,
+ * editable in the admin console.
+ *
+ * Created by dusanklinec on 18.10.16.
+ */
+public class UserTracer {
+    public static final String PROP_USERS = "phonex.trace.users";
+
+    /**
+     * Watched bare JIDs, replaced as a whole on change.
+     */
+    private volatile Set<String> watched = Collections.emptySet();
+    private final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+
+    public void init(){
+        setWatchList(JiveGlobals.getProperty(PROP_USERS, ""));
+    }
+
+    /**
+     * Sets watch list from the comma separated string.
+     * @param users
+     */
+    public void setWatchList(String users){
+        setWatchList(users == null ? Collections.<String>emptyList() : StringUtils.stringToCollection(users));
+    }
+
+    /**
+     * Sets watch list, full JIDs are converted to bare ones.
+     * @param users
+     */
+    public void setWatchList(Collection<String> users){
+        final Set<String> newWatched = new HashSet<String>();
+        if (users != null){
+            for (String user : users) {
+                if (user == null || user.trim().isEmpty()){
+                    continue;
+                }
+
+                try {
+                    newWatched.add(new JID(user.trim()).toBareJID());
+                } catch(Exception ex){
+                    newWatched.add(user.trim());
+                }
+            }
+        }
+
+        watched = Collections.unmodifiableSet(newWatched);
+    }
+
+    public Set<String> getWatchList(){
+        return watched;
+    }
+
+    public boolean isTraced(JID user){
+        final Set<String> curWatched = watched;
+        return user != null && !curWatched.isEmpty() && curWatched.contains(user.toBareJID());
+    }
+
+    public boolean isTraced(String user){
+        final Set<String> curWatched = watched;
+        if (user == null || curWatched.isEmpty()){
+            return false;
+        }
+
+        if (curWatched.contains(user)){
+            return true;
+        }
+
+        try {
+            return curWatched.contains(new JID(user).toBareJID());
+        } catch(Exception ex){
+            return false;
+        }
+    }
+
+    /**
+     * Counts the event, logs formatted message if the user is traced.
+     * @param log
+     * @param event
+     * @param user
+     * @param msg
+     * @param args
+     */
+    public void trace(Logger log, String event, JID user, String msg, Object... args){
+        count(event);
+        if (isTraced(user)){
+            log.info(String.format("[trace %s] %s: %s", user, event, String.format(msg, args)));
+        }
+    }
+
+    /**
+     * Counts the event, logs formatted message if the user is traced.
+     * @param log
+     * @param event
+     * @param user
+     * @param msg
+     * @param args
+     */
+    public void trace(Logger log, String event, String user, String msg, Object... args){
+        count(event);
+        if (isTraced(user)){
+            log.info(String.format("[trace %s] %s: %s", user, event, String.format(msg, args)));
+        }
+    }
+
+    /**
+     * Counts the packet event, logs the whole packet if the sender is traced.
+     * @param log
+     * @param event
+     * @param packet
+     */
+    public void tracePacket(Logger log, String event, Packet packet){
+        count(event);
+        if (isTraced(packet.getFrom())){
+            log.info(String.format("[trace %s] %s: %s", packet.getFrom(), event, packet.toString()));
+        }
+    }
+
+    /**
+     * Increments event counter.
+     * @param event
+     */
+    public void count(String event){
+        AtomicLong ctr = counters.get(event);
+        if (ctr == null){
+            ctr = new AtomicLong(0);
+            final AtomicLong prev = counters.putIfAbsent(event, ctr);
+            ctr = prev == null ? ctr : prev;
+        }
+
+        ctr.incrementAndGet();
+    }
+
+    /**
+     * Returns event counters.
+     * @return
+     */
+    public Map<String, Long> getCounters(){
+        final Map<String, Long> ret = new HashMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> e : counters.entrySet()) {
+            ret.put(e.getKey(), e.getValue().get());
+        }
+
+        return ret;
+    }
+
+    public void resetCounters(){
+        counters.clear();
+    }
+}
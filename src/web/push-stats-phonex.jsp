@@ -0,0 +1,260 @@
+<%@ page import="java.util.*,
+                 org.jivesoftware.openfire.XMPPServer,
+                 org.jivesoftware.util.*,
+                 org.jivesoftware.openfire.plugin.UserServicePlugin,
+                 org.jivesoftware.openfire.plugin.userService.ExecutorWatchdog,
+                 org.jivesoftware.openfire.plugin.userService.JobLane,
+                 org.jivesoftware.openfire.plugin.userService.TaskExecutor,
+                 org.jivesoftware.openfire.plugin.userService.amqp.AMQPListener,
+                 org.jivesoftware.openfire.plugin.userService.platformPush.PlatformPushHandler,
+                 org.jivesoftware.openfire.plugin.userService.platformPush.apn.ApnConnection,
+                 org.jivesoftware.openfire.plugin.userService.platformPush.apn.ApnDispatcher,
+                 org.jivesoftware.openfire.plugin.userService.platformPush.gcm.GcmSender,
+                 org.jivesoftware.openfire.plugin.userService.push.PushSendLane,
+                 org.jivesoftware.openfire.plugin.userService.push.PushService,
+                 org.jivesoftware.openfire.plugin.userService.push.PushStats,
+                 org.jivesoftware.openfire.plugin.userService.strings.StringsIndex,
+                 org.jivesoftware.openfire.plugin.userService.strings.StringsManager,
+                 org.jivesoftware.openfire.plugin.userService.utils.LatencyHistogram"
+    errorPage="error.jsp"
+%>
+
+<%@ taglib uri="http://java.sun.com/jstl/core_rt" prefix="c" %>
+<%@ taglib uri="http://java.sun.com/jstl/fmt_rt" prefix="fmt" %>
+
+<%-- Define Administration Bean --%>
+<jsp:useBean id="admin" class="org.jivesoftware.util.WebManager"  />
+<c:set var="admin" value="${admin.manager}" />
+<% admin.init(request, response, session, application, out ); %>
+
+<%  // Get parameters
+    boolean reset = request.getParameter("reset") != null;
+    boolean reloadStrings = request.getParameter("reloadStrings") != null;
+
+    UserServicePlugin plugin = (UserServicePlugin) XMPPServer.getInstance().getPluginManager().getPlugin("userservice");
+    PushService pushSvc = plugin == null ? null : plugin.getPushSvc();
+    PushStats stats = pushSvc == null ? null : pushSvc.getStats();
+
+    if (reset && stats != null) {
+        stats.reset();
+        plugin.getTracer().resetCounters();
+        response.sendRedirect("push-stats-phonex.jsp");
+        return;
+    }
+
+    if (reloadStrings && plugin != null && plugin.getStrings() != null) {
+        plugin.getStrings().reload();
+        response.sendRedirect("push-stats-phonex.jsp");
+        return;
+    }
+
+    LatencyHistogram[] histograms = stats == null ? new LatencyHistogram[0] : new LatencyHistogram[]{
+            stats.getPersistLatency(), stats.getQueueWait(), stats.getAckRtt(), stats.getEndToEnd(), stats.getAttempts()};
+%>
+
+<html>
+    <head>
+        <title>PhoneX push statistics</title>
+        <meta name="pageID" content="push-stats-phonex"/>
+    </head>
+    <body>
+
+<p>
+XMPP push delivery statistics since the plugin start or the last reset. Latencies are in milliseconds.
+Values are also exported via JMX as <code><%= PushStats.OBJECT_NAME %></code>.
+</p>
+
+<%  if (stats == null) { %>
+<p>Push service is not running.</p>
+<%  } else { %>
+
+<div class="jive-table">
+<table cellpadding="0" cellspacing="0" border="0" width="100%">
+<thead>
+    <tr>
+        <th>Stage</th>
+        <th>Count</th>
+        <th>Mean</th>
+        <th>p50</th>
+        <th>p90</th>
+        <th>p99</th>
+        <th>Max</th>
+    </tr>
+</thead>
+<tbody>
+<%  for (LatencyHistogram h : histograms) { %>
+    <tr>
+        <td class="c1"><%= h.getName() %></td>
+        <td><%= h.getCount() %></td>
+        <td><%= String.format("%.1f", h.getMean()) %></td>
+        <td><%= h.getPercentile(50) %></td>
+        <td><%= h.getPercentile(90) %></td>
+        <td><%= h.getPercentile(99) %></td>
+        <td><%= h.getMax() %></td>
+    </tr>
+<%  } %>
+</tbody>
+</table>
+</div>
+<br/>
+
+<div class="jive-table">
+<table cellpadding="0" cellspacing="0" border="0" width="100%">
+<thead>
+    <tr>
+        <th colspan="2">Counters</th>
+    </tr>
+</thead>
+<tbody>
+    <tr><td class="c1">Enqueued records</td><td><%= stats.getEnqueued() %></td></tr>
+    <tr><td class="c1">Merged records</td><td><%= stats.getMerged() %> (ratio <%= String.format("%.3f", stats.getMergeRatio()) %>)</td></tr>
+    <tr><td class="c1">Delivered</td><td><%= stats.getDelivered() %></td></tr>
+    <tr><td class="c1">Error responses</td><td><%= stats.getErrors() %></td></tr>
+    <tr><td class="c1">Dropped (too many attempts)</td><td><%= stats.getDropped() %></td></tr>
+    <tr><td class="c1">Dropped (route lost)</td><td><%= stats.getRouteLost() %></td></tr>
+    <tr><td class="c1">Shed (lane full)</td><td><%= stats.getShed() %></td></tr>
+    <tr><td class="c1">ACKs waiting for DB write</td><td><%= pushSvc.getAckWriter().getBufferSize() %></td></tr>
+<%  for (PushSendLane lane : pushSvc.getLanes()) { %>
+    <tr>
+        <td class="c1">Lane <%= lane.getLaneIdx() %></td>
+        <td>queue: <%= lane.getSndQueue().size() %>, ackWait: <%= lane.getAckWait().size() %>, destinations: <%= lane.getDestIndex().size() %>,
+            occupancy: <%= lane.getOccupancy() %>/<%= lane.getCapacity() %><%= lane.isOverloaded() ? " <b>overloaded</b>" : "" %></td>
+    </tr>
+<%  } %>
+<%  PlatformPushHandler pPushSvc = plugin.getpPushSvc();
+    if (pPushSvc != null) { %>
+    <tr>
+        <td class="c1">GCM queue</td>
+        <td><%= pPushSvc.getGcmScheduler().size() %>/<%= pPushSvc.getGcmQueueCapacity() %>, shed: <%= pPushSvc.getGcmShed() %>,
+            superseded: <%= pPushSvc.getGcmScheduler().getCancelled() %></td>
+    </tr>
+<%      for (GcmSender gcmSender : pPushSvc.getGcmSenders()) { %>
+    <tr>
+        <td class="c1">GCM worker <%= gcmSender.getName() %></td>
+        <td>HTTP requests: <%= gcmSender.getHttpRequests() %>, records sent: <%= gcmSender.getRecordsSent() %></td>
+    </tr>
+<%      } %>
+    <tr>
+        <td class="c1">GCM availability</td>
+        <td><%= pPushSvc.getGcmCircuit().getRemaining() > 0 ? "<b>circuit open</b> for " + pPushSvc.getGcmCircuit().getRemaining() + " ms" : "ok" %>,
+            opened: <%= pPushSvc.getGcmCircuit().getOpens() %>, consecutive failures: <%= pPushSvc.getGcmCircuit().getConsecutiveFailures() %>,
+            rate limit: <%= pPushSvc.getGcmRateLimiter() == null ? "-" : pPushSvc.getGcmRateLimiter().getRate() + "/s, throttled: " + pPushSvc.getGcmRateLimiter().getThrottled() %></td>
+    </tr>
+    <tr>
+        <td class="c1">Push recheck aggregation</td>
+        <td>window: <%= pPushSvc.getRecheckDebouncer().getWindow() %> ms, waiting users: <%= pPushSvc.getRecheckDebouncer().getPendingUsers() %>,
+            triggers: <%= pPushSvc.getRecheckDebouncer().getTriggers() %>, rechecks: <%= pPushSvc.getRecheckDebouncer().getRechecks() %></td>
+    </tr>
+    <tr>
+        <td class="c1">Pending platform push store</td>
+        <td>users: <%= pPushSvc.getPendingStore().getUsers() %>, hits: <%= pPushSvc.getPendingStore().getHits() %>,
+            DB loads: <%= pPushSvc.getPendingStore().getLoads() %></td>
+    </tr>
+    <tr>
+        <td class="c1">Token registry</td>
+        <td>users: <%= pPushSvc.getTokenCache().getUsers() %>, tokens: <%= pPushSvc.getTokenCache().getTokenCount() %>,
+            complete: <%= pPushSvc.getTokenCache().isComplete() %>, hits: <%= pPushSvc.getTokenCache().getHits() %>,
+            DB loads: <%= pPushSvc.getTokenCache().getLoads() %>, evictions: <%= pPushSvc.getTokenCache().getEvictions() %></td>
+    </tr>
+<%      if (pPushSvc.getResultProcessor() != null) { %>
+    <tr>
+        <td class="c1">Push result processing</td>
+        <td>confirmed sends: <%= pPushSvc.getResultProcessor().getConfirmedSends() %>, non-ack deleted: <%= pPushSvc.getResultProcessor().getNoAckDeleted() %>,
+            tokens replaced: <%= pPushSvc.getResultProcessor().getTokensReplaced() %>, tokens deleted: <%= pPushSvc.getResultProcessor().getTokensDeleted() %></td>
+    </tr>
+<%      } %>
+<%      for (ApnDispatcher apn : new ApnDispatcher[]{pPushSvc.getApnProd(), pPushSvc.getApnDevel()}) {
+            if (apn == null) { continue; } %>
+    <tr>
+        <td class="c1">APN queue <%= apn.getName() %></td>
+        <td><%= apn.getQueue().size() %>/<%= apn.getQueueCapacity() %>, submitted: <%= apn.getSubmitted() %>, rejected: <%= apn.getRejected() %>,
+            wait p50/p99: <%= apn.getQueueWait().getPercentile(50) %>/<%= apn.getQueueWait().getPercentile(99) %> ms</td>
+    </tr>
+<%          for (ApnConnection conn : apn.getConnections()) { %>
+    <tr>
+        <td class="c1">APN connection <%= apn.getName() %>.<%= conn.getConnIdx() %></td>
+        <td>sent: <%= conn.getSent() %>, failed: <%= conn.getFailed() %>, gateway errors: <%= conn.getGatewayErrors() %>,
+            closed: <%= conn.getClosed() %>, resent: <%= conn.getResent() %>, <%= String.format("%.1f", conn.getThroughput()) %>/s,
+            write p99: <%= conn.getWriteTime().getPercentile(99) %> ms</td>
+    </tr>
+<%          } %>
+<%      } %>
+<%  } %>
+<%  TaskExecutor executor = plugin.getExecutor();
+    if (executor != null) { %>
+    <tr>
+        <td class="c1">Task executor queue</td>
+        <td><%= executor.getQueueSize() %>/<%= executor.getCapacity() %>, rejected: <%= executor.getRejectedJobs() %>, over capacity: <%= executor.getOverCapacityJobs() %>,
+            threads: <%= executor.getThreads() %>, active keys: <%= executor.getActiveKeys() %></td>
+    </tr>
+    <tr>
+        <td class="c1">Coalesced jobs</td>
+        <td><%= executor.getCoalescedJobs() %> <%= executor.getCoalescedByName() %></td>
+    </tr>
+<%      ExecutorWatchdog watchdog = executor.getWatchdog();
+        if (watchdog != null) { %>
+    <tr>
+        <td class="c1">Executor watchdog</td>
+        <td><%= watchdog.isStuck() ? "<b>stuck</b>: " + watchdog.getStuckJobName() + " on " + watchdog.getStuckThreadName()
+                + " for " + watchdog.getStuckRunTime() + " ms, samples: " + watchdog.getStuckSamples() : "ok" %>,
+            detections: <%= watchdog.getStuckDetections() %>, mails sent: <%= watchdog.getNotificationsSent() %>,
+            suppressed: <%= watchdog.getNotificationsSuppressed() %></td>
+    </tr>
+<%      } %>
+<%      for (JobLane jobLane : JobLane.values()) {
+            LatencyHistogram wait = executor.getLaneWaitTime(jobLane); %>
+    <tr>
+        <td class="c1">Executor lane <%= jobLane.name() %></td>
+        <td>queued: <%= executor.getLaneQueueSize(jobLane) %>, running: <%= executor.getLaneRunning(jobLane) %>,
+            executed: <%= executor.getLaneExecuted(jobLane) %>, wait p50/p99/max: <%= wait.getPercentile(50) %>/<%= wait.getPercentile(99) %>/<%= wait.getMax() %> ms</td>
+    </tr>
+<%      } %>
+<%  } %>
+<%  AMQPListener amqp = plugin.getAmqpListener();
+    if (amqp != null) { %>
+    <tr>
+        <td class="c1">AMQP consumption</td>
+        <td><%= amqp.isPaused() ? "<b>paused</b>" : "running" %>, pauses: <%= amqp.getPauseCount() %>, paused time: <%= amqp.getPausedTime() %> ms</td>
+    </tr>
+<%  } %>
+<%  StringsManager strings = plugin.getStrings();
+    if (strings != null) {
+        StringsIndex stringsIndex = strings.getIndex(); %>
+    <tr>
+        <td class="c1">Localized strings</td>
+        <td><%= stringsIndex == null ? "<b>not loaded</b>" : "strings: " + stringsIndex.getSize() + ", keys: " + stringsIndex.getKeys()
+                + ", version: " + stringsIndex.getVersion() + ", loaded: " + new Date(stringsIndex.getLoadedTstamp()) %>,
+            reloads: <%= strings.getReloads() %>, index lookups: <%= strings.getIndexLookups() %>, DB lookups: <%= strings.getDbLookups() %></td>
+    </tr>
+<%  } %>
+</tbody>
+</table>
+</div>
+<br/>
+
+<%  Map<String, Long> traceCounters = new TreeMap<String, Long>(plugin.getTracer().getCounters()); %>
+<div class="jive-table">
+<table cellpadding="0" cellspacing="0" border="0" width="100%">
+<thead>
+    <tr>
+        <th colspan="2">Events (traced users: <%= StringUtils.escapeHTMLTags(StringUtils.collectionToString(plugin.getTracer().getWatchList())) %>)</th>
+    </tr>
+</thead>
+<tbody>
+<%  for (Map.Entry<String, Long> e : traceCounters.entrySet()) { %>
+    <tr><td class="c1"><%= StringUtils.escapeHTMLTags(e.getKey()) %></td><td><%= e.getValue() %></td></tr>
+<%  } %>
+</tbody>
+</table>
+</div>
+<br/>
+
+<form action="push-stats-phonex.jsp" method="post">
+    <input type="submit" name="reset" value="Reset statistics">
+    <input type="submit" name="reloadStrings" value="Reload localized strings">
+</form>
+
+<%  } %>
+
+    </body>
+</html>
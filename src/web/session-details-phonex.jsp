@@ -28,6 +28,7 @@
                  org.jivesoftware.util.StringUtils,
                  org.jivesoftware.openfire.plugin.userService.geoip.GeoIpHolder,
                  org.jivesoftware.openfire.plugin.UserServicePlugin,
+                 org.jivesoftware.openfire.plugin.userService.push.PushRttEstimator,
                  net.phonex.pub.proto.PushNotifications,
                  java.text.NumberFormat,
                  java.util.Collection"
@@ -88,6 +89,10 @@
     NumberFormat numFormatter = NumberFormat.getNumberInstance();
     String unpackedPresence1Tmp = null;
     String unpackedPresence2Tmp = null;
+
+    // Push ACK round trip statistics for this resource.
+    UserServicePlugin phxPlugin = (UserServicePlugin) webManager.getXMPPServer().getPluginManager().getPlugin("userservice");
+    PushRttEstimator pushRtt = phxPlugin == null || phxPlugin.getPushSvc() == null ? null : phxPlugin.getPushSvc().getRttEstimator(address);
 %>
 
 <html>
@@ -339,6 +344,20 @@
             <%= numFormatter.format(currentSess.getNumClientPackets()) %>/<%= numFormatter.format(currentSess.getNumServerPackets()) %>
         </td>
     </tr>
+    <tr>
+        <td class="c1">
+            Push ACK RTT:
+        </td>
+        <td>
+            <%  if (pushRtt == null) { %>
+                n/a
+            <%  } else { %>
+                SRTT: <%= pushRtt.getSrtt() %> ms, RTTVAR: <%= pushRtt.getRttvar() %> ms, RTO: <%= pushRtt.getRto() %> ms,
+                last: <%= pushRtt.getLastRtt() %> ms, samples: <%= numFormatter.format(pushRtt.getSamples()) %>,
+                timeouts: <%= numFormatter.format(pushRtt.getTimeouts()) %>
+            <%  } %>
+        </td>
+    </tr>
     <tr>
         <td class="c1">
             <fmt:message key="session.details.hostname" />
@@ -19,6 +19,7 @@
     String secret = ParamUtils.getParameter(request, "secret");
     boolean enabled = ParamUtils.getBooleanParameter(request, "enabled");
     String allowedIPs = ParamUtils.getParameter(request, "allowedIPs");
+    String traceUsers = ParamUtils.getParameter(request, "traceUsers");
 
     UserServicePlugin plugin = (UserServicePlugin) XMPPServer.getInstance().getPluginManager().getPlugin("userservice");
 
@@ -29,6 +30,7 @@
             plugin.setEnabled(enabled);
         	plugin.setSecret(secret);
             plugin.setAllowedIPs(StringUtils.stringToCollection(allowedIPs));
+            plugin.setTraceUsers(traceUsers == null ? Collections.<String>emptyList() : StringUtils.stringToCollection(traceUsers));
             response.sendRedirect("user-service.jsp?success=true");
             return;
         }
@@ -37,6 +39,7 @@
     secret = plugin.getSecret();
     enabled = plugin.isEnabled();
     allowedIPs = StringUtils.collectionToString(plugin.getAllowedIPs());
+    traceUsers = StringUtils.collectionToString(plugin.getTracer().getWatchList());
 %>
 
 <html>
@@ -105,6 +108,22 @@ HTTP requests to the service will be ignored.
 
 <br><br>
 
+<fieldset>
+    <legend>Tracing</legend>
+    <div>
+    <p>
+    Packets, push requests and AMQP messages of the listed users are logged in full at INFO level.
+    Other users are only counted. Bare JIDs are delimited by commas.
+    </p>
+    <ul>
+        <label for="text_trace">Traced users:</label>
+        <textarea name="traceUsers" id="text_trace" cols="40" rows="3" wrap="virtual"><%= ((traceUsers != null) ? StringUtils.escapeHTMLTags(traceUsers) : "") %></textarea>
+    </ul>
+    </div>
+</fieldset>
+
+<br><br>
+
 <input type="submit" value="Save Settings">
 </form>
 
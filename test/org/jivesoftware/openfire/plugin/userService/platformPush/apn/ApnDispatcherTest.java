@@ -0,0 +1,222 @@
+package org.jivesoftware.openfire.plugin.userService.platformPush.apn;
+
+import com.notnoop.apns.APNS;
+import com.notnoop.apns.ApnsService;
+import com.notnoop.apns.ApnsServiceBuilder;
+import com.notnoop.apns.EnhancedApnsNotification;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.File;
+import java.security.cert.X509Certificate;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * APN dispatcher against the local mock gateway.
+ *
+ * Created by dusanklinec on 18.10.16.
+ */
+public class ApnDispatcherTest {
+    private static final String KEYSTORE_PASS = "changeit";
+    private static final String TOKEN_VALID = "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+    private static final String TOKEN_INVALID = "fedcba9876543210fedcba9876543210fedcba9876543210fedcba9876543210";
+    private static final JID USER = new JID("alice@phone-x.net");
+
+    private File keystore;
+    private ApnMockGateway gateway;
+    private MockDispatcher dispatcher;
+    private final AtomicInteger failed = new AtomicInteger(0);
+    private CountDownLatch sentLatch;
+
+    @Before
+    public void setUp() throws Exception {
+        keystore = newKeystore();
+        gateway = new ApnMockGateway(keystore.getAbsolutePath(), KEYSTORE_PASS, 0.0, 0);
+        gateway.bind();
+        gateway.start();
+    }
+
+    @After
+    public void tearDown() {
+        if (dispatcher != null){
+            dispatcher.deinit();
+        }
+
+        gateway.deinit();
+        keystore.delete();
+    }
+
+    @Test(timeout = 30000)
+    public void notificationsAreSent() throws Exception {
+        final int count = 50;
+        startDispatcher(count);
+        for(int i = 0; i < count; i++){
+            assertTrue(dispatcher.submit(newRecord(i + 1, TOKEN_VALID)));
+        }
+
+        assertTrue(sentLatch.await(20, TimeUnit.SECONDS));
+        waitFor(new Condition() {
+            @Override
+            public boolean holds() {
+                return gateway.getNotifications() >= count;
+            }
+        });
+
+        assertEquals(count, dispatcher.getSubmitted());
+        assertEquals(0, failed.get());
+        assertEquals(0, gateway.getRejected());
+    }
+
+    @Test(timeout = 30000)
+    public void invalidTokenIsReportedByFeedback() throws Exception {
+        gateway.addInvalidToken(TOKEN_INVALID);
+        startDispatcher(1);
+        assertTrue(dispatcher.submit(newRecord(1, TOKEN_INVALID)));
+        assertTrue(sentLatch.await(20, TimeUnit.SECONDS));
+
+        // Error response is processed asynchronously by the library.
+        waitFor(new Condition() {
+            @Override
+            public boolean holds() {
+                long errors = 0;
+                for (ApnConnection conn : dispatcher.getConnections()) {
+                    errors += conn.getGatewayErrors();
+                }
+                return errors >= 1;
+            }
+        });
+
+        final ApnsService feedback = dispatcher.newFeedbackService();
+        try {
+            final Map<String, ?> inactive = feedback.getInactiveDevices();
+            assertEquals(1, inactive.size());
+            assertTrue(inactive.keySet().iterator().next().equalsIgnoreCase(TOKEN_INVALID));
+        } finally {
+            feedback.stop();
+        }
+    }
+
+    @Test
+    public void fullQueueRejects() throws Exception {
+        // Not started, nothing takes notifications from the queue.
+        dispatcher = new MockDispatcher(1);
+        for(int i = 0; i < dispatcher.getQueueCapacity(); i++){
+            assertTrue(dispatcher.submit(newRecord(i + 1, TOKEN_VALID)));
+        }
+
+        assertFalse(dispatcher.submit(newRecord(0, TOKEN_VALID)));
+        assertEquals(1, dispatcher.getRejected());
+    }
+
+    private void startDispatcher(int expectedSent){
+        dispatcher = new MockDispatcher(expectedSent);
+        dispatcher.start();
+    }
+
+    private static ApnSendRecord newRecord(int id, String token){
+        final EnhancedApnsNotification notification = new EnhancedApnsNotification(id,
+                (int) (System.currentTimeMillis() / 1000L) + 3600, token, "{\"aps\":{\"alert\":\"test\"}}");
+        return new ApnSendRecord(notification, token, USER);
+    }
+
+    /**
+     * Generates self-signed server key for the mock gateway.
+     * @return
+     * @throws Exception
+     */
+    private static File newKeystore() throws Exception {
+        final File file = File.createTempFile("apn-mock", ".jks");
+        file.delete();
+
+        final String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+        final Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "apn", "-keyalg", "RSA",
+                "-keysize", "2048", "-validity", "1", "-dname", "CN=localhost",
+                "-storetype", "JKS", "-keystore", file.getAbsolutePath(),
+                "-storepass", KEYSTORE_PASS, "-keypass", KEYSTORE_PASS)
+                .redirectErrorStream(true)
+                .start();
+
+        assertEquals(0, process.waitFor());
+        return file;
+    }
+
+    private static void waitFor(Condition condition) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 20000;
+        while(!condition.holds()){
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(20);
+        }
+    }
+
+    private interface Condition {
+        boolean holds();
+    }
+
+    /**
+     * Dispatcher connecting to the mock gateway, server certificate is not verified.
+     */
+    private class MockDispatcher extends ApnDispatcher {
+        private MockDispatcher(int expectedSent) {
+            super("mock", true, null, null, null);
+            sentLatch = new CountDownLatch(expectedSent);
+        }
+
+        @Override
+        void onSent(ApnSendRecord rec) {
+            super.onSent(rec);
+            sentLatch.countDown();
+        }
+
+        @Override
+        void onFailed(ApnSendRecord rec, Throwable cause) {
+            super.onFailed(rec, cause);
+            failed.incrementAndGet();
+        }
+
+        @Override
+        protected ApnsServiceBuilder newBuilder() {
+            return APNS.newService()
+                    .withSSLContext(newTrustAllContext())
+                    .withGatewayDestination("localhost", gateway.getPort())
+                    .withFeedbackDestination("localhost", gateway.getFeedbackPort());
+        }
+    }
+
+    private static SSLContext newTrustAllContext(){
+        try {
+            final SSLContext ctx = SSLContext.getInstance("TLS");
+            ctx.init(null, new TrustManager[]{new X509TrustManager() {
+                @Override
+                public void checkClientTrusted(X509Certificate[] chain, String authType) {
+
+                }
+
+                @Override
+                public void checkServerTrusted(X509Certificate[] chain, String authType) {
+
+                }
+
+                @Override
+                public X509Certificate[] getAcceptedIssuers() {
+                    return new X509Certificate[0];
+                }
+            }}, null);
+
+            return ctx;
+        } catch(Exception e){
+            throw new IllegalStateException("Cannot create SSL context for mock gateway", e);
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package org.jivesoftware.openfire.plugin.userService.platformPush.apn;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local TLS mock of the APN binary gateway and feedback service, for tests of the APN dispatcher.
+ * Accepts simple (0), enhanced (1) and frame (2) notification formats.
+ *
+ * Notification to an invalid token, or with the given probability any notification, is rejected with
+ * an error response (INVALID_TOKEN) and the connection is closed, as the real gateway does.
+ * Rejected tokens are then reported by the feedback service. Optional per-notification delay emulates a slow gateway.
+ *
+ * Created by dusanklinec on 18.10.16.
+ */
+public class ApnMockGateway extends Thread {
+    private static final Logger log = LoggerFactory.getLogger(ApnMockGateway.class);
+
+    private static final int CMD_SIMPLE = 0;
+    private static final int CMD_ENHANCED = 1;
+    private static final int CMD_FRAME = 2;
+    private static final int CMD_ERROR = 8;
+    private static final int ITEM_TOKEN = 1;
+    private static final int ITEM_IDENTIFIER = 3;
+    private static final int STATUS_INVALID_TOKEN = 8;
+
+    private final String keystorePath;
+    private final String keystorePass;
+    private final double failureRate;
+    private final long delay;
+    private final Random random = new Random();
+    private volatile boolean gatewayWorking = true;
+    private SSLServerSocket serverSocket;
+    private SSLServerSocket feedbackSocket;
+    private Thread feedbackThread;
+
+    private final Set<String> invalidTokens = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final ConcurrentLinkedQueue<String> feedbackTokens = new ConcurrentLinkedQueue<String>();
+
+    private final AtomicLong connections = new AtomicLong(0);
+    private final AtomicLong notifications = new AtomicLong(0);
+    private final AtomicLong rejected = new AtomicLong(0);
+
+    public ApnMockGateway(String keystorePath, String keystorePass, double failureRate, long delay) {
+        this.keystorePath = keystorePath;
+        this.keystorePass = keystorePass;
+        this.failureRate = failureRate;
+        this.delay = delay;
+        this.setName("ApnMockGateway");
+        this.setDaemon(true);
+    }
+
+    /**
+     * Opens TLS server sockets of the gateway and the feedback service on free ports.
+     * Client certificate is not required.
+     * @throws Exception
+     */
+    public void bind() throws Exception {
+        final KeyStore ks = KeyStore.getInstance(keystorePath.endsWith(".p12") ? "PKCS12" : "JKS");
+        final InputStream is = new FileInputStream(keystorePath);
+        try {
+            ks.load(is, keystorePass.toCharArray());
+        } finally {
+            is.close();
+        }
+
+        final KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(ks, keystorePass.toCharArray());
+
+        final SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(kmf.getKeyManagers(), null, null);
+        serverSocket = (SSLServerSocket) ctx.getServerSocketFactory().createServerSocket(0);
+        serverSocket.setNeedClientAuth(false);
+        feedbackSocket = (SSLServerSocket) ctx.getServerSocketFactory().createServerSocket(0);
+        feedbackSocket.setNeedClientAuth(false);
+        log.info(String.format("APN mock gateway listening on %d, feedback on %d, failure rate: %s, delay: %d ms",
+                getPort(), getFeedbackPort(), failureRate, delay));
+    }
+
+    @Override
+    public synchronized void start() {
+        super.start();
+        feedbackThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serveFeedback();
+            }
+        }, "ApnMockGateway.feedback");
+        feedbackThread.setDaemon(true);
+        feedbackThread.start();
+    }
+
+    public void deinit(){
+        gatewayWorking = false;
+        closeQuietly(serverSocket);
+        closeQuietly(feedbackSocket);
+    }
+
+    public void run(){
+        while(gatewayWorking){
+            try {
+                final Socket socket = serverSocket.accept();
+                connections.incrementAndGet();
+
+                final Thread handler = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        handleConnection(socket);
+                    }
+                }, "ApnMockGateway.conn." + connections.get());
+                handler.setDaemon(true);
+                handler.start();
+
+            } catch(IOException e){
+                if (gatewayWorking){
+                    log.error("Exception in accepting mock gateway connection", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads notifications until the client closes the connection or a notification is rejected.
+     * @param socket
+     */
+    protected void handleConnection(Socket socket){
+        try {
+            final DataInputStream in = new DataInputStream(socket.getInputStream());
+            final OutputStream out = socket.getOutputStream();
+
+            while(gatewayWorking){
+                final Notification notification = readNotification(in);
+                notifications.incrementAndGet();
+
+                if (delay > 0){
+                    Thread.sleep(delay);
+                }
+
+                final boolean invalid = invalidTokens.contains(notification.token);
+                if (invalid || (failureRate > 0 && random.nextDouble() < failureRate)){
+                    rejected.incrementAndGet();
+                    feedbackTokens.add(notification.token);
+
+                    final int id = notification.id;
+                    out.write(new byte[]{CMD_ERROR, STATUS_INVALID_TOKEN,
+                            (byte) (id >>> 24), (byte) (id >>> 16), (byte) (id >>> 8), (byte) id});
+                    out.flush();
+                    break;
+                }
+            }
+        } catch(EOFException e){
+            // Client closed the connection.
+        } catch(Exception e){
+            log.info("Mock gateway connection finished", e);
+        } finally {
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * Feedback service: writes rejected tokens to each connection and closes it. Reported tokens are forgotten.
+     */
+    private void serveFeedback(){
+        while(gatewayWorking){
+            Socket socket = null;
+            try {
+                socket = feedbackSocket.accept();
+                final DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                final int tstamp = (int) (System.currentTimeMillis() / 1000L);
+
+                String token;
+                while((token = feedbackTokens.poll()) != null){
+                    final byte[] tokenBytes = decodeHex(token);
+                    out.writeInt(tstamp);
+                    out.writeShort(tokenBytes.length);
+                    out.write(tokenBytes);
+                }
+
+                out.flush();
+
+            } catch(IOException e){
+                if (gatewayWorking){
+                    log.error("Exception in serving mock feedback connection", e);
+                }
+            } finally {
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    /**
+     * Reads one notification, identifier is 0 for simple format.
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    private Notification readNotification(DataInputStream in) throws IOException {
+        final int cmd = in.readUnsignedByte();
+        final Notification notification = new Notification();
+        if (cmd == CMD_SIMPLE){
+            notification.token = encodeHex(read(in, in.readUnsignedShort()));
+            read(in, in.readUnsignedShort());
+
+        } else if (cmd == CMD_ENHANCED){
+            notification.id = in.readInt();
+            in.readInt(); // expiry
+            notification.token = encodeHex(read(in, in.readUnsignedShort()));
+            read(in, in.readUnsignedShort());
+
+        } else if (cmd == CMD_FRAME){
+            int remaining = in.readInt();
+            while(remaining > 0){
+                final int itemId = in.readUnsignedByte();
+                final int itemLen = in.readUnsignedShort();
+                if (itemId == ITEM_IDENTIFIER && itemLen == 4){
+                    notification.id = in.readInt();
+                } else if (itemId == ITEM_TOKEN){
+                    notification.token = encodeHex(read(in, itemLen));
+                } else {
+                    read(in, itemLen);
+                }
+
+                remaining -= 3 + itemLen;
+            }
+
+        } else {
+            throw new IOException("Unknown command " + cmd);
+        }
+
+        return notification;
+    }
+
+    private static byte[] read(DataInputStream in, int len) throws IOException {
+        final byte[] buff = new byte[len];
+        in.readFully(buff);
+        return buff;
+    }
+
+    private static String encodeHex(byte[] bytes){
+        final StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02X", b & 0xff));
+        }
+
+        return sb.toString();
+    }
+
+    private static byte[] decodeHex(String hex){
+        final byte[] bytes = new byte[hex.length() / 2];
+        for(int i = 0; i < bytes.length; i++){
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+
+        return bytes;
+    }
+
+    private static void closeQuietly(Closeable closeable){
+        try {
+            if (closeable != null){
+                closeable.close();
+            }
+        } catch(IOException e){
+            log.debug("Could not close mock gateway socket", e);
+        }
+    }
+
+    /**
+     * Notifications to this token are rejected.
+     * @param token hex encoded device token
+     */
+    public void addInvalidToken(String token){
+        invalidTokens.add(token.toUpperCase());
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public int getFeedbackPort() {
+        return feedbackSocket.getLocalPort();
+    }
+
+    public long getConnections() {
+        return connections.get();
+    }
+
+    public long getNotifications() {
+        return notifications.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Received notification, hex encoded token and identifier.
+     */
+    private static class Notification {
+        private int id;
+        private String token;
+    }
+}
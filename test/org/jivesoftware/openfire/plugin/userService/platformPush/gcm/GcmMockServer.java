@@ -0,0 +1,247 @@
+package org.jivesoftware.openfire.plugin.userService.platformPush.gcm;
+
+import com.google.android.gcm.server.Constants;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local HTTP stub emulating the GCM send endpoint, for tests of GCM workers.
+ * Handles single (to) and multicast (registration_ids) requests.
+ *
+ * Failures are either scripted - next requests fail with 503 and Retry-After header, a registration id fails
+ * with the given error - or random with the given probabilities, for load tests. Optional delay emulates a slow GCM.
+ *
+ * Created by dusanklinec on 18.10.16.
+ */
+public class GcmMockServer implements HttpHandler {
+    private static final Logger log = LoggerFactory.getLogger(GcmMockServer.class);
+    public static final String PATH = "/gcm/send";
+
+    private final double httpErrorRate;
+    private final double idErrorRate;
+    private final long delay;
+    private final int retryAfter;
+    private final Random random = new Random();
+    private HttpServer server;
+    private ExecutorService executor;
+
+    private final AtomicInteger failNext = new AtomicInteger(0);
+    private final ConcurrentHashMap<String, String> idErrorCodes = new ConcurrentHashMap<String, String>();
+    private final Set<String> remotes = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final AtomicLong requests = new AtomicLong(0);
+    private final AtomicLong registrationIds = new AtomicLong(0);
+    private final AtomicLong httpErrors = new AtomicLong(0);
+    private final AtomicLong idErrors = new AtomicLong(0);
+    private final AtomicLong messageIdCtr = new AtomicLong(0);
+
+    public GcmMockServer(double httpErrorRate, double idErrorRate, long delay, int retryAfter) {
+        this.httpErrorRate = httpErrorRate;
+        this.idErrorRate = idErrorRate;
+        this.delay = delay;
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * Starts the server on a free port.
+     * @throws IOException
+     */
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 128);
+        server.createContext(PATH, this);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.start();
+        log.info(String.format("GCM mock server listening on %s, HTTP error rate: %s, id error rate: %s, delay: %d ms",
+                getEndpoint(), httpErrorRate, idErrorRate, delay));
+    }
+
+    public void deinit(){
+        if (server != null){
+            server.stop(0);
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Next given number of requests fail with 503 and Retry-After header, if set.
+     * @param count
+     */
+    public void failNextRequests(int count){
+        failNext.set(count);
+    }
+
+    /**
+     * Results for the registration id carry the given error code, e.g., Unavailable.
+     * @param regId
+     * @param error
+     */
+    public void setIdError(String regId, String error){
+        idErrorCodes.put(regId, error);
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            requests.incrementAndGet();
+            remotes.add(String.valueOf(exchange.getRemoteAddress()));
+            final Object request = JSONValue.parse(readBody(exchange.getRequestBody()));
+            if (!(request instanceof JSONObject)){
+                respond(exchange, 400, "Invalid JSON");
+                return;
+            }
+
+            if (delay > 0){
+                Thread.sleep(delay);
+            }
+
+            if (takeFailure() || (httpErrorRate > 0 && random.nextDouble() < httpErrorRate)){
+                httpErrors.incrementAndGet();
+                if (retryAfter > 0){
+                    exchange.getResponseHeaders().set("Retry-After", String.valueOf(retryAfter));
+                }
+
+                respond(exchange, 503, "Service Unavailable");
+                return;
+            }
+
+            final JSONObject jsonRequest = (JSONObject) request;
+            final List<Object> ids = new ArrayList<Object>();
+            if (jsonRequest.get(Constants.JSON_REGISTRATION_IDS) instanceof JSONArray){
+                ids.addAll((JSONArray) jsonRequest.get(Constants.JSON_REGISTRATION_IDS));
+            } else if (jsonRequest.get(Constants.JSON_TO) != null){
+                ids.add(jsonRequest.get(Constants.JSON_TO));
+            } else {
+                respond(exchange, 400, "Missing registration ids");
+                return;
+            }
+
+            respond(exchange, 200, buildResponse(ids).toJSONString());
+
+        } catch(InterruptedException e){
+            respond(exchange, 500, "Interrupted");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private boolean takeFailure(){
+        int cur;
+        do {
+            cur = failNext.get();
+            if (cur <= 0){
+                return false;
+            }
+        } while(!failNext.compareAndSet(cur, cur - 1));
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private JSONObject buildResponse(List<Object> ids){
+        int success = 0;
+        int failure = 0;
+        final JSONArray results = new JSONArray();
+        for (Object id : ids) {
+            registrationIds.incrementAndGet();
+            final JSONObject result = new JSONObject();
+
+            String error = idErrorCodes.get(String.valueOf(id));
+            if (error == null && idErrorRate > 0 && random.nextDouble() < idErrorRate){
+                error = random.nextBoolean() ? Constants.ERROR_UNAVAILABLE : Constants.ERROR_INTERNAL_SERVER_ERROR;
+            }
+
+            if (error != null){
+                idErrors.incrementAndGet();
+                result.put(Constants.JSON_ERROR, error);
+                failure += 1;
+            } else {
+                result.put(Constants.JSON_MESSAGE_ID, "0:" + messageIdCtr.incrementAndGet());
+                success += 1;
+            }
+
+            results.add(result);
+        }
+
+        final JSONObject response = new JSONObject();
+        response.put(Constants.JSON_MULTICAST_ID, random.nextLong() & Long.MAX_VALUE);
+        response.put(Constants.JSON_SUCCESS, success);
+        response.put(Constants.JSON_FAILURE, failure);
+        response.put(Constants.JSON_CANONICAL_IDS, 0);
+        response.put(Constants.JSON_RESULTS, results);
+        return response;
+    }
+
+    private static String readBody(InputStream is) throws IOException {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final byte[] buff = new byte[4096];
+        int read;
+        while((read = is.read(buff)) >= 0){
+            bos.write(buff, 0, read);
+        }
+
+        return new String(bos.toByteArray(), "UTF-8");
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        final byte[] bytes = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        final OutputStream os = exchange.getResponseBody();
+        os.write(bytes);
+        os.close();
+    }
+
+    /**
+     * URL of the send endpoint, for the GCM Sender.
+     * @return
+     */
+    public String getEndpoint() {
+        return "http://localhost:" + server.getAddress().getPort() + PATH;
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * Number of distinct client connections (remote address and port) seen.
+     * @return
+     */
+    public int getConnections() {
+        return remotes.size();
+    }
+
+    public long getRegistrationIds() {
+        return registrationIds.get();
+    }
+
+    public long getHttpErrors() {
+        return httpErrors.get();
+    }
+
+    public long getIdErrors() {
+        return idErrors.get();
+    }
+}
@@ -0,0 +1,151 @@
+package org.jivesoftware.openfire.plugin.userService.platformPush.gcm;
+
+import com.google.android.gcm.server.Constants;
+import com.google.android.gcm.server.Message;
+import com.google.android.gcm.server.Result;
+import com.google.android.gcm.server.Sender;
+import org.jivesoftware.openfire.plugin.userService.platformPush.PlatformPushHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * GCM worker against the local GCM stub.
+ *
+ * Created by dusanklinec on 18.10.16.
+ */
+public class GcmSenderTest {
+    private static final int RETRY_AFTER = 5;
+
+    private GcmMockServer server;
+    private RecordingHandler handler;
+    private GcmSender worker;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new GcmMockServer(0.0, 0.0, 0, RETRY_AFTER);
+        server.start();
+        handler = new RecordingHandler();
+        worker = new GcmSender(handler, null, 0, new Sender("test-key", server.getEndpoint()));
+    }
+
+    @After
+    public void tearDown() {
+        worker.deinit();
+        server.deinit();
+    }
+
+    @Test(timeout = 30000)
+    public void multicastResultsAreSplitToRecords() throws Exception {
+        server.setIdError("token-b", Constants.ERROR_UNAVAILABLE);
+        server.setIdError("token-c", Constants.ERROR_INTERNAL_SERVER_ERROR);
+        server.setIdError("token-d", Constants.ERROR_NOT_REGISTERED);
+
+        for (String token : new String[]{"token-a", "token-b", "token-c", "token-d"}) {
+            handler.getGcmScheduler().offer(newRecord(token, "payload"));
+        }
+
+        worker.start();
+        waitFor(4);
+
+        // One multicast request for the same payload.
+        assertEquals(1, server.getRequests());
+        assertEquals(4, server.getRegistrationIds());
+
+        assertNotNull(handler.results.get("token-a").getMessageId());
+        assertEquals(Constants.ERROR_NOT_REGISTERED, handler.results.get("token-d").getErrorCodeName());
+
+        // Unavailable and InternalServerError are retried with the record backoff.
+        assertTrue(handler.rescheduled.containsKey("token-b"));
+        assertTrue(handler.rescheduled.containsKey("token-c"));
+        assertNull(handler.results.get("token-b"));
+        assertEquals(0, handler.gcmCircuit().getOpens());
+    }
+
+    @Test(timeout = 30000)
+    public void retryAfterOpensSharedCircuit() throws Exception {
+        server.failNextRequests(1);
+        handler.getGcmScheduler().offer(newRecord("token-a", "payload"));
+
+        final long timeStart = System.currentTimeMillis();
+        worker.start();
+        waitFor(1);
+
+        // Whole request failed with 503, record waits for the circuit, not for its own backoff.
+        final GcmSendRecord rec = handler.rescheduled.get("token-a");
+        assertNotNull(rec);
+        assertEquals(1, server.getHttpErrors());
+        assertEquals(1, handler.gcmCircuit().getOpens());
+        assertTrue(rec.getSendTstamp() >= timeStart + RETRY_AFTER * 1000L);
+        assertTrue(handler.gcmCircuit().getRemaining() > 0);
+        assertEquals(rec.getSendTstamp(), handler.gcmCircuit().getOpenUntil());
+    }
+
+    @Test(timeout = 30000)
+    public void connectionIsReused() throws Exception {
+        final int count = 10;
+        worker.start();
+        for(int i = 0; i < count; i++){
+            // Different payloads, one request each, sent one after another.
+            handler.getGcmScheduler().offer(newRecord("token-" + i, "payload-" + i));
+            waitFor(i + 1);
+        }
+
+        assertEquals(count, server.getRequests());
+        assertEquals(1, server.getConnections());
+    }
+
+    private void waitFor(int finished) throws InterruptedException {
+        while(handler.results.size() + handler.rescheduled.size() < finished){
+            Thread.sleep(10);
+        }
+    }
+
+    private static GcmSendRecord newRecord(String token, String payload){
+        final GcmSendRecord rec = new GcmSendRecord();
+        rec.setTo(token);
+        rec.setPushMsg(new Message.Builder().addData("phxroot", payload).build());
+        rec.setBatchKey(payload);
+        return rec;
+    }
+
+    /**
+     * Push handler recording GCM results instead of processing them.
+     */
+    private static class RecordingHandler extends PlatformPushHandler {
+        private final GcmRateLimiter rateLimiter = new GcmRateLimiter(1000);
+        private final Map<String, Result> results = new ConcurrentHashMap<String, Result>();
+        private final Map<String, GcmSendRecord> rescheduled = new ConcurrentHashMap<String, GcmSendRecord>();
+
+        private RecordingHandler() {
+            super(null);
+        }
+
+        private GcmCircuitBreaker gcmCircuit(){
+            return getGcmCircuit();
+        }
+
+        @Override
+        public GcmRateLimiter getGcmRateLimiter() {
+            return rateLimiter;
+        }
+
+        @Override
+        public void addSendRecord(GcmSendRecord sndRec, boolean tryMerge) {
+            rescheduled.put(sndRec.getTo(), sndRec);
+        }
+
+        @Override
+        public void onGcmSendSuccess(GcmSendRecord sndRec, Result gcmResult) {
+            results.put(sndRec.getTo(), gcmResult);
+        }
+    }
+}
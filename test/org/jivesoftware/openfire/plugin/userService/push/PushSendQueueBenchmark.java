@@ -0,0 +1,136 @@
+package org.jivesoftware.openfire.plugin.userService.push;
+
+import org.jivesoftware.openfire.plugin.userService.utils.LatencyHistogram;
+
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Enqueue-to-route latency of the push send queue, p50/p99 in milliseconds.
+ * Compares the former poll-and-requeue loop with 150 ms nap and the deadline-driven DelayQueue used by PushSender.
+ * Latency is measured from the time the record is due (max of enqueue time and sendTstamp) to the time it is taken.
+ *
+ * Standalone, run: java -cp build/classes:build/test/classes:lib/* ...PushSendQueueBenchmark [records]
+ *
+ * Created by dusanklinec on 18.10.16.
+ */
+public class PushSendQueueBenchmark {
+    /**
+     * Nap of the former sender loop.
+     */
+    private static final long LEGACY_NAP = 150;
+
+    /**
+     * Maximal resend offset of a record, in milliseconds.
+     */
+    private static final int MAX_OFFSET = 500;
+
+    public static void main(String[] args) throws Exception {
+        final int records = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+
+        final LatencyHistogram legacy = run(records, true);
+        final LatencyHistogram deadline = run(records, false);
+
+        System.out.println(String.format("records: %d", records));
+        print(legacy);
+        print(deadline);
+    }
+
+    private static void print(LatencyHistogram hist){
+        System.out.println(String.format("%-18s p50: %4d ms, p99: %4d ms, max: %4d ms, mean: %.1f ms",
+                hist.getName(), hist.getPercentile(50), hist.getPercentile(99), hist.getMax(), hist.getMean()));
+    }
+
+    /**
+     * Producer enqueues records, a quarter due immediately, others with a resend offset, consumer takes due records.
+     * @param records
+     * @param legacy
+     * @return
+     * @throws InterruptedException
+     */
+    private static LatencyHistogram run(final int records, final boolean legacy) throws InterruptedException {
+        final LatencyHistogram hist = new LatencyHistogram(legacy ? "poll-and-requeue" : "delay-queue");
+        final BlockingQueue<PushSendRecord> queue = legacy
+                ? new PriorityBlockingQueue<PushSendRecord>()
+                : new DelayQueue<PushSendRecord>();
+        final AtomicInteger taken = new AtomicInteger(0);
+
+        final Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (legacy) {
+                        consumeLegacy(queue, hist, taken, records);
+                    } else {
+                        consumeDeadline((DelayQueue<PushSendRecord>) queue, hist, taken, records);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "consumer");
+        consumer.start();
+
+        final Random rnd = new Random(42);
+        for (int i = 0; i < records; i++) {
+            final long now = System.currentTimeMillis();
+            final PushSendRecord rec = new PushSendRecord();
+            rec.setEnqueueTstamp(now);
+            rec.setSendTstamp(i % 4 == 0 ? now : now + rnd.nextInt(MAX_OFFSET));
+            queue.add(rec);
+            Thread.sleep(rnd.nextInt(3));
+        }
+
+        consumer.join();
+        return hist;
+    }
+
+    /**
+     * Former PushSender loop: drain due records, re-add the first one not due yet and take a nap.
+     */
+    private static void consumeLegacy(BlockingQueue<PushSendRecord> queue, LatencyHistogram hist, AtomicInteger taken, int records)
+            throws InterruptedException
+    {
+        while (taken.get() < records) {
+            while (!queue.isEmpty()) {
+                final PushSendRecord rec = queue.poll();
+                if (rec == null) {
+                    continue;
+                }
+
+                final long curTime = System.currentTimeMillis();
+                if ((curTime - rec.getSendTstamp()) < 0) {
+                    queue.add(rec);
+                    break;
+                }
+
+                onTaken(rec, curTime, hist, taken);
+            }
+
+            Thread.sleep(LEGACY_NAP);
+        }
+    }
+
+    /**
+     * Current PushSender loop: block until the earliest record is due.
+     */
+    private static void consumeDeadline(DelayQueue<PushSendRecord> queue, LatencyHistogram hist, AtomicInteger taken, int records)
+            throws InterruptedException
+    {
+        while (taken.get() < records) {
+            final PushSendRecord rec = queue.poll(1000, TimeUnit.MILLISECONDS);
+            if (rec != null) {
+                onTaken(rec, System.currentTimeMillis(), hist, taken);
+            }
+        }
+    }
+
+    private static void onTaken(PushSendRecord rec, long curTime, LatencyHistogram hist, AtomicInteger taken){
+        hist.record(curTime - Math.max(rec.getEnqueueTstamp(), rec.getSendTstamp()));
+        taken.incrementAndGet();
+    }
+}
@@ -0,0 +1,67 @@
+package org.jivesoftware.openfire.plugin.userService.push.messages;
+
+import org.jivesoftware.openfire.plugin.userService.push.events.ClistSyncEventMessage;
+import org.jivesoftware.openfire.plugin.userService.push.events.NewCertEventMessage;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Merging of unique push parts is decided by the part itself.
+ *
+ * Created by dusanklinec on 18.10.16.
+ */
+public class SimplePushPartRegisterTest {
+    private static final String USER = "alice@phone-x.net";
+
+    @Test
+    public void newerTstampReplacesPart() {
+        final SimplePushMessage msg = message(new ClistSyncEventMessage(1000));
+        assertTrue(msg.mergeWithMessage(message(new ClistSyncEventMessage(2000))));
+        assertEquals(2000, msg.getParts().get(0).getTstamp());
+    }
+
+    @Test
+    public void olderTstampIsIgnored() {
+        final SimplePushMessage msg = message(new ClistSyncEventMessage(2000));
+        assertFalse(msg.mergeWithMessage(message(new ClistSyncEventMessage(1000))));
+        assertEquals(2000, msg.getParts().get(0).getTstamp());
+    }
+
+    @Test
+    public void newCertMergesOnCertificateTime() {
+        // Newer push with an older certificate must not replace the newer certificate.
+        final SimplePushMessage msg = message(new NewCertEventMessage(1000, 500, "newer"));
+        assertFalse(msg.mergeWithMessage(message(new NewCertEventMessage(2000, 100, "older"))));
+
+        final NewCertEventMessage part = (NewCertEventMessage) msg.getParts().get(0);
+        assertEquals(500, part.getCertNotBefore());
+        assertEquals("newer", part.getCertHashPrefix());
+    }
+
+    @Test
+    public void newCertWithNewerCertificateReplacesPart() {
+        final SimplePushMessage msg = message(new NewCertEventMessage(1000, 100, "older"));
+        assertTrue(msg.mergeWithMessage(message(new NewCertEventMessage(900, 500, "newer"))));
+
+        final NewCertEventMessage part = (NewCertEventMessage) msg.getParts().get(0);
+        assertEquals(500, part.getCertNotBefore());
+        assertEquals("newer", part.getCertHashPrefix());
+    }
+
+    @Test
+    public void sharedPartIsNotMerged() {
+        final SimplePushPart part = new ClistSyncEventMessage(1000);
+        final SimplePushMessage msg = message(part);
+        assertFalse(msg.mergeWithMessage(new SimplePushMessage(msg)));
+        assertFalse(part.mergeWith(part));
+    }
+
+    private static SimplePushMessage message(SimplePushPart part){
+        final SimplePushMessage msg = new SimplePushMessage(USER, part.getTstamp());
+        msg.addPart(part);
+        return msg;
+    }
+}
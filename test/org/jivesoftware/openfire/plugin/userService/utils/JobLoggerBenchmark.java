@@ -0,0 +1,122 @@
+package org.jivesoftware.openfire.plugin.userService.utils;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Cost of JobLogger.logMsg(), bytes allocated and nanoseconds per call.
+ * Compares the former logger formatting each message eagerly with JobLoggerImpl storing template and arguments.
+ *
+ * JobLoggerImpl itself does not allocate, the call site still allocates the varargs array and boxes primitive
+ * arguments, "typical call" shows this cost, "preallocated args" shows the logger alone.
+ *
+ * Standalone, needs HotSpot thread allocation counters, run:
+ * java -cp build/classes:build/test/classes:lib/* ...JobLoggerBenchmark [calls]
+ *
+ * Created by dusanklinec on 18.10.16.
+ */
+public class JobLoggerBenchmark {
+    private static final String TEMPLATE = "Roster sync of %s, item %d, state: %s";
+
+    public static void main(String[] args) throws Exception {
+        final int calls = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+        final com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!mx.isThreadAllocatedMemorySupported()){
+            System.out.println("Thread allocation counters are not supported by this JVM");
+            return;
+        }
+        mx.setThreadAllocatedMemoryEnabled(true);
+
+        System.out.println(String.format("calls: %d", calls));
+        final Scenario[] scenarios = new Scenario[]{new EagerScenario(), new TypicalScenario(), new PreallocatedScenario()};
+
+        // Warm up, JIT has to eliminate what it can before measuring.
+        for (Scenario scenario : scenarios) {
+            scenario.run(calls);
+        }
+
+        for (Scenario scenario : scenarios) {
+            final long tid = Thread.currentThread().getId();
+            final long bytesStart = mx.getThreadAllocatedBytes(tid);
+            final long timeStart = System.nanoTime();
+            scenario.run(calls);
+            final long timeTotal = System.nanoTime() - timeStart;
+            final long bytesTotal = mx.getThreadAllocatedBytes(tid) - bytesStart;
+
+            System.out.println(String.format("%-18s %8.1f B/call, %8.1f ns/call",
+                    scenario.getName(), (double) bytesTotal / calls, (double) timeTotal / calls));
+        }
+    }
+
+    private static abstract class Scenario {
+        abstract String getName();
+        abstract void run(int calls);
+    }
+
+    /**
+     * Former logger, message formatted on each call and stored to a ring of strings.
+     */
+    private static class EagerScenario extends Scenario {
+        private final String[] messages = new String[250];
+        private int lastOffset = -1;
+
+        @Override
+        String getName() {
+            return "eager format";
+        }
+
+        @Override
+        void run(int calls) {
+            for (int i = 0; i < calls; i++) {
+                lastOffset = (lastOffset + 1) % messages.length;
+                messages[lastOffset] = String.format("[%s] #%s %s %s: %s", 6, Thread.currentThread().getId(),
+                        System.currentTimeMillis(), "", String.format(TEMPLATE, "alice@phone-x.net", i, "ok"));
+            }
+        }
+    }
+
+    /**
+     * Call site as in the plugin, varargs array and boxed int allocated per call.
+     */
+    private static class TypicalScenario extends Scenario {
+        private final JobLoggerImpl logger = newLogger();
+
+        @Override
+        String getName() {
+            return "typical call";
+        }
+
+        @Override
+        void run(int calls) {
+            for (int i = 0; i < calls; i++) {
+                logger.logMsg(6, "", TEMPLATE, "alice@phone-x.net", i, "ok");
+            }
+        }
+    }
+
+    /**
+     * Logger alone, arguments array created once.
+     */
+    private static class PreallocatedScenario extends Scenario {
+        private final JobLoggerImpl logger = newLogger();
+        private final Object[] args = new Object[]{"alice@phone-x.net", 1, "ok"};
+
+        @Override
+        String getName() {
+            return "preallocated args";
+        }
+
+        @Override
+        void run(int calls) {
+            for (int i = 0; i < calls; i++) {
+                logger.logMsg(6, "", TEMPLATE, args);
+            }
+        }
+    }
+
+    private static JobLoggerImpl newLogger(){
+        final JobLoggerImpl logger = new JobLoggerImpl();
+        logger.setMessagesNumber(250);
+        return logger;
+    }
+}